@@ -0,0 +1,71 @@
+package com.hs.reactive.reactivestream.flow;
+
+import java.util.concurrent.Flow;
+
+/**
+ * 按批次请求数据的订阅者，子类只需要实现 hookOnNext/onError/onComplete，不需要自己调用 request
+ * 请求多少、什么时候请求由 {@link DemandController} 决定
+ *
+ * @param <T> 元素类型
+ */
+public abstract class AdaptiveDemandSubscriber<T> implements Flow.Subscriber<T> {
+
+    private final DemandController controller;
+
+    private Flow.Subscription subscription;
+
+    private volatile boolean cancelled;
+
+    protected AdaptiveDemandSubscriber() {
+        this(DemandController.defaults());
+    }
+
+    protected AdaptiveDemandSubscriber(DemandController controller) {
+        this.controller = controller;
+    }
+
+    @Override
+    public final void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        hookOnSubscribe(subscription);
+        if (!cancelled) {
+            subscription.request(controller.initialRequest());
+        }
+    }
+
+    @Override
+    public final void onNext(T item) {
+        long start = System.nanoTime();
+        hookOnNext(item);
+        long n = controller.afterItem(start);
+        if (n > 0 && !cancelled) {
+            subscription.request(n);
+        }
+    }
+
+    /**
+     * 绑定关系建立时触发，在第一次 request 之前
+     */
+    protected void hookOnSubscribe(Flow.Subscription subscription) {
+    }
+
+    /**
+     * 收到下一个元素时触发
+     */
+    protected abstract void hookOnNext(T item);
+
+    /**
+     * 取消订阅
+     */
+    protected void cancel() {
+        cancelled = true;
+        Flow.Subscription s = subscription;
+        if (s != null) {
+            s.cancel();
+        }
+    }
+
+    protected DemandController demandController() {
+        return controller;
+    }
+}
@@ -0,0 +1,220 @@
+package com.hs.reactive.reactivestream.flow;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 显式的异步边界：上游在自己的线程里把元素放进队列，下游在 executor 的线程里消费
+ * 1、向上游预取 prefetch 个元素，下游每消费掉 75% 再补一批（和 limitRate 的预取策略一样），不会每个元素都 request(1)
+ * 2、队列是 {@link MpscArrayRing}，容量等于 prefetch，上游遵守背压就不会溢出
+ * 3、{@link #queueDepth()} 可以看到当前积压了多少元素
+ *
+ * @param <T> 元素类型
+ */
+public class AsyncBoundary<T> implements Flow.Processor<T, T>, Flow.Subscription, Runnable {
+
+    private final String name;
+
+    private final Executor executor;
+
+    private final int prefetch;
+
+    /**
+     * 消费多少个之后向上游补充请求
+     */
+    private final int limit;
+
+    private final MpscArrayRing<T> queue;
+
+    private final AtomicLong requested = new AtomicLong();
+
+    private final AtomicInteger wip = new AtomicInteger();
+
+    private volatile Flow.Subscription upstream;
+
+    private volatile Flow.Subscriber<? super T> downstream;
+
+    private volatile boolean done;
+
+    private volatile Throwable error;
+
+    private volatile boolean cancelled;
+
+    /**
+     * 只在消费线程中读写
+     */
+    private long consumed;
+
+    private boolean terminated;
+
+    private volatile long received;
+
+    private volatile long emitted;
+
+    public AsyncBoundary(String name, Executor executor, int prefetch) {
+        if (prefetch <= 0) {
+            throw new IllegalArgumentException("prefetch must be positive");
+        }
+        this.name = name;
+        this.executor = executor;
+        this.queue = new MpscArrayRing<>(prefetch);
+        this.prefetch = queue.capacity();
+        this.limit = this.prefetch - (this.prefetch >> 2);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException();
+        }
+        synchronized (this) {
+            if (downstream != null) {
+                subscriber.onSubscribe(FusedProcessor.CancelledSubscription.INSTANCE);
+                subscriber.onError(new IllegalStateException("AsyncBoundary allows only a single subscriber"));
+                return;
+            }
+            downstream = subscriber;
+        }
+        subscriber.onSubscribe(this);
+        signal();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (upstream != null) {
+            subscription.cancel();
+            return;
+        }
+        upstream = subscription;
+        subscription.request(prefetch);
+    }
+
+    @Override
+    public void onNext(T item) {
+        received++;
+        if (!queue.offer(item)) {
+            //上游没有遵守背压
+            upstream.cancel();
+            onError(new IllegalStateException("Queue is full: upstream ignored backpressure"));
+            return;
+        }
+        signal();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        error = throwable;
+        done = true;
+        signal();
+    }
+
+    @Override
+    public void onComplete() {
+        done = true;
+        signal();
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0L) {
+            onError(new IllegalArgumentException("non-positive subscription request"));
+            return;
+        }
+        requested.getAndAccumulate(n, (a, b) -> a + b < 0L ? Long.MAX_VALUE : a + b);
+        signal();
+    }
+
+    @Override
+    public void cancel() {
+        if (!cancelled) {
+            cancelled = true;
+            Flow.Subscription s = upstream;
+            if (s != null) {
+                s.cancel();
+            }
+            signal();
+        }
+    }
+
+    private void signal() {
+        if (wip.getAndIncrement() == 0) {
+            executor.execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        int missed = 1;
+        for (; ; ) {
+            Flow.Subscriber<? super T> a = downstream;
+            if (terminated || cancelled) {
+                queue.clear();
+            } else if (a != null) {
+                drain(a);
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                break;
+            }
+        }
+    }
+
+    private void drain(Flow.Subscriber<? super T> a) {
+        long r = requested.get();
+        long e = 0L;
+        for (; ; ) {
+            if (cancelled) {
+                queue.clear();
+                return;
+            }
+            boolean d = done;
+            Throwable ex = error;
+            if (d && ex != null) {
+                terminated = true;
+                queue.clear();
+                a.onError(ex);
+                return;
+            }
+            if (e == r) {
+                if (d && queue.isEmpty()) {
+                    terminated = true;
+                    a.onComplete();
+                }
+                break;
+            }
+            T v = queue.poll();
+            if (v == null) {
+                if (d) {
+                    terminated = true;
+                    a.onComplete();
+                }
+                break;
+            }
+            a.onNext(v);
+            e++;
+            if (++consumed == limit) {
+                consumed = 0L;
+                upstream.request(limit);
+            }
+        }
+        if (e != 0L) {
+            emitted += e;
+            if (r != Long.MAX_VALUE) {
+                requested.addAndGet(-e);
+            }
+        }
+    }
+
+    /**
+     * 当前积压在队列中的元素个数
+     */
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    public StageStats stats() {
+        return new StageStats(name, "async", queueDepth(), received, emitted);
+    }
+}
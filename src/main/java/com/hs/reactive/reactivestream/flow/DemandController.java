@@ -0,0 +1,119 @@
+package com.hs.reactive.reactivestream.flow;
+
+/**
+ * 订阅者的批量请求（request(n)）控制器
+ * 1、一次请求一批（batch）元素，而不是每个元素 request(1)
+ * 2、这一批被消费到低水位（lowWaterMark，默认 75%，和 limitRate 的预取策略一样）时，把未完成的请求补回到 batch
+ * 3、根据订阅者处理每个元素的平均耗时调整 batch：batch ≈ targetBatchNanos / 平均耗时，
+ * 处理得快就一次多要一点，处理得慢就少要一点，避免在订阅者前面堆积太多元素
+ * <p>
+ * 不是线程安全的，只能在 onSubscribe/onNext 中调用（规范保证这两个方法串行执行）
+ */
+public class DemandController {
+
+    private final int minBatch;
+
+    private final int maxBatch;
+
+    private final double lowWaterMark;
+
+    private final long targetBatchNanos;
+
+    private int batch;
+
+    /**
+     * 已经请求，但还没收到的数量
+     */
+    private long outstanding;
+
+    /**
+     * 上次补充请求之后消费的数量
+     */
+    private long consumed;
+
+    /**
+     * 单个元素处理耗时的指数移动平均
+     */
+    private long avgNanos;
+
+    /**
+     * @param initialBatch     第一次请求的数量
+     * @param minBatch         最小批次
+     * @param maxBatch         最大批次
+     * @param lowWaterMark     消费到这一批的多少比例时补充请求，取值 (0,1]
+     * @param targetBatchNanos 希望一批元素的处理时间
+     */
+    public DemandController(int initialBatch, int minBatch, int maxBatch, double lowWaterMark, long targetBatchNanos) {
+        if (minBatch < 1 || maxBatch < minBatch) {
+            throw new IllegalArgumentException("require 1 <= minBatch <= maxBatch");
+        }
+        if (lowWaterMark <= 0 || lowWaterMark > 1) {
+            throw new IllegalArgumentException("lowWaterMark must be in (0,1]");
+        }
+        this.minBatch = minBatch;
+        this.maxBatch = maxBatch;
+        this.lowWaterMark = lowWaterMark;
+        this.targetBatchNanos = targetBatchNanos;
+        this.batch = Math.max(minBatch, Math.min(maxBatch, initialBatch));
+    }
+
+    /**
+     * 默认：初始 32 个，最少 1 个，最多 1024 个，75% 时补充，一批处理 10ms
+     */
+    public static DemandController defaults() {
+        return new DemandController(32, 1, 1024, 0.75, 10_000_000L);
+    }
+
+    /**
+     * onSubscribe 时调用
+     *
+     * @return 第一次请求的数量
+     */
+    public long initialRequest() {
+        outstanding = batch;
+        consumed = 0;
+        return batch;
+    }
+
+    /**
+     * 一个元素处理完之后调用
+     *
+     * @param startNanos 开始处理这个元素时的 System.nanoTime()
+     * @return 需要向上游 request 的数量，0 表示暂时不用请求
+     */
+    public long afterItem(long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        avgNanos = avgNanos == 0 ? Math.max(1, elapsed) : avgNanos + ((elapsed - avgNanos) >> 3);
+        if (outstanding > 0) {
+            outstanding--;
+        }
+        consumed++;
+        if (consumed < Math.max(1, (long) (batch * lowWaterMark))) {
+            return 0;
+        }
+        consumed = 0;
+        batch = adapt();
+        long n = batch - outstanding;
+        if (n <= 0) {
+            return 0;
+        }
+        outstanding += n;
+        return n;
+    }
+
+    private int adapt() {
+        if (targetBatchNanos <= 0 || avgNanos <= 0) {
+            return batch;
+        }
+        long target = targetBatchNanos / Math.max(1, avgNanos);
+        return (int) Math.max(minBatch, Math.min(maxBatch, target));
+    }
+
+    public int currentBatch() {
+        return batch;
+    }
+
+    public long averageNanos() {
+        return avgNanos;
+    }
+}
@@ -1,6 +1,7 @@
 package com.hs.reactive.reactivestream.flow;
 
 import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.SubmissionPublisher;
 
 /**
@@ -45,6 +46,8 @@ public class FlowDemo {
      * 中间操作 处理器
      * 既是发布者，也是订阅者
      * 在这里，继承了发布者，所以只需要实现订阅者的接口
+     * 注意：每一级这样的处理器都会多一个缓冲区和一次线程切换，并且每个元素都要 request(1) 一次，
+     * 同步的加工逻辑可以用 {@link FlowPipeline} 融合成一个处理器，参考 fusedProcessorTest
      */
     static class ProcessorTest extends SubmissionPublisher<String> implements Flow.Processor<String,String>{
         private Flow.Subscription subscription;
@@ -80,12 +83,61 @@ public class FlowDemo {
     }
 
 
+    /**
+     * 融合处理器测试
+     * 两个 map 和一个 filter 会合并到同一个 FusedProcessor 的 onNext 里依次执行，
+     * 只有 async 的地方才有缓冲区和线程切换，最后打印每一级的队列深度
+     */
+    public static void fusedProcessorTest() throws InterruptedException {
+        MpscRingPublisher<String> publisher = new MpscRingPublisher<>();
+        FlowPipeline<Integer> pipeline = FlowPipeline.from(publisher)
+                .map("ProcessorTest", item -> item + "这是 ProcessorTest 加上的内容：")
+                .filter("跳过3", item -> !item.startsWith("3"))
+                .map("长度", String::length)
+                //只在这里切换线程
+                .async("订阅者线程", ForkJoinPool.commonPool(), 16);
+        pipeline.subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                //一次请求所有数据，中间的处理器不会再一个一个地 request
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(Integer item) {
+                System.out.println(Thread.currentThread().getName() + " 接收到数据：" + item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                System.out.println("报错了：" + throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                System.out.println("完成！！");
+            }
+        });
+        for (int i = 0; i < 5; i++) {
+            publisher.submit(String.valueOf(i));
+        }
+        publisher.close();
+        Thread.sleep(1000);
+        pipeline.stats().forEach(System.out::println);
+    }
+
+
     /**
      * Flow.Publisher 发布者
      * Flow.Subscriber 订阅者
      * Flow.Subscription 发布者和订阅者的绑定关系
      */
     public static void main(String[] args) {
+//        try {
+//            fusedProcessorTest();
+//        } catch (InterruptedException e) {
+//            throw new RuntimeException(e);
+//        }
         //1.定义发布者
 //        Flow.Publisher<String> stringPublisher = new Flow.Publisher<>() {
 //
@@ -98,26 +150,24 @@ public class FlowDemo {
 //            }
 //        };
         //jdk提供的简易发布者
-        SubmissionPublisher<String> publisher=new SubmissionPublisher<>();
+//        SubmissionPublisher<String> publisher=new SubmissionPublisher<>();
+        //基于无锁环形队列的发布者，用法和 SubmissionPublisher 一样，吞吐量更高
+        MpscRingPublisher<String> publisher = new MpscRingPublisher<>();
 
         //2.定义一个处理器
         Flow.Processor<String,String> processor = new ProcessorTest();
 
         //3.定义一个订阅者
-        Flow.Subscriber<String> stringSubscriber = new Flow.Subscriber<>() {
-
-            private Flow.Subscription subscription;
+        //继承 AdaptiveDemandSubscriber，按批次请求数据，不需要每拿到一个数据就 request(1)
+        Flow.Subscriber<String> stringSubscriber = new AdaptiveDemandSubscriber<>() {
 
             /**
-             * 发生绑定关系时触发
+             * 发生绑定关系时触发，之后会自动从上游请求第一批数据
              * @param subscription a new subscription
              */
             @Override
-            public void onSubscribe(Flow.Subscription subscription) {
+            protected void hookOnSubscribe(Flow.Subscription subscription) {
                 System.out.println("订阅绑定成功："+subscription);
-                //从上游请求一个数据
-                subscription.request(1);
-                this.subscription = subscription;
             }
 
             /**
@@ -125,20 +175,14 @@ public class FlowDemo {
              * @param item the item
              */
             @Override
-            public void onNext(String item) {
+            protected void hookOnNext(String item) {
                 System.out.println("接收到数据："+item);
                 try {
                     Thread.sleep(2000);
                 } catch (InterruptedException e) {
                     throw new RuntimeException(e);
                 }
-                if(!"3".equals(item)){
-                    //拿到一个数据之后，继续请求下一个数据
-                    subscription.request(1);
-                }else{
-                    //取消订阅
-//                    subscription.cancel();
-                }
+                //处理得越慢，下一批请求的数量越少；不想再接收时调用 cancel() 取消订阅
             }
 
             /**
@@ -148,7 +192,6 @@ public class FlowDemo {
             @Override
             public void onError(Throwable throwable) {
                 System.out.println("报错了："+throwable);
-                subscription.request(1);
             }
 
             /**
@@ -170,7 +213,7 @@ public class FlowDemo {
 //            //调用该方法，会中断
 //                publisher.closeExceptionally(new RuntimeException("报错了，触发订阅者的OnError"));
 //            }
-            //所有数据都存在 SubmissionPublisher 的 buffer 缓冲区中
+            //所有数据都存在每个订阅者各自的环形缓冲区中
             //原理是使用 观察者 设计模式+线程池异步，去遍历所有订阅者来处理消息
             publisher.submit(String.valueOf(i));
         }
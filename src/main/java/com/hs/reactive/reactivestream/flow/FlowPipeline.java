@@ -0,0 +1,105 @@
+package com.hs.reactive.reactivestream.flow;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * 处理链的组装器
+ * 连续的 map/filter 会被合并进同一个 {@link FusedProcessor}，只有调用 async 的地方才会插入一个 {@link AsyncBoundary}
+ * 例如：from(publisher).map(a).filter(b).async(pool).map(c)
+ * 实际的链条为：发布者 -> FusedProcessor(a,b) -> AsyncBoundary -> FusedProcessor(c) -> 订阅者
+ *
+ * @param <T> 当前链条末端的元素类型
+ */
+public class FlowPipeline<T> {
+
+    private final Flow.Publisher<?> source;
+
+    /**
+     * FusedProcessor 或者 AsyncBoundary
+     */
+    private final List<Flow.Processor<?, ?>> segments;
+
+    private FlowPipeline(Flow.Publisher<?> source, List<Flow.Processor<?, ?>> segments) {
+        this.source = source;
+        this.segments = segments;
+    }
+
+    public static <T> FlowPipeline<T> from(Flow.Publisher<T> source) {
+        return new FlowPipeline<>(source, new ArrayList<>());
+    }
+
+    public <R> FlowPipeline<R> map(String name, Function<? super T, ? extends R> mapper) {
+        return new FlowPipeline<>(source, withTail(fusedTail().map(name, mapper)));
+    }
+
+    public FlowPipeline<T> filter(String name, Predicate<? super T> predicate) {
+        return new FlowPipeline<>(source, withTail(fusedTail().filter(name, predicate)));
+    }
+
+    /**
+     * 显式插入一个异步边界，后面的处理在 executor 的线程中执行
+     */
+    public FlowPipeline<T> async(String name, Executor executor, int prefetch) {
+        List<Flow.Processor<?, ?>> next = new ArrayList<>(segments);
+        next.add(new AsyncBoundary<T>(name, executor, prefetch));
+        return new FlowPipeline<>(source, next);
+    }
+
+    /**
+     * 链条最后一段如果是融合处理器，就接着往上加；否则新开一段
+     */
+    @SuppressWarnings("unchecked")
+    private FusedProcessor<Object, T> fusedTail() {
+        if (endsWithFused()) {
+            return (FusedProcessor<Object, T>) segments.get(segments.size() - 1);
+        }
+        return (FusedProcessor<Object, T>) (FusedProcessor<?, ?>) FusedProcessor.create();
+    }
+
+    private boolean endsWithFused() {
+        return !segments.isEmpty() && segments.get(segments.size() - 1) instanceof FusedProcessor;
+    }
+
+    private List<Flow.Processor<?, ?>> withTail(FusedProcessor<?, ?> tail) {
+        List<Flow.Processor<?, ?>> next = new ArrayList<>(segments);
+        if (endsWithFused()) {
+            next.set(next.size() - 1, tail);
+        } else {
+            next.add(tail);
+        }
+        return next;
+    }
+
+    /**
+     * 把链条串起来并绑定订阅者，一条链只能订阅一次
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        Flow.Publisher current = source;
+        for (Flow.Processor<?, ?> segment : segments) {
+            current.subscribe(segment);
+            current = segment;
+        }
+        current.subscribe(subscriber);
+    }
+
+    /**
+     * 每一级的统计，可以看到融合之后只有异步边界才有队列
+     */
+    public List<StageStats> stats() {
+        List<StageStats> list = new ArrayList<>();
+        for (Flow.Processor<?, ?> segment : segments) {
+            if (segment instanceof FusedProcessor<?, ?> fused) {
+                list.addAll(fused.stats());
+            } else if (segment instanceof AsyncBoundary<?> boundary) {
+                list.add(boundary.stats());
+            }
+        }
+        return list;
+    }
+}
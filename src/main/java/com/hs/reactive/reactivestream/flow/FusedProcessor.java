@@ -0,0 +1,272 @@
+package com.hs.reactive.reactivestream.flow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * 融合（fusion）的同步处理器
+ * FlowDemo.ProcessorTest 每一级都继承 SubmissionPublisher，onNext 里再 submit 一次，
+ * 所以每加一级处理器，就多一个缓冲区、多一次线程切换、每个元素多一次 request(1)
+ * <p>
+ * 这里把连续的 map/filter 合并成一个处理器：
+ * 1、onNext 里按顺序依次执行每一级的函数，直接调用下游的 onNext，中间没有缓冲区，也不切换线程
+ * 2、下游的 request(n) 原样转发给上游，不会每个元素都 request(1)；只有被 filter 掉的元素才补一个 request(1)
+ * 3、需要异步的地方，显式地接一个 {@link AsyncBoundary}
+ * map/filter 会返回一个新的处理器，订阅之前组装好即可
+ *
+ * @param <T> 上游元素类型
+ * @param <R> 下游元素类型
+ */
+public class FusedProcessor<T, R> implements Flow.Processor<T, R>, Flow.Subscription {
+
+    private final Stage[] stages;
+
+    private final AtomicLong pendingRequests = new AtomicLong();
+
+    private volatile Flow.Subscription upstream;
+
+    private volatile boolean cancelled;
+
+    private Flow.Subscriber<? super R> downstream;
+
+    /**
+     * 下游订阅之前，上游就已经结束了
+     */
+    private boolean done;
+
+    private Throwable error;
+
+    private FusedProcessor(Stage[] stages) {
+        this.stages = stages;
+    }
+
+    /**
+     * 创建一个什么都不做的处理器，再用 map/filter 往上加
+     */
+    public static <T> FusedProcessor<T, T> create() {
+        return new FusedProcessor<>(new Stage[0]);
+    }
+
+    public <V> FusedProcessor<T, V> map(String name, Function<? super R, ? extends V> mapper) {
+        return new FusedProcessor<>(append(new Stage(name, mapper, null)));
+    }
+
+    public FusedProcessor<T, R> filter(String name, Predicate<? super R> predicate) {
+        return new FusedProcessor<>(append(new Stage(name, null, predicate)));
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Stage[] append(Stage stage) {
+        if (downstream != null || upstream != null) {
+            throw new IllegalStateException("processor already subscribed");
+        }
+        Stage[] next = Arrays.copyOf(stages, stages.length + 1);
+        for (int i = 0; i < stages.length; i++) {
+            //每个处理器有自己的统计数据
+            next[i] = new Stage(stages[i].name, (Function) stages[i].mapper, (Predicate) stages[i].predicate);
+        }
+        next[stages.length] = stage;
+        return next;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super R> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException();
+        }
+        boolean terminated;
+        Throwable ex;
+        synchronized (this) {
+            if (downstream != null) {
+                //融合的处理器只能有一个订阅者，需要广播的话在前面接一个发布者
+                subscriber.onSubscribe(CancelledSubscription.INSTANCE);
+                subscriber.onError(new IllegalStateException("FusedProcessor allows only a single subscriber"));
+                return;
+            }
+            downstream = subscriber;
+            terminated = done;
+            ex = error;
+        }
+        subscriber.onSubscribe(this);
+        if (terminated) {
+            if (ex != null) {
+                subscriber.onError(ex);
+            } else {
+                subscriber.onComplete();
+            }
+        }
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (upstream != null) {
+            subscription.cancel();
+            return;
+        }
+        upstream = subscription;
+        if (cancelled) {
+            subscription.cancel();
+            return;
+        }
+        //下游先 request 了，上游才来，把攒下来的请求一次性发给上游
+        long pending = pendingRequests.getAndSet(0L);
+        if (pending > 0L) {
+            subscription.request(pending);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void onNext(T item) {
+        if (cancelled) {
+            return;
+        }
+        Object value = item;
+        for (Stage stage : stages) {
+            stage.received++;
+            try {
+                value = stage.apply(value);
+            } catch (Throwable ex) {
+                cancel();
+                onError(ex);
+                return;
+            }
+            if (value == null) {
+                //被 filter 掉了，下游的需求没有被满足，向上游补一个
+                upstream.request(1);
+                return;
+            }
+            stage.emitted++;
+        }
+        downstream.onNext((R) value);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        Flow.Subscriber<? super R> a;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            error = throwable;
+            a = downstream;
+        }
+        if (a != null) {
+            a.onError(throwable);
+        }
+    }
+
+    @Override
+    public void onComplete() {
+        Flow.Subscriber<? super R> a;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            a = downstream;
+        }
+        if (a != null) {
+            a.onComplete();
+        }
+    }
+
+    /**
+     * 下游的 request 直接转发给上游
+     */
+    @Override
+    public void request(long n) {
+        Flow.Subscription s = upstream;
+        if (s != null) {
+            s.request(n);
+            return;
+        }
+        if (n <= 0L) {
+            onError(new IllegalArgumentException("non-positive subscription request"));
+            return;
+        }
+        pendingRequests.getAndAccumulate(n, (a, b) -> a + b < 0L ? Long.MAX_VALUE : a + b);
+        s = upstream;
+        if (s != null) {
+            long pending = pendingRequests.getAndSet(0L);
+            if (pending > 0L) {
+                s.request(pending);
+            }
+        }
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        Flow.Subscription s = upstream;
+        if (s != null) {
+            s.cancel();
+        }
+    }
+
+    /**
+     * 每一级的统计，融合的处理器中间没有队列，所以队列深度都是 0
+     */
+    public List<StageStats> stats() {
+        List<StageStats> list = new ArrayList<>(stages.length);
+        for (Stage stage : stages) {
+            list.add(new StageStats(stage.name, stage.predicate != null ? "filter" : "map", 0, stage.received, stage.emitted));
+        }
+        return list;
+    }
+
+    /**
+     * 一级 map 或者 filter
+     * received/emitted 只在 onNext 中累加（规范保证 onNext 串行），读取的时候是近似值
+     */
+    static final class Stage {
+        final String name;
+
+        final Function<Object, Object> mapper;
+
+        final Predicate<Object> predicate;
+
+        long received;
+
+        long emitted;
+
+        @SuppressWarnings("unchecked")
+        Stage(String name, Function<?, ?> mapper, Predicate<?> predicate) {
+            this.name = name;
+            this.mapper = (Function<Object, Object>) mapper;
+            this.predicate = (Predicate<Object>) predicate;
+        }
+
+        /**
+         * @return 返回 null 表示元素被过滤掉了
+         */
+        Object apply(Object value) {
+            if (predicate != null) {
+                return predicate.test(value) ? value : null;
+            }
+            Object result = mapper.apply(value);
+            if (result == null) {
+                throw new NullPointerException("stage '" + name + "' returned null");
+            }
+            return result;
+        }
+    }
+
+    enum CancelledSubscription implements Flow.Subscription {
+        INSTANCE;
+
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.hs.reactive.reactivestream.flow;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 有界的 多生产者-多消费者（MPMC）环形数组队列（Dmitry Vyukov 的 bounded MPMC queue）
+ * 和 {@link MpscArrayRing} 的区别是 poll 也可以被多个线程同时调用，生产者在队列满的时候可以自己取走一个旧元素腾出位置
+ * 1、每个槽位有一个序号：序号 == 下标 表示可写，序号 == 下标 + 1 表示可读
+ * 2、生产者和消费者都通过 CAS 抢占下标，抢到之后写/读槽位，再发布新的序号，不加锁
+ * 容量会向上取整为 2 的幂
+ *
+ * @param <E> 元素类型
+ */
+public class MpmcArrayRing<E> {
+
+    private final int mask;
+
+    private final AtomicReferenceArray<E> buffer;
+
+    private final AtomicLongArray sequences;
+
+    private final AtomicLong producerIndex = new AtomicLong();
+
+    private final AtomicLong consumerIndex = new AtomicLong();
+
+    public MpmcArrayRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int size = 1 << (32 - Integer.numberOfLeadingZeros(capacity - 1));
+        this.mask = size - 1;
+        this.buffer = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return 队列满了返回 false，不会阻塞
+     */
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        long pIndex = producerIndex.get();
+        for (; ; ) {
+            int offset = (int) (pIndex & mask);
+            long diff = sequences.get(offset) - pIndex;
+            if (diff == 0) {
+                if (producerIndex.compareAndSet(pIndex, pIndex + 1)) {
+                    buffer.lazySet(offset, e);
+                    sequences.set(offset, pIndex + 1);
+                    return true;
+                }
+                pIndex = producerIndex.get();
+            } else if (diff < 0) {
+                //槽位上一轮的元素还没有被取走
+                return false;
+            } else {
+                pIndex = producerIndex.get();
+            }
+        }
+    }
+
+    /**
+     * @return 队列为空返回 null
+     */
+    public E poll() {
+        long cIndex = consumerIndex.get();
+        for (; ; ) {
+            int offset = (int) (cIndex & mask);
+            long diff = sequences.get(offset) - (cIndex + 1);
+            if (diff == 0) {
+                if (consumerIndex.compareAndSet(cIndex, cIndex + 1)) {
+                    E e = buffer.get(offset);
+                    buffer.lazySet(offset, null);
+                    //下一轮的生产者可以写这个槽位了
+                    sequences.set(offset, cIndex + mask + 1);
+                    return e;
+                }
+                cIndex = consumerIndex.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                cIndex = consumerIndex.get();
+            }
+        }
+    }
+
+    public int size() {
+        long size = producerIndex.get() - consumerIndex.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    public boolean isEmpty() {
+        return producerIndex.get() == consumerIndex.get();
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
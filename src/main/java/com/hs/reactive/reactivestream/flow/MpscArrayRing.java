@@ -0,0 +1,277 @@
+package com.hs.reactive.reactivestream.flow;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * 有界的 多生产者-单消费者（MPSC）环形数组队列
+ * 1、生产者通过 CAS 抢占 producerIndex 的一个位置，再用 release 语义把元素写进槽位，不加锁
+ * 2、消费者只有一个线程，读取槽位后置空，再推进 consumerIndex
+ * 3、producerIndex、consumerIndex 分别放在用 long 字段填充（padding）隔开的父类里，避免两个热点字段落在同一个缓存行上（伪共享）
+ * 容量会向上取整为 2 的幂，方便用位运算代替取模
+ *
+ * @param <E> 元素类型
+ */
+public class MpscArrayRing<E> extends RingConsumerIndex<E> {
+
+    public MpscArrayRing(int capacity) {
+        super(capacity);
+    }
+
+    /**
+     * 生产者调用，可以多个线程同时调用
+     *
+     * @return 队列满了返回 false，不会阻塞
+     */
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        final long mask = this.mask;
+        long limit = lvProducerLimit();
+        long pIndex;
+        do {
+            pIndex = lvProducerIndex();
+            if (pIndex >= limit) {
+                //缓存的上限用完了，才去读一次消费者的下标，减少对消费者缓存行的争抢
+                limit = lvConsumerIndex() + mask + 1;
+                if (pIndex >= limit) {
+                    return false;
+                }
+                soProducerLimit(limit);
+            }
+        } while (!casProducerIndex(pIndex, pIndex + 1));
+        soElement((int) (pIndex & mask), e);
+        return true;
+    }
+
+    /**
+     * 消费者调用，同一时刻只能有一个线程调用
+     *
+     * @return 队列为空返回 null
+     */
+    public E poll() {
+        final long cIndex = lpConsumerIndex();
+        final int offset = (int) (cIndex & mask);
+        E e = lvElement(offset);
+        if (e == null) {
+            if (cIndex == lvProducerIndex()) {
+                return null;
+            }
+            //生产者已经抢到了位置，但是元素还没写进来，自旋等一下
+            do {
+                Thread.onSpinWait();
+                e = lvElement(offset);
+            } while (e == null);
+        }
+        spElement(offset, null);
+        soConsumerIndex(cIndex + 1);
+        return e;
+    }
+
+    /**
+     * 消费者调用，只看不取
+     */
+    public E peek() {
+        final long cIndex = lpConsumerIndex();
+        final int offset = (int) (cIndex & mask);
+        E e = lvElement(offset);
+        if (e == null && cIndex != lvProducerIndex()) {
+            do {
+                Thread.onSpinWait();
+                e = lvElement(offset);
+            } while (e == null);
+        }
+        return e;
+    }
+
+    /**
+     * 消费者调用，清空队列
+     */
+    public void clear() {
+        while (poll() != null) {
+            //丢弃
+        }
+    }
+
+    /**
+     * 估算值，并发情况下只能作为参考
+     */
+    public int size() {
+        long after = lvConsumerIndex();
+        long size;
+        for (; ; ) {
+            final long before = after;
+            final long pIndex = lvProducerIndex();
+            after = lvConsumerIndex();
+            if (before == after) {
+                size = pIndex - after;
+                break;
+            }
+        }
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    public boolean isEmpty() {
+        return lvConsumerIndex() == lvProducerIndex();
+    }
+
+    public int capacity() {
+        return (int) (mask + 1);
+    }
+}
+
+/**
+ * 数组和掩码，创建后不再改变
+ */
+abstract class RingBuffer<E> {
+    private static final VarHandle ELEMENT = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    final Object[] buffer;
+
+    final long mask;
+
+    RingBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int actual = 1 << (32 - Integer.numberOfLeadingZeros(Math.max(2, capacity) - 1));
+        this.buffer = new Object[actual];
+        this.mask = actual - 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    final E lvElement(int offset) {
+        return (E) ELEMENT.getAcquire(buffer, offset);
+    }
+
+    final void soElement(int offset, E e) {
+        ELEMENT.setRelease(buffer, offset, e);
+    }
+
+    final void spElement(int offset, E e) {
+        ELEMENT.setOpaque(buffer, offset, e);
+    }
+}
+
+abstract class RingPad1<E> extends RingBuffer<E> {
+    long p01, p02, p03, p04, p05, p06, p07;
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+
+    RingPad1(int capacity) {
+        super(capacity);
+    }
+}
+
+abstract class RingProducerIndex<E> extends RingPad1<E> {
+    private static final VarHandle P_INDEX;
+
+    static {
+        try {
+            P_INDEX = MethodHandles.lookup().findVarHandle(RingProducerIndex.class, "producerIndex", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile long producerIndex;
+
+    RingProducerIndex(int capacity) {
+        super(capacity);
+    }
+
+    final long lvProducerIndex() {
+        return producerIndex;
+    }
+
+    final boolean casProducerIndex(long expect, long update) {
+        return P_INDEX.compareAndSet(this, expect, update);
+    }
+}
+
+abstract class RingPad2<E> extends RingProducerIndex<E> {
+    long p01, p02, p03, p04, p05, p06, p07;
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+
+    RingPad2(int capacity) {
+        super(capacity);
+    }
+}
+
+abstract class RingProducerLimit<E> extends RingPad2<E> {
+    private static final VarHandle P_LIMIT;
+
+    static {
+        try {
+            P_LIMIT = MethodHandles.lookup().findVarHandle(RingProducerLimit.class, "producerLimit", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * 生产者缓存的可写上限（consumerIndex + 容量），只有超过它才重新读 consumerIndex
+     */
+    private volatile long producerLimit;
+
+    RingProducerLimit(int capacity) {
+        super(capacity);
+        this.producerLimit = mask + 1;
+    }
+
+    final long lvProducerLimit() {
+        return producerLimit;
+    }
+
+    final void soProducerLimit(long limit) {
+        P_LIMIT.setRelease(this, limit);
+    }
+}
+
+abstract class RingPad3<E> extends RingProducerLimit<E> {
+    long p01, p02, p03, p04, p05, p06, p07;
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+
+    RingPad3(int capacity) {
+        super(capacity);
+    }
+}
+
+abstract class RingConsumerIndexField<E> extends RingPad3<E> {
+    private static final VarHandle C_INDEX;
+
+    static {
+        try {
+            C_INDEX = MethodHandles.lookup().findVarHandle(RingConsumerIndexField.class, "consumerIndex", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile long consumerIndex;
+
+    RingConsumerIndexField(int capacity) {
+        super(capacity);
+    }
+
+    final long lvConsumerIndex() {
+        return consumerIndex;
+    }
+
+    final long lpConsumerIndex() {
+        return (long) C_INDEX.getOpaque(this);
+    }
+
+    final void soConsumerIndex(long index) {
+        C_INDEX.setRelease(this, index);
+    }
+}
+
+abstract class RingConsumerIndex<E> extends RingConsumerIndexField<E> {
+    long p01, p02, p03, p04, p05, p06, p07;
+    long p10, p11, p12, p13, p14, p15, p16, p17;
+
+    RingConsumerIndex(int capacity) {
+        super(capacity);
+    }
+}
@@ -0,0 +1,496 @@
+package com.hs.reactive.reactivestream.flow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiPredicate;
+
+/**
+ * 用来替换 SubmissionPublisher 的发布者
+ * 对外的 submit/offer/close/closeExceptionally 和 SubmissionPublisher 的语义保持一致
+ * <p>
+ * 和 SubmissionPublisher 的区别：
+ * 1、每个订阅者一个 {@link MpscArrayRing}（有界、无锁、多生产者单消费者），生产者之间只 CAS 一个下标，不会像 BufferedSubscription 那样在满的时候进入重试链表
+ * 2、每个订阅者只会有一个消费任务在线程池中运行（wip 计数保证），队列里有数据时消费任务会一直跑完，不会每个元素都切换一次线程
+ * 3、submit 在队列满的时候先自旋，再 yield，最后 park，不依赖 ForkJoinPool 的 ManagedBlocker
+ *
+ * @param <T> 元素类型
+ */
+public class MpscRingPublisher<T> implements Flow.Publisher<T>, AutoCloseable {
+
+    /**
+     * 和 SubmissionPublisher 一样：公共线程池只有一个并行度时，每个任务新起一个线程，避免消费任务互相卡死
+     */
+    private static final Executor ASYNC_POOL = ForkJoinPool.getCommonPoolParallelism() > 1
+            ? ForkJoinPool.commonPool()
+            : task -> new Thread(task).start();
+
+    @SuppressWarnings("rawtypes")
+    private static final RingSubscription[] EMPTY = new RingSubscription[0];
+
+    private final Executor executor;
+
+    private final int maxBufferCapacity;
+
+    /**
+     * 写时复制的订阅者数组，submit 的时候只读一次 volatile 字段，不加锁
+     */
+    @SuppressWarnings("unchecked")
+    private volatile RingSubscription<T>[] subscriptions = EMPTY;
+
+    private volatile boolean closed;
+
+    private volatile Throwable closedException;
+
+    public MpscRingPublisher() {
+        this(ASYNC_POOL, Flow.defaultBufferSize());
+    }
+
+    /**
+     * @param executor          消费任务运行的线程池
+     * @param maxBufferCapacity 每个订阅者的缓冲区大小，会向上取整为 2 的幂
+     */
+    public MpscRingPublisher(Executor executor, int maxBufferCapacity) {
+        if (executor == null) {
+            throw new NullPointerException();
+        }
+        if (maxBufferCapacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.executor = executor;
+        this.maxBufferCapacity = maxBufferCapacity;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException();
+        }
+        RingSubscription<T> subscription = new RingSubscription<>(this, subscriber, maxBufferCapacity);
+        synchronized (this) {
+            for (RingSubscription<T> s : subscriptions) {
+                if (s.subscriber.equals(subscriber)) {
+                    //和 SubmissionPublisher 一样，同一个订阅者不能重复订阅
+                    subscription.error = new IllegalStateException("Duplicate subscribe");
+                    subscription.done = true;
+                    subscription.signal();
+                    return;
+                }
+            }
+            if (closed) {
+                subscription.error = closedException;
+                subscription.done = true;
+            } else {
+                RingSubscription<T>[] current = subscriptions;
+                RingSubscription<T>[] next = Arrays.copyOf(current, current.length + 1);
+                next[current.length] = subscription;
+                subscriptions = next;
+            }
+        }
+        //onSubscribe 也在消费任务里调用，和 SubmissionPublisher 一样是异步的
+        subscription.signal();
+    }
+
+    /**
+     * 发布一个元素给所有订阅者，某个订阅者的缓冲区满了会阻塞等待
+     *
+     * @return 所有订阅者中最大的积压数量（估算值）
+     */
+    public int submit(T item) {
+        return doOffer(item, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * 不阻塞的发布，缓冲区满了会调用 onDrop，onDrop 返回 true 的话会再重试一次
+     *
+     * @return 负数表示被丢弃的次数，否则是最大的积压数量（估算值）
+     */
+    public int offer(T item, BiPredicate<Flow.Subscriber<? super T>, ? super T> onDrop) {
+        return doOffer(item, 0L, onDrop);
+    }
+
+    /**
+     * 最多阻塞 timeout 时间的发布
+     */
+    public int offer(T item, long timeout, TimeUnit unit, BiPredicate<Flow.Subscriber<? super T>, ? super T> onDrop) {
+        return doOffer(item, Math.max(0L, unit.toNanos(timeout)), onDrop);
+    }
+
+    private int doOffer(T item, long nanos, BiPredicate<Flow.Subscriber<? super T>, ? super T> onDrop) {
+        if (item == null) {
+            throw new NullPointerException();
+        }
+        if (closed) {
+            throw new IllegalStateException("Closed");
+        }
+        RingSubscription<T>[] array = subscriptions;
+        int lag = 0;
+        int drops = 0;
+        boolean cleanMe = false;
+        for (RingSubscription<T> s : array) {
+            if (s.cancelled) {
+                cleanMe = true;
+                continue;
+            }
+            boolean offered = s.ring.offer(item);
+            if (!offered && nanos > 0L) {
+                offered = awaitOffer(s, item, nanos);
+            }
+            if (!offered && onDrop != null && onDrop.test(s.subscriber, item)) {
+                //onDrop 返回 true，重试一次
+                offered = s.ring.offer(item);
+            }
+            if (offered) {
+                s.signal();
+                lag = Math.max(lag, s.ring.size());
+            } else {
+                drops++;
+                s.signal();
+            }
+        }
+        if (cleanMe) {
+            removeCancelled();
+        }
+        return drops > 0 ? -drops : lag;
+    }
+
+    /**
+     * 缓冲区满了：先让消费任务跑起来，再逐步退让 自旋 -> yield -> park
+     */
+    private boolean awaitOffer(RingSubscription<T> s, T item, long nanos) {
+        long deadline = nanos == Long.MAX_VALUE ? 0L : System.nanoTime() + nanos;
+        int spins = 0;
+        for (; ; ) {
+            s.signal();
+            if (s.ring.offer(item)) {
+                return true;
+            }
+            if (s.cancelled || s.done) {
+                return false;
+            }
+            if (deadline != 0L && deadline - System.nanoTime() <= 0L) {
+                return false;
+            }
+            if (spins < 64) {
+                Thread.onSpinWait();
+            } else if (spins < 128) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(1_000L);
+            }
+            spins++;
+        }
+    }
+
+    /**
+     * 关闭发布者，订阅者消费完缓冲区中的数据后会收到 onComplete
+     */
+    @Override
+    public void close() {
+        terminate(null);
+    }
+
+    /**
+     * 异常关闭，订阅者会尽快收到 onError，缓冲区中还没消费的数据会被丢弃
+     */
+    public void closeExceptionally(Throwable error) {
+        if (error == null) {
+            throw new NullPointerException();
+        }
+        terminate(error);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void terminate(Throwable error) {
+        RingSubscription<T>[] array;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closedException = error;
+            closed = true;
+            array = subscriptions;
+            subscriptions = EMPTY;
+        }
+        for (RingSubscription<T> s : array) {
+            s.error = error;
+            s.done = true;
+            s.signal();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized void removeCancelled() {
+        RingSubscription<T>[] current = subscriptions;
+        int alive = 0;
+        for (RingSubscription<T> s : current) {
+            if (!s.cancelled) {
+                alive++;
+            }
+        }
+        if (alive == current.length) {
+            return;
+        }
+        RingSubscription<T>[] next = alive == 0 ? EMPTY : new RingSubscription[alive];
+        int i = 0;
+        for (RingSubscription<T> s : current) {
+            if (!s.cancelled) {
+                next[i++] = s;
+            }
+        }
+        subscriptions = next;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public Throwable getClosedException() {
+        return closedException;
+    }
+
+    public boolean hasSubscribers() {
+        return getNumberOfSubscribers() > 0;
+    }
+
+    public int getNumberOfSubscribers() {
+        int n = 0;
+        for (RingSubscription<T> s : subscriptions) {
+            if (!s.cancelled) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    public List<Flow.Subscriber<? super T>> getSubscribers() {
+        List<Flow.Subscriber<? super T>> list = new ArrayList<>();
+        for (RingSubscription<T> s : subscriptions) {
+            if (!s.cancelled) {
+                list.add(s.subscriber);
+            }
+        }
+        return list;
+    }
+
+    public boolean isSubscribed(Flow.Subscriber<? super T> subscriber) {
+        for (RingSubscription<T> s : subscriptions) {
+            if (!s.cancelled && s.subscriber.equals(subscriber)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 所有订阅者中，已经发布但还没被消费的最大数量
+     */
+    public int estimateMaximumLag() {
+        int lag = 0;
+        for (RingSubscription<T> s : subscriptions) {
+            lag = Math.max(lag, s.ring.size());
+        }
+        return lag;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public int getMaxBufferCapacity() {
+        return maxBufferCapacity;
+    }
+
+    /**
+     * 发布者和一个订阅者之间的绑定关系，同时也是这个订阅者的消费任务
+     */
+    static final class RingSubscription<T> implements Flow.Subscription, Runnable {
+
+        final MpscRingPublisher<T> parent;
+
+        final Flow.Subscriber<? super T> subscriber;
+
+        final MpscArrayRing<T> ring;
+
+        /**
+         * 订阅者请求的数量
+         */
+        final AtomicLong requested = new AtomicLong();
+
+        /**
+         * 消费任务的调度计数，从 0 变成 1 的线程负责把任务丢进线程池
+         */
+        final AtomicInteger wip = new AtomicInteger();
+
+        volatile boolean done;
+
+        volatile Throwable error;
+
+        volatile boolean cancelled;
+
+        /**
+         * 只在消费任务中读写
+         */
+        boolean subscribed;
+
+        boolean terminated;
+
+        RingSubscription(MpscRingPublisher<T> parent, Flow.Subscriber<? super T> subscriber, int capacity) {
+            this.parent = parent;
+            this.subscriber = subscriber;
+            this.ring = new MpscArrayRing<>(capacity);
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0L) {
+                //规范 3.9：request 的数量必须大于 0
+                error = new IllegalArgumentException("non-positive subscription request");
+                done = true;
+                signal();
+                return;
+            }
+            long current;
+            long next;
+            do {
+                current = requested.get();
+                if (current == Long.MAX_VALUE) {
+                    return;
+                }
+                next = current + n;
+                if (next < 0L) {
+                    next = Long.MAX_VALUE;
+                }
+            } while (!requested.compareAndSet(current, next));
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                signal();
+                parent.removeCancelled();
+            }
+        }
+
+        void signal() {
+            if (wip.getAndIncrement() == 0) {
+                try {
+                    parent.executor.execute(this);
+                } catch (RuntimeException | Error ex) {
+                    wip.set(0);
+                    cancelled = true;
+                    throw ex;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            final Flow.Subscriber<? super T> a = subscriber;
+            final MpscArrayRing<T> q = ring;
+            for (; ; ) {
+                if (terminated) {
+                    q.clear();
+                } else {
+                    if (!subscribed) {
+                        subscribed = true;
+                        try {
+                            a.onSubscribe(this);
+                        } catch (Throwable ex) {
+                            fail(ex);
+                        }
+                    }
+                    drain(a, q);
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    break;
+                }
+            }
+        }
+
+        private void drain(Flow.Subscriber<? super T> a, MpscArrayRing<T> q) {
+            long r = requested.get();
+            long e = 0L;
+            for (; ; ) {
+                if (cancelled) {
+                    terminated = true;
+                    q.clear();
+                    return;
+                }
+                boolean d = done;
+                Throwable ex = error;
+                if (d && ex != null) {
+                    fail(ex);
+                    return;
+                }
+                if (e == r) {
+                    if (d && q.isEmpty()) {
+                        complete();
+                    }
+                    break;
+                }
+                T v = q.poll();
+                if (v == null) {
+                    if (d) {
+                        complete();
+                    }
+                    break;
+                }
+                try {
+                    a.onNext(v);
+                } catch (Throwable t) {
+                    //和 SubmissionPublisher 一样：onNext 抛出异常会取消订阅并回调 onError
+                    fail(t);
+                    return;
+                }
+                e++;
+                if (e == r) {
+                    //消费过程中订阅者可能又 request 了，重新读一次，尽量在一个任务里多消费
+                    if (r != Long.MAX_VALUE) {
+                        r = requested.addAndGet(-e);
+                        e = 0L;
+                    } else {
+                        e = 0L;
+                    }
+                }
+            }
+            if (e != 0L && r != Long.MAX_VALUE) {
+                requested.addAndGet(-e);
+            }
+        }
+
+        private void complete() {
+            terminated = true;
+            try {
+                subscriber.onComplete();
+            } catch (Throwable ignore) {
+                //和 SubmissionPublisher 一样，忽略订阅者自己抛出的异常
+            }
+        }
+
+        private void fail(Throwable ex) {
+            terminated = true;
+            if (!cancelled) {
+                cancelled = true;
+                parent.removeCancelled();
+            }
+            ring.clear();
+            try {
+                subscriber.onError(ex);
+            } catch (Throwable ignore) {
+                //忽略
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.hs.reactive.reactivestream.flow;
+
+/**
+ * 处理链中某一级的统计快照
+ *
+ * @param name       名称
+ * @param type       map / filter / async
+ * @param queueDepth 当前积压在这一级队列中的元素个数，融合的同步处理器没有队列，始终为 0
+ * @param received   收到的元素个数
+ * @param emitted    发给下游的元素个数
+ */
+public record StageStats(String name, String type, int queueDepth, long received, long emitted) {
+}
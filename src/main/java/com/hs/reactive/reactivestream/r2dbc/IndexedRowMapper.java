@@ -0,0 +1,76 @@
+package com.hs.reactive.reactivestream.r2dbc;
+
+import io.r2dbc.spi.ColumnMetadata;
+import io.r2dbc.spi.Result;
+import io.r2dbc.spi.RowMetadata;
+import org.reactivestreams.Publisher;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * 按下标取列的行映射器
+ * R2DbcDemo 中每一行都 readable.get("id", Long.class)，每取一列都要按列名查找一次
+ * 这里每个 Result 只在第一行根据 RowMetadata 把列名解析成下标，后面的行直接按下标取值
+ *
+ * @param <T> 映射结果类型
+ */
+public final class IndexedRowMapper<T> {
+
+    private final String[] columns;
+
+    private final Function<RowReader, ? extends T> mapper;
+
+    private IndexedRowMapper(String[] columns, Function<RowReader, ? extends T> mapper) {
+        this.columns = columns;
+        this.mapper = mapper;
+    }
+
+    /**
+     * @param mapper  用 RowReader 按 columns 的顺序取值
+     * @param columns 需要的列名，不区分大小写
+     */
+    public static <T> IndexedRowMapper<T> of(Function<RowReader, ? extends T> mapper, String... columns) {
+        return new IndexedRowMapper<>(columns.clone(), mapper);
+    }
+
+    /**
+     * 映射一个 Result 的所有行，适合作为 flatMap/concatMap 的参数
+     */
+    public Publisher<T> map(Result result) {
+        PerResult perResult = new PerResult();
+        return result.map((row, metadata) -> mapper.apply(perResult.reader(metadata).at(row)));
+    }
+
+    /**
+     * 一个 Result 的状态，只被这个 Result 的映射回调串行访问
+     */
+    private final class PerResult {
+        RowReader reader;
+
+        RowReader reader(RowMetadata metadata) {
+            if (reader == null) {
+                reader = new RowReader(resolve(metadata));
+            }
+            return reader;
+        }
+    }
+
+    private int[] resolve(RowMetadata metadata) {
+        List<? extends ColumnMetadata> columnMetadatas = metadata.getColumnMetadatas();
+        int[] indexes = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            indexes[i] = -1;
+            for (int j = 0; j < columnMetadatas.size(); j++) {
+                if (columnMetadatas.get(j).getName().equalsIgnoreCase(columns[i])) {
+                    indexes[i] = j;
+                    break;
+                }
+            }
+            if (indexes[i] < 0) {
+                throw new IllegalArgumentException("column '" + columns[i] + "' not found in " + columnMetadatas);
+            }
+        }
+        return indexes;
+    }
+}
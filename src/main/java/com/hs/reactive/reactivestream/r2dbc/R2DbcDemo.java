@@ -1,35 +1,67 @@
 package com.hs.reactive.reactivestream.r2dbc;
 
+import com.hs.reactive.reactivestream.reactor.AdaptiveLimiter;
+import com.hs.reactive.reactivestream.reactor.AsyncCache;
 import io.asyncer.r2dbc.mysql.MySqlConnectionConfiguration;
 import io.asyncer.r2dbc.mysql.MySqlConnectionFactory;
+import io.r2dbc.pool.ConnectionPool;
 import io.r2dbc.spi.ConnectionFactory;
-import reactor.core.publisher.Mono;
+import reactor.core.publisher.Flux;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
 
 public class R2DbcDemo {
 
     public static void main(String[] args) throws IOException {
         //1.获取连接
-        MySqlConnectionConfiguration mySqlConnectionConfiguration = MySqlConnectionConfiguration.builder().host("xxx").port(3306).username("root").database("xxx").password("xx").build();
+        MySqlConnectionConfiguration mySqlConnectionConfiguration = MySqlConnectionConfiguration.builder().host("xxx").port(3306).username("root").database("xxx").password("xx")
+                //使用服务端预编译，每个连接缓存 256 条预编译语句
+                .useServerPrepareStatement()
+                .prepareCacheSize(256)
+                .build();
         ConnectionFactory connectionFactory = MySqlConnectionFactory.from(mySqlConnectionConfiguration);
 
         //2.获取连接
-        Mono.from(connectionFactory.create()).flatMapMany(connection -> connection.createStatement("select * from system_users where id in(1,117)").execute()).flatMap(result -> result.map(readable -> new User(readable.get("id", Long.class), readable.get("nickname", String.class)))).subscribe(user -> {
-            System.out.println(user.id);
-            System.out.println(user.nickname);
-        });
-        System.in.read();
-    }
+        //每次 connectionFactory.create() 都会新建一个连接（一次握手），并且用完没有关闭，连接会泄漏
+//        Mono.from(connectionFactory.create()).flatMapMany(connection -> connection.createStatement("select * from system_users where id in(1,117)").execute()).flatMap(result -> result.map(readable -> new User(readable.get("id", Long.class), readable.get("nickname", String.class)))).subscribe(user -> {
+//            System.out.println(user.id);
+//            System.out.println(user.nickname);
+//        });
+        //改为从连接池获取连接：预热 2 个，最多 10 个，空闲 30 分钟清理，获取连接最多等 3 秒
+        ConnectionPool pool = UserRepository.createPool(connectionFactory, 2, 10, Duration.ofMinutes(30), Duration.ofSeconds(3));
+        UserRepository userRepository = new UserRepository(pool);
+        userRepository.warmup()
+                .thenMany(userRepository.findByIds(List.of(1L, 117L)))
+                .subscribe(user -> {
+                    System.out.println(user.id);
+                    System.out.println(user.nickname);
+                });
 
-    static class User {
-        Long id;
+        //3.很多并发请求各自只查一两个用户时，用批量加载器合并成一条 in 查询：最多等 5ms，或者攒够 128 个 id 就查询
+        UserBatchLoader userBatchLoader = new UserBatchLoader(userRepository, Duration.ofMillis(5), 128);
+        Flux.range(0, 1000)
+                .flatMap(i -> userBatchLoader.load(i % 2 == 0 ? 1L : 117L))
+                .count()
+                .subscribe(count -> System.out.println("查到" + count + "个用户，实际查询了" + userBatchLoader.queryCount() + "次数据库"));
 
-        String nickname;
-
-        public User(Long id, String nickname) {
-            this.id = id;
-            this.nickname = nickname;
-        }
+        //4.flatMap 默认最多同时 256 个查询，高峰时远远超过连接池的 10 个连接，多出来的都在连接池里排队；空闲时又用不满
+        //改为按观察到的 RTT 自动调整并发数：从 4 开始，最少 1 个，最多 64 个
+        AdaptiveLimiter limiter = new AdaptiveLimiter(4, 1, 64);
+        Flux.range(0, 1000)
+//                .flatMap(i -> userRepository.findById(i % 2 == 0 ? 1L : 117L))
+                .transform(limiter.flatMap(i -> userRepository.findById(i % 2 == 0 ? 1L : 117L)))
+                .count()
+                .subscribe(count -> System.out.println("查到" + count + "个用户，当前并发上限" + limiter.limit()
+                        + "，RTT " + limiter.rtt().snapshot()));
+        //5.同一个热点用户被 1000 个请求同时查询：按 id 缓存，正在查询的 id 合并成一次查询，最多缓存 10000 个用户，1 分钟过期，50 秒后提前刷新
+        AsyncCache<Long, User> userCache = new AsyncCache<>(10_000, Duration.ofMinutes(1), Duration.ofSeconds(50), userRepository::findById);
+        Flux.range(0, 1000)
+                .flatMap(i -> userCache.get(1L))
+                .count()
+                .subscribe(count -> System.out.println("查到" + count + "个用户，" + userCache.stats()));
+        System.in.read();
+        userRepository.dispose();
     }
 }
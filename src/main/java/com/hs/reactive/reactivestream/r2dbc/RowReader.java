@@ -0,0 +1,59 @@
+package com.hs.reactive.reactivestream.r2dbc;
+
+import io.r2dbc.spi.Row;
+
+/**
+ * 一行数据的只读视图（享元）
+ * 同一个 Result 的所有行复用同一个 RowReader，只是切换指向的 Row，列名到下标的解析只在第一行做一次
+ * 列用 {@link IndexedRowMapper} 声明时的顺序（0,1,2...）访问，不再按列名查找
+ * <p>
+ * 注意：只能在映射函数里使用，不能保存起来；R2DBC 的 Row.get 本身返回包装类型，这里拿到后立即拆箱，
+ * 调用方拿到的是基本类型，不会再产生第二次装箱
+ */
+public final class RowReader {
+
+    private final int[] indexes;
+
+    private Row row;
+
+    RowReader(int[] indexes) {
+        this.indexes = indexes;
+    }
+
+    RowReader at(Row row) {
+        this.row = row;
+        return this;
+    }
+
+    public boolean isNull(int column) {
+        return row.get(indexes[column]) == null;
+    }
+
+    public long getLong(int column) {
+        Object value = row.get(indexes[column]);
+        return value == null ? 0L : ((Number) value).longValue();
+    }
+
+    public int getInt(int column) {
+        Object value = row.get(indexes[column]);
+        return value == null ? 0 : ((Number) value).intValue();
+    }
+
+    public double getDouble(int column) {
+        Object value = row.get(indexes[column]);
+        return value == null ? 0D : ((Number) value).doubleValue();
+    }
+
+    public boolean getBoolean(int column) {
+        Boolean value = row.get(indexes[column], Boolean.class);
+        return value != null && value;
+    }
+
+    public String getString(int column) {
+        return row.get(indexes[column], String.class);
+    }
+
+    public <T> T get(int column, Class<T> type) {
+        return row.get(indexes[column], type);
+    }
+}
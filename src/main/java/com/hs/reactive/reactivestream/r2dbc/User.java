@@ -0,0 +1,29 @@
+package com.hs.reactive.reactivestream.r2dbc;
+
+/**
+ * system_users 表中的用户
+ */
+public class User {
+
+    long id;
+
+    String nickname;
+
+    public User(long id, String nickname) {
+        this.id = id;
+        this.nickname = nickname;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getNickname() {
+        return nickname;
+    }
+
+    @Override
+    public String toString() {
+        return "User{id=" + id + ", nickname='" + nickname + "'}";
+    }
+}
@@ -0,0 +1,174 @@
+package com.hs.reactive.reactivestream.r2dbc;
+
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 批量加载器（DataLoader 的思路）
+ * 很多并发请求各自查一两个用户时，先把 id 攒起来：
+ * 1、攒够 maxBatchSize 个，或者第一个 id 到达后过了 window 时间，就发出一条 where id in (...) 查询
+ * 2、查询结果按 id 分发回每个等待中的 Mono，没查到的 id 返回空
+ * 3、同一个 id 在查询结束之前再次被请求，直接复用同一个 Mono，不会重复查询
+ */
+public class UserBatchLoader {
+
+    private final UserRepository repository;
+
+    private final long windowNanos;
+
+    private final int maxBatchSize;
+
+    private final Scheduler scheduler;
+
+    /**
+     * 已经在批次中（等待发出或者正在查询）的 id
+     */
+    private final ConcurrentHashMap<Long, Mono<User>> inFlight = new ConcurrentHashMap<>();
+
+    private final Object lock = new Object();
+
+    /**
+     * 当前正在攒的批次，由 lock 保护
+     */
+    private Map<Long, Sinks.One<User>> batch = new HashMap<>();
+
+    private Disposable timer;
+
+    private final LongAdder requested = new LongAdder();
+
+    private final LongAdder deduplicated = new LongAdder();
+
+    private final LongAdder queries = new LongAdder();
+
+    public UserBatchLoader(UserRepository repository, Duration window, int maxBatchSize) {
+        this(repository, window, maxBatchSize, Schedulers.parallel());
+    }
+
+    public UserBatchLoader(UserRepository repository, Duration window, int maxBatchSize, Scheduler scheduler) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+        this.repository = repository;
+        this.windowNanos = window.toNanos();
+        this.maxBatchSize = maxBatchSize;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * 加载一个用户，订阅时才会加入批次
+     */
+    public Mono<User> load(long id) {
+        return Mono.defer(() -> register(id));
+    }
+
+    private Mono<User> register(long id) {
+        requested.increment();
+        Mono<User> existing = inFlight.get(id);
+        if (existing != null) {
+            deduplicated.increment();
+            return existing;
+        }
+        Map<Long, Sinks.One<User>> full = null;
+        Mono<User> mono;
+        synchronized (lock) {
+            existing = inFlight.get(id);
+            if (existing != null) {
+                deduplicated.increment();
+                return existing;
+            }
+            Sinks.One<User> sink = Sinks.one();
+            mono = sink.asMono();
+            inFlight.put(id, mono);
+            batch.put(id, sink);
+            if (batch.size() >= maxBatchSize) {
+                full = takeBatch();
+            } else if (batch.size() == 1) {
+                //批次中的第一个 id，开始计时
+                timer = scheduler.schedule(this::flush, windowNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (full != null) {
+            dispatch(full);
+        }
+        return mono;
+    }
+
+    /**
+     * 立即发出当前攒下的批次
+     */
+    public void flush() {
+        Map<Long, Sinks.One<User>> toDispatch;
+        synchronized (lock) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            toDispatch = takeBatch();
+        }
+        dispatch(toDispatch);
+    }
+
+    /**
+     * 调用方持有 lock
+     */
+    private Map<Long, Sinks.One<User>> takeBatch() {
+        Map<Long, Sinks.One<User>> taken = batch;
+        batch = new HashMap<>();
+        if (timer != null) {
+            timer.dispose();
+            timer = null;
+        }
+        return taken;
+    }
+
+    private void dispatch(Map<Long, Sinks.One<User>> sinks) {
+        queries.increment();
+        repository.findByIds(sinks.keySet())
+                .subscribe(user -> {
+                            Sinks.One<User> sink = sinks.remove(user.getId());
+                            if (sink != null) {
+                                inFlight.remove(user.getId());
+                                sink.tryEmitValue(user);
+                            }
+                        },
+                        error -> sinks.forEach((id, sink) -> {
+                            inFlight.remove(id);
+                            sink.tryEmitError(error);
+                        }),
+                        //剩下的就是没查到的 id
+                        () -> sinks.forEach((id, sink) -> {
+                            inFlight.remove(id);
+                            sink.tryEmitEmpty();
+                        }));
+    }
+
+    /**
+     * 调用 load 的次数
+     */
+    public long requestedCount() {
+        return requested.sum();
+    }
+
+    /**
+     * 因为 id 已经在查询中而被合并的次数
+     */
+    public long deduplicatedCount() {
+        return deduplicated.sum();
+    }
+
+    /**
+     * 实际发出的查询次数
+     */
+    public long queryCount() {
+        return queries.sum();
+    }
+}
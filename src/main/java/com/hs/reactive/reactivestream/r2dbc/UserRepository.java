@@ -0,0 +1,191 @@
+package com.hs.reactive.reactivestream.r2dbc;
+
+import com.hs.reactive.reactivestream.webflux.R;
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.pool.ConnectionPoolConfiguration;
+import io.r2dbc.pool.PoolMetrics;
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.Statement;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * system_users 的响应式查询
+ * 和 R2DbcDemo 中直接 connectionFactory.create() 的区别：
+ * 1、连接来自有界的连接池（r2dbc-pool），启动时预热，空闲超时的连接会被后台清理，获取连接有超时时间，用完归还而不是泄漏
+ * 2、SQL 使用参数绑定，不再拼接字符串
+ * 3、IN 列表的长度按 2 的幂分桶（不够的用最后一个 id 补齐），同一个桶的 SQL 文本完全一样，
+ * 所以驱动里每个连接的预编译语句缓存（MySQL 的 useServerPrepareStatement + prepareCacheSize）最多只需要缓存 9 条语句，命中率很高
+ */
+public class UserRepository implements Disposable {
+
+    /**
+     * 单条 SQL 中 IN 列表的最大长度，超过的会拆成多次查询，在同一个连接上执行
+     */
+    static final int MAX_IN_SIZE = 256;
+
+    /**
+     * 列名只在每个 Result 的第一行解析一次
+     */
+    static final IndexedRowMapper<User> USER_MAPPER = IndexedRowMapper.of(row -> new User(row.getLong(0), row.getString(1)), "id", "nickname");
+
+    static final String SELECT_ALL = "select id, nickname from system_users order by id";
+
+    private final ConnectionPool pool;
+
+    /**
+     * 下标 i 对应 IN 列表长度为 2^i 的 SQL
+     */
+    private final String[] inQueries;
+
+    public UserRepository(ConnectionPool pool) {
+        this.pool = pool;
+        this.inQueries = buildInQueries(usesQuestionMarks(pool));
+    }
+
+    /**
+     * 创建连接池
+     *
+     * @param factory        数据库驱动的连接工厂
+     * @param initialSize    预热时创建的连接数
+     * @param maxSize        最大连接数
+     * @param maxIdleTime    连接空闲超过这个时间会被清理
+     * @param maxAcquireTime 获取连接的超时时间
+     */
+    public static ConnectionPool createPool(ConnectionFactory factory, int initialSize, int maxSize,
+                                            Duration maxIdleTime, Duration maxAcquireTime) {
+        ConnectionPoolConfiguration configuration = ConnectionPoolConfiguration.builder(factory)
+                .name("system-users")
+                .initialSize(initialSize)
+                .maxSize(maxSize)
+                .maxIdleTime(maxIdleTime)
+                .backgroundEvictionInterval(maxIdleTime.dividedBy(2))
+                .maxAcquireTime(maxAcquireTime)
+                .build();
+        return new ConnectionPool(configuration);
+    }
+
+    /**
+     * 预热连接池，提前建立 initialSize 个连接
+     *
+     * @return 创建的连接数
+     */
+    public Mono<Integer> warmup() {
+        return pool.warmup();
+    }
+
+    public Mono<User> findById(long id) {
+        return findByIds(List.of(id)).next();
+    }
+
+    /**
+     * 根据 id 批量查询，重复的 id 只查一次
+     */
+    public Flux<User> findByIds(Collection<Long> ids) {
+        long[] distinct = ids.stream().mapToLong(Long::longValue).distinct().toArray();
+        if (distinct.length == 0) {
+            return Flux.empty();
+        }
+        List<long[]> chunks = new ArrayList<>();
+        for (int from = 0; from < distinct.length; from += MAX_IN_SIZE) {
+            int to = Math.min(distinct.length, from + MAX_IN_SIZE);
+            long[] chunk = new long[to - from];
+            System.arraycopy(distinct, from, chunk, 0, chunk.length);
+            chunks.add(chunk);
+        }
+        //usingWhen：用完之后 close，连接会归还给连接池
+        return Flux.usingWhen(pool.create(),
+                connection -> Flux.fromIterable(chunks).concatMap(chunk -> query(connection, chunk)),
+                Connection::close);
+    }
+
+    private Flux<User> query(Connection connection, long[] ids) {
+        int bucket = bucketIndex(ids.length);
+        int size = 1 << bucket;
+        Statement statement = connection.createStatement(inQueries[bucket]);
+        for (int i = 0; i < size; i++) {
+            statement.bind(i, ids[Math.min(i, ids.length - 1)]);
+        }
+        return Flux.from(statement.execute())
+                .concatMap(USER_MAPPER::map);
+    }
+
+    /**
+     * 流式导出全表，不会把结果全部放进内存
+     * fetchSize 提示驱动每次从数据库取多少行，limitRate 保证下游每次只向上游要这么多，
+     * 下游处理得慢，上游就不再读取，内存占用只和 fetchSize 有关，和总行数无关
+     */
+    public Flux<User> streamAll(int fetchSize) {
+        return Flux.usingWhen(pool.create(),
+                        connection -> Flux.from(connection.createStatement(SELECT_ALL).fetchSize(fetchSize).execute())
+                                .concatMap(USER_MAPPER::map),
+                        Connection::close)
+                .limitRate(fetchSize);
+    }
+
+    /**
+     * 流式导出全表，每 pageSize 行包装成一个 R 分页
+     */
+    public Flux<R<List<User>>> streamPages(int pageSize) {
+        return streamAll(pageSize)
+                .buffer(pageSize)
+                .map(R::ok);
+    }
+
+    /**
+     * 连接池的统计：已分配、已借出、空闲、等待获取的连接数
+     */
+    public Optional<PoolMetrics> poolMetrics() {
+        return pool.getMetrics();
+    }
+
+    @Override
+    public void dispose() {
+        pool.dispose();
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return pool.isDisposed();
+    }
+
+    /**
+     * 大于等于 n 的最小的 2 的幂的指数
+     */
+    static int bucketIndex(int n) {
+        return n <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(n - 1);
+    }
+
+    /**
+     * MySQL/MariaDB 的占位符是 ?，H2/Postgres 等是 $1、$2
+     */
+    private static boolean usesQuestionMarks(ConnectionFactory factory) {
+        String name = factory.getMetadata().getName().toLowerCase(Locale.ROOT);
+        return name.contains("mysql") || name.contains("mariadb");
+    }
+
+    private static String[] buildInQueries(boolean questionMarks) {
+        String[] queries = new String[bucketIndex(MAX_IN_SIZE) + 1];
+        for (int bucket = 0; bucket < queries.length; bucket++) {
+            int size = 1 << bucket;
+            StringBuilder sql = new StringBuilder("select id, nickname from system_users where id in (");
+            for (int i = 0; i < size; i++) {
+                if (i > 0) {
+                    sql.append(", ");
+                }
+                sql.append(questionMarks ? "?" : "$" + (i + 1));
+            }
+            queries[bucket] = sql.append(')').toString();
+        }
+        return queries;
+    }
+}
@@ -0,0 +1,49 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import com.hs.reactive.reactivestream.flow.DemandController;
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.BaseSubscriber;
+
+/**
+ * 按批次请求数据的 BaseSubscriber
+ * 子类实现 hookOnValue 即可，不需要在每个元素之后 request(1)，请求多少由 {@link DemandController} 决定
+ * 子类重写 hookOnSubscribe 时要调用 super.hookOnSubscribe，否则不会发出第一次请求
+ *
+ * @param <T> 元素类型
+ */
+public abstract class AdaptiveDemandBaseSubscriber<T> extends BaseSubscriber<T> {
+
+    private final DemandController controller;
+
+    protected AdaptiveDemandBaseSubscriber() {
+        this(DemandController.defaults());
+    }
+
+    protected AdaptiveDemandBaseSubscriber(DemandController controller) {
+        this.controller = controller;
+    }
+
+    @Override
+    protected void hookOnSubscribe(Subscription subscription) {
+        request(controller.initialRequest());
+    }
+
+    @Override
+    protected final void hookOnNext(T value) {
+        long start = System.nanoTime();
+        hookOnValue(value);
+        long n = controller.afterItem(start);
+        if (n > 0 && !isDisposed()) {
+            request(n);
+        }
+    }
+
+    /**
+     * 收到下一个元素时触发
+     */
+    protected abstract void hookOnValue(T value);
+
+    protected DemandController demandController() {
+        return controller;
+    }
+}
@@ -0,0 +1,382 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Operators;
+import reactor.util.context.Context;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * 自适应并发限制，用法：flux.transform(limiter.flatMap(mapper))，替代 flatMap 默认的 256 并发
+ * 并发上限按 TCP Vegas 的思路根据观察到的 RTT 调整：
+ * 1、记录没有排队时的 RTT（minRtt，窗口内最小的 RTT）
+ * 2、每过一个 RTT 用这段时间的平均 RTT 估算下游的排队长度 queue = limit * (1 - minRtt / rtt)，排队很少就加大上限，排队多了就减小上限
+ * 3、这段时间内有调用因为超载失败（默认是超时）时上限直接减半
+ * 4、每隔一段时间把并发减半一个窗口，重新测 minRtt，数据库的基准延迟变了也能跟上
+ * 并发数达到上限时，新的内部订阅在队列中排队，有调用结束或者上限变大时按先来后到开始；RTT 从真正开始调用算起，不包括排队的时间
+ * 上游的请求量由 flatMap 的 concurrency = maxLimit 限制，所以排队的内部订阅最多 maxLimit 个
+ */
+public final class AdaptiveLimiter {
+
+    /**
+     * 每个窗口至少有这么多个样本才调整上限
+     */
+    static final int MIN_WINDOW_SAMPLES = 10;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final int probeInterval;
+
+    private final Predicate<? super Throwable> isOverload;
+
+    private volatile int limit;
+
+    /**
+     * 以下字段由 this 的锁保护，只在调用结束时更新
+     */
+    private double estimatedLimit;
+
+    private long minRttNanos;
+
+    private long samples;
+
+    private long windowStartNanos = System.nanoTime();
+
+    private int windowSamples;
+
+    private long windowRttSum;
+
+    private boolean windowOverload;
+
+    private int windowMaxInFlight;
+
+    private long windowMinRtt;
+
+    private boolean probing;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final ConcurrentLinkedQueue<Call<?>> waiters = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicInteger wip = new AtomicInteger();
+
+    private final BucketHistogram rtt = new BucketHistogram();
+
+    private final LongAdder overloads = new LongAdder();
+
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this(initialLimit, minLimit, maxLimit, 1000, t -> t instanceof TimeoutException);
+    }
+
+    /**
+     * @param initialLimit  初始并发上限
+     * @param minLimit      并发上限最小是多少
+     * @param maxLimit      并发上限最大是多少，也是 flatMap 的 concurrency
+     * @param probeInterval 大约每多少次调用重新测一次 minRtt
+     * @param isOverload    哪些异常说明下游超载了，比如超时；参数错误之类的异常不应该减小上限
+     */
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, int probeInterval,
+                           Predicate<? super Throwable> isOverload) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Limits must satisfy 1 <= minLimit <= initialLimit <= maxLimit");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.probeInterval = probeInterval;
+        this.isOverload = isOverload;
+        this.limit = initialLimit;
+        this.estimatedLimit = initialLimit;
+    }
+
+    /**
+     * 并发数受限的 flatMap
+     */
+    public <T, R> Function<Flux<T>, Flux<R>> flatMap(Function<? super T, ? extends Publisher<? extends R>> mapper) {
+        return flux -> flux.flatMap(item -> limit(mapper.apply(item)), maxLimit);
+    }
+
+    /**
+     * 订阅返回的 Flux 时，并发数没有达到上限就马上订阅 call，否则排队
+     */
+    public <R> Flux<R> limit(Publisher<? extends R> call) {
+        return new Flux<R>() {
+            @Override
+            public void subscribe(CoreSubscriber<? super R> actual) {
+                Call<R> c = new Call<>(actual, call);
+                actual.onSubscribe(c);
+                if (tryAcquire()) {
+                    c.start();
+                } else {
+                    c.queueState = Call.QUEUED;
+                    queued.incrementAndGet();
+                    waiters.offer(c);
+                    //入队之后再检查一次，期间可能有调用结束了
+                    drainWaiters();
+                }
+            }
+        };
+    }
+
+    private boolean tryAcquire() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * 只有一个线程在取排队的调用，先看队头再申请许可，不会出现申请到了许可队列却空了的情况
+     */
+    private void drainWaiters() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        for (; ; ) {
+            for (; ; ) {
+                Call<?> c = waiters.peek();
+                if (c == null) {
+                    break;
+                }
+                if (c.queueState != Call.QUEUED) {
+                    //排队时被取消了，cancel 已经把它从 queued 中减掉了
+                    waiters.poll();
+                    continue;
+                }
+                if (!tryAcquire()) {
+                    break;
+                }
+                waiters.poll();
+                if (Call.QUEUE_STATE.compareAndSet(c, Call.QUEUED, Call.DEQUEUED)) {
+                    queued.decrementAndGet();
+                    c.start();
+                } else {
+                    //申请许可的时候被取消了，许可还回去
+                    inFlight.decrementAndGet();
+                }
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+
+    void release(long startNanos, Throwable error, boolean cancelled) {
+        inFlight.decrementAndGet();
+        if (!cancelled) {
+            sample(System.nanoTime() - startNanos, error != null && isOverload.test(error));
+        }
+        if (!waiters.isEmpty()) {
+            drainWaiters();
+        }
+    }
+
+    private void sample(long rttNanos, boolean overload) {
+        rtt.record(rttNanos);
+        if (overload) {
+            overloads.increment();
+        }
+        synchronized (this) {
+            if (minRttNanos == 0 || rttNanos < minRttNanos) {
+                minRttNanos = rttNanos;
+            }
+            windowSamples++;
+            windowRttSum += rttNanos;
+            windowMinRtt = windowMinRtt == 0 ? rttNanos : Math.min(windowMinRtt, rttNanos);
+            windowOverload |= overload;
+            windowMaxInFlight = Math.max(windowMaxInFlight, inFlight.get() + 1);
+            long now = System.nanoTime();
+            //每个样本都调整的话，一个 RTT 内所有调用都按同样的信号调整一次，上限会大幅振荡；攒够一个 RTT 的样本再调整一次
+            if (windowSamples < MIN_WINDOW_SAMPLES || now - windowStartNanos < minRttNanos) {
+                return;
+            }
+            long avgRtt = windowRttSum / windowSamples;
+            int samplesInWindow = windowSamples;
+            long minRttInWindow = windowMinRtt;
+            boolean windowOverloaded = windowOverload;
+            int maxInFlight = windowMaxInFlight;
+            windowStartNanos = now;
+            windowSamples = 0;
+            windowRttSum = 0;
+            windowMinRtt = 0;
+            windowOverload = false;
+            windowMaxInFlight = 0;
+
+            if (probing) {
+                //并发减半之后下游基本不排队，这个窗口的最小 RTT 作为新的 minRtt，然后恢复上限
+                probing = false;
+                minRttNanos = minRttInWindow;
+                limit = (int) estimatedLimit;
+                return;
+            }
+            samples += samplesInWindow;
+            if (samples >= probeInterval) {
+                //minRtt 只会变小，数据库的基准延迟变大之后会一直以为在排队；定期把并发减半一个窗口，重新测一次
+                samples = 0;
+                probing = true;
+                limit = Math.max(minLimit, (int) estimatedLimit / 2);
+                return;
+            }
+            double current = estimatedLimit;
+            double log = Math.max(1, Math.log10(current));
+            double next;
+            if (windowOverloaded) {
+                next = current / 2;
+            } else if (maxInFlight * 2 < current) {
+                //并发数还不到上限的一半，是调用方自己没有那么多请求，RTT 说明不了下游的情况
+                return;
+            } else {
+                double queue = current * (1 - (double) minRttNanos / avgRtt);
+                if (queue <= log) {
+                    next = current + 6 * log;
+                } else if (queue < 3 * log) {
+                    next = current + log;
+                } else if (queue > 6 * log) {
+                    next = current - log;
+                } else {
+                    return;
+                }
+            }
+            estimatedLimit = Math.max(minLimit, Math.min(maxLimit, next));
+            limit = (int) estimatedLimit;
+        }
+    }
+
+    /**
+     * 当前的并发上限
+     */
+    public int limit() {
+        return limit;
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * 正在排队的内部订阅数
+     */
+    public int queued() {
+        return queued.get();
+    }
+
+    /**
+     * 调用的 RTT，纳秒，不包括排队的时间
+     */
+    public BucketHistogram rtt() {
+        return rtt;
+    }
+
+    public long overloadCount() {
+        return overloads.sum();
+    }
+
+    final class Call<R> extends Operators.DeferredSubscription implements CoreSubscriber<R> {
+
+        @SuppressWarnings("rawtypes")
+        static final AtomicIntegerFieldUpdater<Call> RELEASED = AtomicIntegerFieldUpdater.newUpdater(Call.class, "released");
+
+        @SuppressWarnings("rawtypes")
+        static final AtomicIntegerFieldUpdater<Call> QUEUE_STATE = AtomicIntegerFieldUpdater.newUpdater(Call.class, "queueState");
+
+        static final int QUEUED = 1;
+
+        /**
+         * 离开了排队：被 drainWaiters 取出开始调用，或者排队时被取消；只有把 QUEUED 换成它的一方给 queued 减一
+         */
+        static final int DEQUEUED = 2;
+
+        final CoreSubscriber<? super R> actual;
+
+        final Publisher<? extends R> call;
+
+        long startNanos;
+
+        volatile int started;
+
+        volatile int released;
+
+        /**
+         * 0 表示没有排队，直接开始调用
+         */
+        volatile int queueState;
+
+        Call(CoreSubscriber<? super R> actual, Publisher<? extends R> call) {
+            this.actual = actual;
+            this.call = call;
+        }
+
+        void start() {
+            startNanos = System.nanoTime();
+            started = 1;
+            if (isCancelled()) {
+                //排队时被取消了，但是已经申请了许可
+                releaseOnce(null, true);
+                return;
+            }
+            call.subscribe(this);
+        }
+
+        @Override
+        public Context currentContext() {
+            return actual.currentContext();
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            set(s);
+        }
+
+        @Override
+        public void onNext(R r) {
+            actual.onNext(r);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            releaseOnce(t, false);
+            actual.onError(t);
+        }
+
+        @Override
+        public void onComplete() {
+            releaseOnce(null, false);
+            actual.onComplete();
+        }
+
+        @Override
+        public void cancel() {
+            super.cancel();
+            //还在排队的调用没有许可，马上从 queued 中减掉，到了队头时由 drainWaiters 跳过
+            if (started == 1) {
+                releaseOnce(null, true);
+            } else if (QUEUE_STATE.compareAndSet(this, QUEUED, DEQUEUED)) {
+                queued.decrementAndGet();
+            }
+        }
+
+        void releaseOnce(Throwable error, boolean cancelled) {
+            if (released == 0 && RELEASED.compareAndSet(this, 0, 1)) {
+                release(startNanos, error, cancelled);
+            }
+        }
+    }
+}
@@ -0,0 +1,510 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import com.hs.reactive.reactivestream.flow.MpscArrayRing;
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * 按 key 缓存 Mono 的结果，多个并发的调用方共享同一次加载
+ * cache() 只能缓存一条流；热点 key 被 1000 个请求同时查询时，每个请求都会查一次数据库
+ * 1、单飞（single-flight）：同一个 key 正在加载时，后来的调用方直接订阅同一个加载结果，不会重复调用 loader；
+ * 调用方取消不会取消加载，加载结果仍然会放进缓存
+ * 2、读不加锁：命中时只是一次 ConcurrentHashMap 的 get，访问记录放进一个有损的环形缓冲区（满了就丢），
+ * 写入或者缓冲区满时由拿到锁的线程批量回放到淘汰策略中
+ * 3、容量上限按分段 LRU（SLRU）淘汰：新 entry 先进试用段，再次被访问才升到保护段（占 80%），
+ * 一次性扫过的 key 只会挤掉试用段，不会把热点 key 淘汰出去
+ * 4、ttl：写入之后过了 ttl 的值不再返回，重新加载；refreshAfter：写入之后过了 refreshAfter，命中时照常返回旧值，
+ * 同时在后台重新加载（提前刷新），热点 key 不会在过期的瞬间让所有请求一起等加载
+ * 加载失败和空结果不缓存；提前刷新失败时保留旧值，直到 ttl 过期
+ * 用法：cache.get(key)，或者 loader 随调用变化时 mono.transformDeferred(cache.cached(key))
+ *
+ * @param <K> key 的类型
+ * @param <V> 值的类型
+ */
+public final class AsyncCache<K, V> {
+
+    /**
+     * 保护段占容量的比例
+     */
+    static final double PROTECTED_RATIO = 0.8;
+
+    static final int READ_BUFFER_SIZE = 256;
+
+    private final long maximumSize;
+
+    private final long protectedMaximum;
+
+    private final long ttlNanos;
+
+    private final long refreshNanos;
+
+    private final Function<? super K, ? extends Mono<? extends V>> loader;
+
+    private final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<>();
+
+    private final MpscArrayRing<Node<K, V>> readBuffer = new MpscArrayRing<>(READ_BUFFER_SIZE);
+
+    /**
+     * 保护两个链表、size、protectedSize，也是 readBuffer 唯一的消费者
+     */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    /**
+     * 哨兵节点，head.next 是最久没有访问的
+     */
+    private final Node<K, V> probation = Node.sentinel();
+
+    private final Node<K, V> protectedSegment = Node.sentinel();
+
+    private long size;
+
+    private long protectedSize;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder coalesced = new LongAdder();
+
+    private final LongAdder loadSuccess = new LongAdder();
+
+    private final LongAdder loadFailure = new LongAdder();
+
+    private final LongAdder refreshes = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final BucketHistogram loadLatency = new BucketHistogram();
+
+    /**
+     * 不提前刷新
+     */
+    public AsyncCache(long maximumSize, Duration ttl, Function<? super K, ? extends Mono<? extends V>> loader) {
+        this(maximumSize, ttl, Duration.ZERO, loader);
+    }
+
+    /**
+     * @param maximumSize  最多缓存多少个 key
+     * @param ttl          写入之后多久过期，0 表示不过期
+     * @param refreshAfter 写入之后多久开始提前刷新，0 表示不刷新，应该小于 ttl
+     * @param loader       加载一个 key，返回空表示没有这个 key；只用 {@link #get(Object, Function)} 时可以是 null
+     */
+    public AsyncCache(long maximumSize, Duration ttl, Duration refreshAfter,
+                      Function<? super K, ? extends Mono<? extends V>> loader) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("maximumSize must be positive");
+        }
+        if (ttl.isNegative() || refreshAfter.isNegative()) {
+            throw new IllegalArgumentException("ttl and refreshAfter must not be negative");
+        }
+        this.maximumSize = maximumSize;
+        this.protectedMaximum = (long) (maximumSize * PROTECTED_RATIO);
+        this.ttlNanos = ttl.toNanos();
+        this.refreshNanos = refreshAfter.toNanos();
+        this.loader = loader;
+    }
+
+    /**
+     * 订阅时才查缓存
+     */
+    public Mono<V> get(K key) {
+        if (loader == null) {
+            throw new IllegalStateException("No loader, use get(key, loader)");
+        }
+        return get(key, loader);
+    }
+
+    public Mono<V> get(K key, Function<? super K, ? extends Mono<? extends V>> loader) {
+        return Mono.defer(() -> lookup(key, loader));
+    }
+
+    /**
+     * 用法：mono.transformDeferred(cache.cached(key))，上游的 mono 就是这个 key 的 loader，只在没有命中时订阅
+     */
+    public Function<Mono<V>, Mono<V>> cached(K key) {
+        return source -> get(key, k -> source);
+    }
+
+    /**
+     * 只查缓存，没有或者过期了返回 null，不会加载
+     */
+    public V getIfPresent(K key) {
+        Node<K, V> node = map.get(key);
+        if (node != null) {
+            V value = node.value;
+            if (value != null && isFresh(node, System.nanoTime())) {
+                hits.increment();
+                recordRead(node);
+                return value;
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    public void invalidate(K key) {
+        Node<K, V> node = map.get(key);
+        if (node != null) {
+            remove(node);
+        }
+    }
+
+    public void invalidateAll() {
+        map.values().forEach(this::remove);
+    }
+
+    /**
+     * 回放缓冲区中的访问记录，并且删掉所有过期的 entry；过期的 entry 平时只在被访问或者淘汰时才清理，这里要遍历整个 map
+     */
+    public void cleanUp() {
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+        } finally {
+            evictionLock.unlock();
+        }
+        if (ttlNanos > 0) {
+            long now = System.nanoTime();
+            map.values().forEach(node -> {
+                if (node.value != null && node.loading == null && !isFresh(node, now)) {
+                    remove(node);
+                }
+            });
+        }
+    }
+
+    private Mono<V> lookup(K key, Function<? super K, ? extends Mono<? extends V>> loader) {
+        long now = System.nanoTime();
+        Node<K, V> node = map.get(key);
+        if (node != null) {
+            V value = node.value;
+            if (value != null && isFresh(node, now)) {
+                hits.increment();
+                recordRead(node);
+                if (refreshNanos > 0 && now - node.writeNanos >= refreshNanos && node.loading == null) {
+                    refresh(node, loader);
+                }
+                return Mono.just(value);
+            }
+            Mono<V> pending = node.loading;
+            if (pending != null) {
+                coalesced.increment();
+                return pending;
+            }
+        }
+        node = map.computeIfAbsent(key, Node::new);
+        Sinks.One<V> sink;
+        Mono<V> result;
+        synchronized (node) {
+            //拿锁之前可能已经有别的线程加载完成或者开始加载
+            V value = node.value;
+            if (value != null && isFresh(node, now)) {
+                hits.increment();
+                return Mono.just(value);
+            }
+            if (node.loading != null) {
+                coalesced.increment();
+                return node.loading;
+            }
+            sink = Sinks.one();
+            result = sink.asMono();
+            node.loading = result;
+        }
+        misses.increment();
+        load(node, sink, loader);
+        return result;
+    }
+
+    private void refresh(Node<K, V> node, Function<? super K, ? extends Mono<? extends V>> loader) {
+        Sinks.One<V> sink;
+        synchronized (node) {
+            if (node.loading != null) {
+                return;
+            }
+            sink = Sinks.one();
+            node.loading = sink.asMono();
+        }
+        refreshes.increment();
+        load(node, sink, loader);
+    }
+
+    private void load(Node<K, V> node, Sinks.One<V> sink, Function<? super K, ? extends Mono<? extends V>> loader) {
+        Mono<? extends V> source;
+        try {
+            source = loader.apply(node.key);
+        } catch (Throwable e) {
+            source = Mono.error(e);
+        }
+        source.subscribe(new LoadSubscriber(node, sink));
+    }
+
+    private boolean isFresh(Node<K, V> node, long now) {
+        return ttlNanos == 0 || now - node.writeNanos < ttlNanos;
+    }
+
+    private void onLoaded(Node<K, V> node, Sinks.One<V> sink, V value, long startNanos) {
+        long now = System.nanoTime();
+        loadLatency.record(now - startNanos);
+        loadSuccess.increment();
+        synchronized (node) {
+            node.writeNanos = now;
+            node.value = value;
+            node.loading = null;
+        }
+        evictionLock.lock();
+        try {
+            //加载期间可能被 invalidate 或者淘汰了，这时只把结果交给等待的调用方
+            if (!node.linked && map.get(node.key) == node) {
+                link(probation, node);
+                size++;
+            }
+            drainReadBuffer();
+            while (size > maximumSize) {
+                Node<K, V> victim = probation.next != probation ? probation.next : protectedSegment.next;
+                evict(victim);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        sink.tryEmitValue(value);
+    }
+
+    /**
+     * 空结果和失败都不缓存；提前刷新失败时保留旧值，空结果表示 key 已经没有了，删掉
+     */
+    private void onFailed(Node<K, V> node, Sinks.One<V> sink, Throwable error, long startNanos) {
+        loadLatency.record(System.nanoTime() - startNanos);
+        boolean keep;
+        synchronized (node) {
+            node.loading = null;
+            keep = error != null && node.value != null;
+        }
+        if (error != null) {
+            loadFailure.increment();
+        } else {
+            loadSuccess.increment();
+        }
+        if (!keep) {
+            remove(node);
+        }
+        if (error != null) {
+            sink.tryEmitError(error);
+        } else {
+            sink.tryEmitEmpty();
+        }
+    }
+
+    private void remove(Node<K, V> node) {
+        if (!map.remove(node.key, node)) {
+            return;
+        }
+        evictionLock.lock();
+        try {
+            if (node.linked) {
+                unlink(node);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void recordRead(Node<K, V> node) {
+        if (!readBuffer.offer(node) && evictionLock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 调用方持有 evictionLock
+     */
+    private void drainReadBuffer() {
+        Node<K, V> node;
+        while ((node = readBuffer.poll()) != null) {
+            if (!node.linked) {
+                continue;
+            }
+            if (node.inProtected) {
+                moveToTail(protectedSegment, node);
+                continue;
+            }
+            //试用段再次被访问，升到保护段，保护段满了把最久没访问的降回试用段
+            unlinkFromList(node);
+            node.inProtected = true;
+            link(protectedSegment, node);
+            protectedSize++;
+            while (protectedSize > protectedMaximum && protectedSegment.next != protectedSegment) {
+                Node<K, V> demoted = protectedSegment.next;
+                unlinkFromList(demoted);
+                protectedSize--;
+                demoted.inProtected = false;
+                link(probation, demoted);
+            }
+        }
+    }
+
+    private void evict(Node<K, V> node) {
+        unlink(node);
+        map.remove(node.key, node);
+        evictions.increment();
+    }
+
+    private void link(Node<K, V> list, Node<K, V> node) {
+        Node<K, V> tail = list.prev;
+        node.prev = tail;
+        node.next = list;
+        tail.next = node;
+        list.prev = node;
+        node.linked = true;
+    }
+
+    private void moveToTail(Node<K, V> list, Node<K, V> node) {
+        unlinkFromList(node);
+        link(list, node);
+    }
+
+    private void unlink(Node<K, V> node) {
+        unlinkFromList(node);
+        node.linked = false;
+        size--;
+        if (node.inProtected) {
+            node.inProtected = false;
+            protectedSize--;
+        }
+    }
+
+    private static <K, V> void unlinkFromList(Node<K, V> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+
+    /**
+     * 当前缓存的 key 数，不包括正在第一次加载的
+     */
+    public long estimatedSize() {
+        evictionLock.lock();
+        try {
+            return size;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public Stats stats() {
+        long h = hits.sum();
+        long m = misses.sum();
+        long c = coalesced.sum();
+        long total = h + m + c;
+        return new Stats(h, m, c, total == 0 ? 0 : (double) h / total, loadSuccess.sum(), loadFailure.sum(),
+                refreshes.sum(), evictions.sum(), estimatedSize(), loadLatency.snapshot());
+    }
+
+    /**
+     * @param coalesced   没有命中，但是合并到了正在进行的加载中的次数
+     * @param hitRate     hits / (hits + misses + coalesced)
+     * @param loadSuccess 加载成功的次数，包括空结果
+     * @param refreshes   提前刷新的次数
+     * @param loadNanos   加载耗时，纳秒
+     */
+    public record Stats(long hits, long misses, long coalesced, double hitRate, long loadSuccess, long loadFailure,
+                        long refreshes, long evictions, long size, BucketHistogram.Snapshot loadNanos) {
+    }
+
+    static final class Node<K, V> {
+
+        final K key;
+
+        volatile V value;
+
+        /**
+         * 写入 value 的时间，按它判断过期和提前刷新
+         */
+        volatile long writeNanos;
+
+        /**
+         * 正在进行的加载，调用方订阅它等待结果；由 this 的锁保护写入
+         */
+        volatile Mono<V> loading;
+
+        /**
+         * 以下字段由 evictionLock 保护
+         */
+        Node<K, V> prev;
+
+        Node<K, V> next;
+
+        boolean linked;
+
+        boolean inProtected;
+
+        Node(K key) {
+            this.key = key;
+        }
+
+        static <K, V> Node<K, V> sentinel() {
+            Node<K, V> node = new Node<>(null);
+            node.prev = node;
+            node.next = node;
+            return node;
+        }
+    }
+
+    /**
+     * 加载的订阅者，调用方取消订阅不影响它
+     */
+    final class LoadSubscriber extends BaseSubscriber<V> {
+
+        final Node<K, V> node;
+
+        final Sinks.One<V> sink;
+
+        final long startNanos = System.nanoTime();
+
+        boolean done;
+
+        LoadSubscriber(Node<K, V> node, Sinks.One<V> sink) {
+            this.node = node;
+            this.sink = sink;
+        }
+
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+            subscription.request(1);
+        }
+
+        @Override
+        protected void hookOnNext(V value) {
+            done = true;
+            onLoaded(node, sink, value, startNanos);
+        }
+
+        @Override
+        protected void hookOnError(Throwable throwable) {
+            if (!done) {
+                done = true;
+                onFailed(node, sink, throwable, startNanos);
+            }
+        }
+
+        @Override
+        protected void hookOnComplete() {
+            if (!done) {
+                done = true;
+                onFailed(node, sink, null, startNanos);
+            }
+        }
+    }
+}
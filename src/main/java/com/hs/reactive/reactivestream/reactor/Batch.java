@@ -0,0 +1,104 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import com.hs.reactive.reactivestream.flow.MpmcArrayRing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * {@link MicroBatcher} 发出的一批元素
+ * 批次对象和里面的 ArrayList 都是从池中借的，下游处理完（比如批量插入成功）之后调用 {@link #release()} 还回去，
+ * 下一个批次接着用，不用每批都 new 一个 ArrayList；release 之后就不能再访问这个批次了
+ * 不调用 release 也没关系，只是这个对象不会被复用，由 GC 回收；同一个批次 release 两次会抛 IllegalStateException，
+ * 否则它会被放回池中两次，之后两个批次共用同一个 ArrayList
+ *
+ * @param <T> 元素类型
+ */
+public final class Batch<T> implements Iterable<T> {
+
+    private final ArrayList<T> items;
+
+    private final List<T> view;
+
+    private final MpmcArrayRing<Batch<T>> pool;
+
+    @SuppressWarnings("rawtypes")
+    static final AtomicIntegerFieldUpdater<Batch> RELEASED = AtomicIntegerFieldUpdater.newUpdater(Batch.class, "released");
+
+    /**
+     * 1 表示已经还回池中，从池中借出时重置为 0
+     */
+    volatile int released;
+
+    long weight;
+
+    /**
+     * 第一个元素放进来的时间
+     */
+    long firstItemNanos;
+
+    Batch(int capacity, MpmcArrayRing<Batch<T>> pool) {
+        this.items = new ArrayList<>(capacity);
+        this.view = Collections.unmodifiableList(items);
+        this.pool = pool;
+    }
+
+    void add(T item, long itemWeight) {
+        if (items.isEmpty()) {
+            firstItemNanos = System.nanoTime();
+        }
+        items.add(item);
+        weight += itemWeight;
+    }
+
+    /**
+     * 只读的视图，不会复制
+     */
+    public List<T> items() {
+        return view;
+    }
+
+    public T get(int index) {
+        return items.get(index);
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    /**
+     * 批次中所有元素的权重之和
+     */
+    public long weight() {
+        return weight;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return view.iterator();
+    }
+
+    /**
+     * 下游确认处理完了，清空后还回池中；池满了就丢弃
+     */
+    public void release() {
+        if (!RELEASED.compareAndSet(this, 0, 1)) {
+            throw new IllegalStateException("Batch already released");
+        }
+        items.clear();
+        weight = 0;
+        pool.offer(this);
+    }
+
+    @Override
+    public String toString() {
+        return items.toString();
+    }
+}
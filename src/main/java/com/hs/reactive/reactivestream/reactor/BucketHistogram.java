@@ -0,0 +1,78 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按 2 的幂分桶的直方图，记录一次只是几次原子加，不分配对象
+ * 第 i 个桶记录 [2^(i-1), 2^i) 之间的值，第 0 个桶记录 0 和负数；百分位取桶的上界，误差在 2 倍以内，
+ * 用来看延迟、批次大小这类跨好几个数量级的分布足够了
+ */
+public final class BucketHistogram {
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        buckets.incrementAndGet(bucketIndex(value));
+        count.increment();
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    static int bucketIndex(long value) {
+        return value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @param percentile 0 ~ 1，比如 0.99
+     * @return 第 percentile 个值所在桶的上界，不超过记录过的最大值；没有记录过返回 0
+     */
+    public long percentile(double percentile) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= target) {
+                long upper = i == 0 ? 0 : i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+                return Math.min(upper, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(count(), mean(), percentile(0.5), percentile(0.9), percentile(0.99), max());
+    }
+
+    public record Snapshot(long count, double mean, long p50, long p90, long p99, long max) {
+    }
+}
@@ -0,0 +1,79 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 舱壁，限制同时进行中的调用数，满了直接返回 {@link CallRejectedException}，不排队
+ * 排队只会让调用方等更久，下游本来就忙不过来时，等待的调用最后大多也会超时；不如马上失败，让调用方降级或者换一个实例
+ * 一个 AtomicInteger 计数，申请是一次 CAS，归还是一次原子减
+ */
+public final class Bulkhead extends CallGuard {
+
+    private static final Object PERMIT = new Object();
+
+    private final int maxConcurrentCalls;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final CallRejectedException rejection;
+
+    private final LongAdder accepted = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param name               名字，出现在拒绝的异常信息中
+     * @param maxConcurrentCalls 最多同时进行多少个调用
+     */
+    public Bulkhead(String name, int maxConcurrentCalls) {
+        if (maxConcurrentCalls < 1) {
+            throw new IllegalArgumentException("maxConcurrentCalls must be positive");
+        }
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.rejection = new CallRejectedException("Bulkhead '" + name + "' is full");
+    }
+
+    @Override
+    Object tryAcquire() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= maxConcurrentCalls) {
+                rejected.increment();
+                return null;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        accepted.increment();
+        return PERMIT;
+    }
+
+    @Override
+    void release(Object permit, long startNanos, Throwable error, boolean cancelled) {
+        inFlight.decrementAndGet();
+    }
+
+    @Override
+    CallRejectedException rejection() {
+        return rejection;
+    }
+
+    /**
+     * 正在进行中的调用数
+     */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public int maxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+
+    public long acceptedCount() {
+        return accepted.sum();
+    }
+
+    public long rejectedCount() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,153 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxOperator;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoOperator;
+import reactor.core.publisher.Operators;
+import reactor.util.context.Context;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * {@link CircuitBreaker} 和 {@link Bulkhead} 的公共部分：每次订阅算一次调用，订阅时申请许可，结束或者取消时归还
+ * 用法：flux.transformDeferred(guard::flux)、mono.transformDeferred(guard::mono)，transform 也可以，许可是在订阅时申请的
+ * 成功的路径上只多了一个订阅者对象和一次 CAS（保证结束和取消只归还一次），其余的开销在 tryAcquire 和 release 中
+ */
+public abstract class CallGuard {
+
+    CallGuard() {
+    }
+
+    /**
+     * @return 许可，结束时原样传给 {@link #release}；返回 null 表示拒绝
+     */
+    abstract Object tryAcquire();
+
+    /**
+     * @param error     异常结束时的异常，正常结束和取消时为 null
+     * @param cancelled 是否是被下游取消的
+     */
+    abstract void release(Object permit, long startNanos, Throwable error, boolean cancelled);
+
+    abstract CallRejectedException rejection();
+
+    /**
+     * 需要统计调用耗时的返回 System.nanoTime()，不需要的返回 0，省掉两次取时间
+     */
+    long startNanos() {
+        return 0L;
+    }
+
+    public final <T> Flux<T> flux(Flux<T> source) {
+        return new FluxOperator<T, T>(source) {
+            @Override
+            public void subscribe(CoreSubscriber<? super T> actual) {
+                Object permit = tryAcquire();
+                if (permit == null) {
+                    Operators.error(actual, rejection());
+                    return;
+                }
+                source.subscribe(new GuardedSubscriber<>(actual, CallGuard.this, permit, false));
+            }
+        };
+    }
+
+    public final <T> Mono<T> mono(Mono<T> source) {
+        return new MonoOperator<T, T>(source) {
+            @Override
+            public void subscribe(CoreSubscriber<? super T> actual) {
+                Object permit = tryAcquire();
+                if (permit == null) {
+                    Operators.error(actual, rejection());
+                    return;
+                }
+                source.subscribe(new GuardedSubscriber<>(actual, CallGuard.this, permit, true));
+            }
+        };
+    }
+
+    static final class GuardedSubscriber<T> implements CoreSubscriber<T>, Subscription {
+
+        static final AtomicIntegerFieldUpdater<GuardedSubscriber> RELEASED =
+                AtomicIntegerFieldUpdater.newUpdater(GuardedSubscriber.class, "released");
+
+        final CoreSubscriber<? super T> actual;
+
+        final CallGuard guard;
+
+        final Object permit;
+
+        /**
+         * Mono 收到元素就算调用成功了：block 之类的订阅者收到元素后会直接取消，不会等 onComplete
+         */
+        final boolean mono;
+
+        final long startNanos;
+
+        Subscription upstream;
+
+        volatile int released;
+
+        GuardedSubscriber(CoreSubscriber<? super T> actual, CallGuard guard, Object permit, boolean mono) {
+            this.actual = actual;
+            this.guard = guard;
+            this.permit = permit;
+            this.mono = mono;
+            this.startNanos = guard.startNanos();
+        }
+
+        @Override
+        public Context currentContext() {
+            return actual.currentContext();
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            if (Operators.validate(upstream, s)) {
+                upstream = s;
+                actual.onSubscribe(this);
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            if (mono && released == 0 && RELEASED.compareAndSet(this, 0, 1)) {
+                guard.release(permit, startNanos, null, false);
+            }
+            actual.onNext(t);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            //先归还许可再通知下游，下游收到异常马上重新订阅时能拿到许可
+            if (released == 0 && RELEASED.compareAndSet(this, 0, 1)) {
+                guard.release(permit, startNanos, t, false);
+            }
+            actual.onError(t);
+        }
+
+        @Override
+        public void onComplete() {
+            if (released == 0 && RELEASED.compareAndSet(this, 0, 1)) {
+                guard.release(permit, startNanos, null, false);
+            }
+            actual.onComplete();
+        }
+
+        @Override
+        public void request(long n) {
+            upstream.request(n);
+        }
+
+        @Override
+        public void cancel() {
+            upstream.cancel();
+            if (released == 0 && RELEASED.compareAndSet(this, 0, 1)) {
+                guard.release(permit, startNanos, null, true);
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.hs.reactive.reactivestream.reactor;
+
+/**
+ * 熔断器打开、或者舱壁满了的时候发给下游的异常
+ * 拒绝发生在下游已经出问题的时候，频率很高，所以不记录堆栈，每个熔断器、舱壁只创建一个实例
+ */
+public class CallRejectedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CallRejectedException(String message) {
+        super(message, null, false, false);
+    }
+}
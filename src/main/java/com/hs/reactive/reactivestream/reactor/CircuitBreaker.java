@@ -0,0 +1,271 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * 熔断器，下游一直失败或者很慢的时候不再调用它，直接返回 {@link CallRejectedException}，等一段时间再试探
+ * 1、CLOSED：正常调用，最近 windowSize 次调用的结果记在一个环里，失败率或者慢调用率超过阈值就打开
+ * 2、OPEN：拒绝所有调用，过了 waitInOpen 之后第一个调用把状态切到 HALF_OPEN
+ * 3、HALF_OPEN：只放行 halfOpenCalls 个调用，这些调用都结束之后按失败率决定关闭还是重新打开
+ * 整个过程没有锁：状态是一个不可变对象，用 CAS 切换；环里每个槽位一次 getAndSet，失败数和慢调用数打包在一个 long 里一次原子加
+ * 成功的调用覆盖成功的槽位时，计数不变，不需要原子加
+ */
+public final class CircuitBreaker extends CallGuard {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final int SUCCESS = 1;
+
+    private static final int FAILED = 2;
+
+    private static final int SLOW = 4;
+
+    private final double failureRateThreshold;
+
+    private final double slowCallRateThreshold;
+
+    private final long slowCallNanos;
+
+    private final int windowSize;
+
+    private final int minimumCalls;
+
+    private final long waitInOpenNanos;
+
+    private final int halfOpenCalls;
+
+    private final Predicate<? super Throwable> recordFailure;
+
+    private final CallRejectedException rejection;
+
+    private final AtomicReference<Phase> phase;
+
+    private final LongAdder successful = new LongAdder();
+
+    private final LongAdder failed = new LongAdder();
+
+    private final LongAdder slow = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private final LongAdder transitions = new LongAdder();
+
+    /**
+     * 只按失败率熔断，最近 100 次调用中至少 20 次、失败率超过 failureRateThreshold 就打开
+     */
+    public CircuitBreaker(String name, double failureRateThreshold, Duration waitInOpen) {
+        this(name, failureRateThreshold, 1.1, Duration.ofDays(1), 100, 20, waitInOpen, 10, t -> true);
+    }
+
+    /**
+     * @param name                  名字，出现在拒绝的异常信息中
+     * @param failureRateThreshold  失败率阈值，0 ~ 1
+     * @param slowCallRateThreshold 慢调用率阈值，0 ~ 1，大于 1 表示不按慢调用熔断
+     * @param slowCall              超过这个时间的调用算慢调用
+     * @param windowSize            按最近多少次调用计算失败率，向上取 2 的幂
+     * @param minimumCalls          窗口中至少有多少次调用才计算失败率
+     * @param waitInOpen            打开之后多久开始试探
+     * @param halfOpenCalls         试探时放行多少个调用
+     * @param recordFailure         哪些异常算失败，比如参数错误不应该算下游的失败
+     */
+    public CircuitBreaker(String name, double failureRateThreshold, double slowCallRateThreshold, Duration slowCall,
+                          int windowSize, int minimumCalls, Duration waitInOpen, int halfOpenCalls,
+                          Predicate<? super Throwable> recordFailure) {
+        if (windowSize < 1 || minimumCalls < 1 || minimumCalls > windowSize || halfOpenCalls < 1) {
+            throw new IllegalArgumentException("windowSize, minimumCalls and halfOpenCalls must be positive and minimumCalls must not exceed windowSize");
+        }
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallNanos = slowCall.toNanos();
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.waitInOpenNanos = waitInOpen.toNanos();
+        this.halfOpenCalls = halfOpenCalls;
+        this.recordFailure = recordFailure;
+        this.rejection = new CallRejectedException("CircuitBreaker '" + name + "' is open");
+        this.phase = new AtomicReference<>(closed());
+    }
+
+    @Override
+    Object tryAcquire() {
+        for (; ; ) {
+            Phase p = phase.get();
+            switch (p.state) {
+                case CLOSED:
+                    return p;
+                case OPEN:
+                    if (System.nanoTime() - p.openedNanos < waitInOpenNanos) {
+                        rejected.increment();
+                        return null;
+                    }
+                    transition(p, new Phase(State.HALF_OPEN, new Window(halfOpenCalls), 0, halfOpenCalls));
+                    break;
+                default:
+                    int permits = p.permits.get();
+                    if (permits <= 0) {
+                        rejected.increment();
+                        return null;
+                    }
+                    if (p.permits.compareAndSet(permits, permits - 1)) {
+                        return p;
+                    }
+            }
+        }
+    }
+
+    @Override
+    void release(Object permit, long startNanos, Throwable error, boolean cancelled) {
+        Phase p = (Phase) permit;
+        if (cancelled) {
+            //被取消的调用不知道结果，不记录；试探中的许可还回去，让别的调用来试探
+            if (p.state == State.HALF_OPEN) {
+                p.permits.incrementAndGet();
+            }
+            return;
+        }
+        int outcome = SUCCESS;
+        if (error != null && recordFailure.test(error)) {
+            outcome |= FAILED;
+            failed.increment();
+        } else {
+            successful.increment();
+        }
+        if (startNanos != 0L && System.nanoTime() - startNanos >= slowCallNanos) {
+            outcome |= SLOW;
+            slow.increment();
+        }
+        long counts = p.window.record(outcome);
+        int calls = p.window.calls();
+        if (p.state == State.CLOSED) {
+            if (calls >= minimumCalls && exceeded(counts, calls)) {
+                transition(p, new Phase(State.OPEN, null, System.nanoTime(), 0));
+            }
+        } else if (calls >= halfOpenCalls) {
+            transition(p, exceeded(counts, calls) ? new Phase(State.OPEN, null, System.nanoTime(), 0) : closed());
+        }
+        //状态变了之后才结束的调用记在旧的窗口里，旧状态的 CAS 会失败，不影响新状态
+    }
+
+    private boolean exceeded(long counts, int calls) {
+        return (counts >>> 32) >= failureRateThreshold * calls || (counts & 0xFFFFFFFFL) >= slowCallRateThreshold * calls;
+    }
+
+    private Phase closed() {
+        return new Phase(State.CLOSED, new Window(windowSize), 0, 0);
+    }
+
+    private void transition(Phase from, Phase to) {
+        if (phase.compareAndSet(from, to)) {
+            transitions.increment();
+        }
+    }
+
+    @Override
+    long startNanos() {
+        //不按慢调用熔断时不用取时间
+        return slowCallRateThreshold <= 1 ? System.nanoTime() : 0L;
+    }
+
+    @Override
+    CallRejectedException rejection() {
+        return rejection;
+    }
+
+    public State state() {
+        return phase.get().state;
+    }
+
+    public Metrics metrics() {
+        Phase p = phase.get();
+        double failureRate = 0;
+        double slowCallRate = 0;
+        int calls = 0;
+        if (p.window != null) {
+            calls = p.window.calls();
+            long counts = p.window.counts.get();
+            if (calls > 0) {
+                failureRate = (double) (counts >>> 32) / calls;
+                slowCallRate = (double) (counts & 0xFFFFFFFFL) / calls;
+            }
+        }
+        return new Metrics(p.state, failureRate, slowCallRate, calls, successful.sum(), failed.sum(), slow.sum(),
+                rejected.sum(), transitions.sum());
+    }
+
+    /**
+     * @param bufferedCalls 当前窗口中记录了多少次调用
+     * @param transitions   状态切换了多少次
+     */
+    public record Metrics(State state, double failureRate, double slowCallRate, int bufferedCalls, long successfulCalls,
+                          long failedCalls, long slowCalls, long rejectedCalls, long transitions) {
+    }
+
+    private static final class Phase {
+
+        final State state;
+
+        final Window window;
+
+        final long openedNanos;
+
+        /**
+         * HALF_OPEN 时还能放行多少个调用
+         */
+        final AtomicInteger permits;
+
+        Phase(State state, Window window, long openedNanos, int permits) {
+            this.state = state;
+            this.window = window;
+            this.openedNanos = openedNanos;
+            this.permits = new AtomicInteger(permits);
+        }
+    }
+
+    /**
+     * 按调用次数滑动的窗口
+     */
+    private static final class Window {
+
+        final AtomicIntegerArray outcomes;
+
+        final int mask;
+
+        final AtomicLong cursor = new AtomicLong();
+
+        /**
+         * 高 32 位是失败数，低 32 位是慢调用数
+         */
+        final AtomicLong counts = new AtomicLong();
+
+        Window(int size) {
+            int capacity = 1 << (32 - Integer.numberOfLeadingZeros(size - 1));
+            this.outcomes = new AtomicIntegerArray(capacity);
+            this.mask = capacity - 1;
+        }
+
+        /**
+         * @return 记录之后的计数
+         */
+        long record(int outcome) {
+            int old = outcomes.getAndSet((int) (cursor.getAndIncrement() & mask), outcome);
+            long delta = ((long) (bit(outcome, FAILED) - bit(old, FAILED)) << 32) + bit(outcome, SLOW) - bit(old, SLOW);
+            return delta == 0 ? counts.get() : counts.addAndGet(delta);
+        }
+
+        int calls() {
+            return (int) Math.min(cursor.get(), mask + 1);
+        }
+
+        private static int bit(int outcome, int flag) {
+            return (outcome & flag) != 0 ? 1 : 0;
+        }
+    }
+}
@@ -0,0 +1,441 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxOperator;
+import reactor.core.publisher.Operators;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.context.Context;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 按 key 合并（conflate）的操作符，用于行情、监控这类更新很快、只关心最新值的流
+ * delayElements、onBackpressureBuffer 会把每个更新都排队，生产者比消费者快时延迟和内存都会一直涨；onBackpressureLatest 只留一个值，不分 key
+ * 这里对上游请求无限个元素，下游忙的时候每个 key 只保留最新的值，下游有需求时按 key 第一次等待的先后顺序发出
+ * 1、等待中的 key 放在一个开放寻址（线性探测）的哈希表里，数组在订阅时一次分配好，之后每个元素不再分配对象
+ * 2、最多 maxKeys 个 key 同时等待，再来新的 key 直接丢弃（计数，交给 onDiscard 钩子），内存有上限；同一个 key 的更新总是覆盖
+ * 3、sampleInterval：按时间窗口采样，每个窗口结束时才把这之前等待的 key 放出去，每个 key 每个窗口最多发一次
+ * 延迟上限是一个窗口加上下游处理等待的 key 的时间，和生产者的速率无关
+ * 上游结束时剩下的 key 立即发出；上游异常时丢掉剩下的 key 直接传给下游
+ * 用法：flux.transform(conflator)，统计数据在多条流之间共享
+ *
+ * @param <T> 元素类型
+ * @param <K> key 的类型
+ */
+public final class Conflator<T, K> implements Function<Publisher<T>, Flux<T>> {
+
+    private final Function<? super T, ? extends K> keyExtractor;
+
+    private final int maxKeys;
+
+    private final long sampleNanos;
+
+    private final Scheduler timer;
+
+    /**
+     * 收到的元素数 = 新进入等待的 key + 被覆盖的 + 被丢弃的，热路径上（被覆盖）只加一个计数
+     */
+    private final LongAdder inserted = new LongAdder();
+
+    private final LongAdder conflated = new LongAdder();
+
+    private final LongAdder delivered = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * 从 key 开始等待到发给下游的时间，纳秒
+     */
+    private final BucketHistogram staleness = new BucketHistogram();
+
+    /**
+     * 不采样，下游有需求就发
+     */
+    public Conflator(Function<? super T, ? extends K> keyExtractor, int maxKeys) {
+        this(keyExtractor, maxKeys, Duration.ZERO, Schedulers.parallel());
+    }
+
+    public Conflator(Function<? super T, ? extends K> keyExtractor, int maxKeys, Duration sampleInterval) {
+        this(keyExtractor, maxKeys, sampleInterval, Schedulers.parallel());
+    }
+
+    /**
+     * @param keyExtractor   取出元素的 key，不能返回 null
+     * @param maxKeys        最多同时等待多少个 key，应该不少于 key 的总数（比如行情的品种数）
+     * @param sampleInterval 采样窗口，0 表示不采样
+     * @param timer          采样用的调度器
+     */
+    public Conflator(Function<? super T, ? extends K> keyExtractor, int maxKeys, Duration sampleInterval,
+                     Scheduler timer) {
+        if (maxKeys < 1 || maxKeys > 1 << 28) {
+            throw new IllegalArgumentException("maxKeys must be between 1 and 2^28");
+        }
+        if (sampleInterval.isNegative()) {
+            throw new IllegalArgumentException("sampleInterval must not be negative");
+        }
+        this.keyExtractor = keyExtractor;
+        this.maxKeys = maxKeys;
+        this.sampleNanos = sampleInterval.toNanos();
+        this.timer = timer;
+    }
+
+    @Override
+    public Flux<T> apply(Publisher<T> source) {
+        return new FluxOperator<T, T>(Flux.from(source)) {
+            @Override
+            public void subscribe(CoreSubscriber<? super T> actual) {
+                source.subscribe(new ConflateSubscriber(actual));
+            }
+        };
+    }
+
+    public long receivedCount() {
+        return inserted.sum() + conflated.sum() + dropped.sum();
+    }
+
+    /**
+     * 被同一个 key 的新值覆盖掉的元素数
+     */
+    public long conflatedCount() {
+        return conflated.sum();
+    }
+
+    public long deliveredCount() {
+        return delivered.sum();
+    }
+
+    /**
+     * 等待的 key 已经满了，新的 key 被丢弃的次数
+     */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    public BucketHistogram staleness() {
+        return staleness;
+    }
+
+    static int mix(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    final class ConflateSubscriber implements CoreSubscriber<T>, Subscription {
+
+        final CoreSubscriber<? super T> actual;
+
+        /**
+         * 订阅之后不会变，缓存下来；没有 onDiscard 钩子时（Context 为空）被覆盖的值不用再去 Context 里查钩子
+         */
+        final Context context;
+
+        final AtomicLong requested = new AtomicLong();
+
+        final AtomicInteger wip = new AtomicInteger();
+
+        /**
+         * 以下字段由 this 的锁保护：上游的 onNext、下游的 drain、采样定时器在不同的线程上
+         * keys、values、since 是开放寻址的哈希表，容量是 maxKeys 的两倍以上，负载不超过一半
+         */
+        final Object[] keys;
+
+        final Object[] values;
+
+        final long[] since;
+
+        final int mask;
+
+        /**
+         * 等待中的 key 按开始等待的顺序排成一个环，发出时从头取
+         */
+        final Object[] order;
+
+        int orderHead;
+
+        int count;
+
+        /**
+         * 采样时：环头部这么多个 key 已经到了窗口，可以发出
+         */
+        int releasable;
+
+        boolean done;
+
+        Throwable error;
+
+        Subscription upstream;
+
+        Disposable ticker;
+
+        volatile boolean cancelled;
+
+        ConflateSubscriber(CoreSubscriber<? super T> actual) {
+            this.actual = actual;
+            this.context = actual.currentContext();
+            int capacity = Integer.highestOneBit(Math.max(2, maxKeys) * 2 - 1) << 1;
+            this.keys = new Object[capacity];
+            this.values = new Object[capacity];
+            this.since = new long[capacity];
+            this.mask = capacity - 1;
+            this.order = new Object[maxKeys];
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            if (Operators.validate(upstream, s)) {
+                upstream = s;
+                //先启动定时器再交给下游：下游在 onSubscribe 里就取消时，cancel 里的 discard 能停掉它
+                if (sampleNanos > 0) {
+                    Disposable t = timer.schedulePeriodically(this::onTick, sampleNanos, sampleNanos, TimeUnit.NANOSECONDS);
+                    synchronized (this) {
+                        ticker = t;
+                    }
+                }
+                actual.onSubscribe(this);
+                if (!cancelled) {
+                    s.request(Long.MAX_VALUE);
+                }
+            }
+        }
+
+        @Override
+        public void onNext(T item) {
+            K key;
+            try {
+                key = keyExtractor.apply(item);
+                if (key == null) {
+                    throw new NullPointerException("keyExtractor returned null");
+                }
+            } catch (Throwable e) {
+                onError(Operators.onOperatorError(upstream, e, item, context));
+                return;
+            }
+            boolean first;
+            synchronized (this) {
+                if (done) {
+                    Operators.onNextDropped(item, context);
+                    return;
+                }
+                int i = mix(key) & mask;
+                Object k;
+                while ((k = keys[i]) != null && !k.equals(key)) {
+                    i = (i + 1) & mask;
+                }
+                if (k != null) {
+                    Object previous = values[i];
+                    values[i] = item;
+                    conflated.increment();
+                    if (!context.isEmpty()) {
+                        Operators.onDiscard(previous, context);
+                    }
+                    return;
+                }
+                if (count == maxKeys) {
+                    dropped.increment();
+                    Operators.onDiscard(item, context);
+                    return;
+                }
+                inserted.increment();
+                keys[i] = key;
+                values[i] = item;
+                since[i] = System.nanoTime();
+                order[(orderHead + count) % maxKeys] = key;
+                first = count++ == 0;
+            }
+            //表里原来已经有 key 时，drain 要么正在进行、要么在等需求，不需要再进入
+            if (first && sampleNanos == 0) {
+                drain();
+            }
+        }
+
+        void onTick() {
+            synchronized (this) {
+                releasable = count;
+            }
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            synchronized (this) {
+                if (done) {
+                    Operators.onErrorDropped(t, context);
+                    return;
+                }
+                error = t;
+                done = true;
+                discard();
+            }
+            drain();
+        }
+
+        @Override
+        public void onComplete() {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                releasable = count;
+            }
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (Operators.validate(n)) {
+                long r;
+                long next;
+                do {
+                    r = requested.get();
+                    next = Operators.addCap(r, n);
+                } while (!requested.compareAndSet(r, next));
+                drain();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            upstream.cancel();
+            synchronized (this) {
+                discard();
+            }
+        }
+
+        /**
+         * 调用方持有锁，丢掉等待中的 key
+         */
+        void discard() {
+            if (ticker != null) {
+                ticker.dispose();
+                ticker = null;
+            }
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    Operators.onDiscard(values[i], context);
+                    keys[i] = null;
+                    values[i] = null;
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                order[(orderHead + i) % maxKeys] = null;
+            }
+            count = 0;
+            releasable = 0;
+        }
+
+        /**
+         * 调用方持有锁，取出环头部的 key 的最新值，并从哈希表中删掉
+         */
+        @SuppressWarnings("unchecked")
+        T poll() {
+            Object key = order[orderHead];
+            order[orderHead] = null;
+            orderHead = orderHead + 1 == maxKeys ? 0 : orderHead + 1;
+            count--;
+            int i = mix(key) & mask;
+            while (!keys[i].equals(key)) {
+                i = (i + 1) & mask;
+            }
+            T value = (T) values[i];
+            staleness.record(System.nanoTime() - since[i]);
+            removeAt(i);
+            return value;
+        }
+
+        /**
+         * 线性探测的删除：把后面同一簇中、原本应该在 i 或者之前的位置的 entry 往前移，不用墓碑
+         */
+        void removeAt(int i) {
+            keys[i] = null;
+            values[i] = null;
+            int j = i;
+            for (; ; ) {
+                j = (j + 1) & mask;
+                Object k = keys[j];
+                if (k == null) {
+                    return;
+                }
+                int home = mix(k) & mask;
+                //home 在 (i, j] 之间（考虑回绕）的不用移动
+                boolean stay = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+                if (!stay) {
+                    keys[i] = k;
+                    values[i] = values[j];
+                    since[i] = since[j];
+                    keys[j] = null;
+                    values[j] = null;
+                    i = j;
+                }
+            }
+        }
+
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            for (; ; ) {
+                if (cancelled) {
+                    return;
+                }
+                long r = requested.get();
+                long e = 0L;
+                while (e != r) {
+                    T item;
+                    synchronized (this) {
+                        if (count == 0 || error != null || (sampleNanos > 0 && releasable == 0)) {
+                            break;
+                        }
+                        if (releasable > 0) {
+                            releasable--;
+                        }
+                        item = poll();
+                    }
+                    delivered.increment();
+                    actual.onNext(item);
+                    e++;
+                    if (cancelled) {
+                        return;
+                    }
+                }
+                boolean terminate;
+                Throwable failure;
+                synchronized (this) {
+                    failure = error;
+                    terminate = done && (failure != null || count == 0);
+                }
+                if (terminate) {
+                    cancelled = true;
+                    synchronized (this) {
+                        discard();
+                    }
+                    if (failure != null) {
+                        actual.onError(failure);
+                    } else {
+                        actual.onComplete();
+                    }
+                    return;
+                }
+                if (e != 0L && r != Long.MAX_VALUE) {
+                    requested.addAndGet(-e);
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
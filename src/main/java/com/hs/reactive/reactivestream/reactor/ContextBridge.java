@@ -0,0 +1,195 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import org.reactivestreams.Subscription;
+import org.slf4j.MDC;
+import reactor.core.CorePublisher;
+import reactor.core.CoreSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxOperator;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoOperator;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+
+
+/**
+ * 把 Reactor 的 Context 桥接到 ThreadLocal 和 MDC，日志框架、老的同步代码通过 {@link #current()} 或者 MDC 读取
+ * Context 跟着订阅者走，不跟着线程走；MDC 跟着线程走，流换了线程 MDC 就丢了
+ * 1、flux.transform(ContextBridge::flux)：这个操作符下游的信号（onNext、onError、onComplete）和向上游的订阅，
+ * 都在 Context 放进 ThreadLocal、{@link ContextKey#mdc} 的 key 写进 MDC 的状态下执行，结束后恢复原来的值；
+ * Context 在订阅时取一次，之后每个信号只是一次 ThreadLocal 的读写，加上 MDC 的 key 个数次 put
+ * 2、{@link #install()}：调度器的钩子，调度任务时取出当前线程的 Context，任务在别的线程上执行时再放进去，
+ * 这样 publishOn、subscribeOn、delayElements 换了线程之后 MDC 还在
+ * 操作符要放在所有 contextWrite 的上游，才能拿到完整的 Context
+ */
+public final class ContextBridge {
+
+    static final String HOOK_KEY = "context-bridge";
+
+    private static final ThreadLocal<ContextView> CURRENT = new ThreadLocal<>();
+
+    private ContextBridge() {
+    }
+
+    /**
+     * 当前线程上的 Context，不在桥接的信号中时返回 null
+     */
+    public static ContextView current() {
+        return CURRENT.get();
+    }
+
+    public static void install() {
+        Schedulers.onScheduleHook(HOOK_KEY, ContextBridge::wrap);
+    }
+
+    public static void uninstall() {
+        Schedulers.resetOnScheduleHook(HOOK_KEY);
+    }
+
+    static Runnable wrap(Runnable task) {
+        ContextView context = CURRENT.get();
+        if (context == null) {
+            return task;
+        }
+        return () -> {
+            ContextView previous = enter(context);
+            try {
+                task.run();
+            } finally {
+                exit(context, previous);
+            }
+        };
+    }
+
+    public static <T> Flux<T> flux(Flux<T> source) {
+        return new FluxOperator<T, T>(source) {
+            @Override
+            public void subscribe(CoreSubscriber<? super T> actual) {
+                subscribeBridged(source, actual);
+            }
+        };
+    }
+
+    public static <T> Mono<T> mono(Mono<T> source) {
+        return new MonoOperator<T, T>(source) {
+            @Override
+            public void subscribe(CoreSubscriber<? super T> actual) {
+                subscribeBridged(source, actual);
+            }
+        };
+    }
+
+    private static <T> void subscribeBridged(CorePublisher<T> source, CoreSubscriber<? super T> actual) {
+        BridgeSubscriber<T> bridge = new BridgeSubscriber<>(actual);
+        ContextView previous = enter(bridge.context);
+        try {
+            source.subscribe(bridge);
+        } finally {
+            exit(bridge.context, previous);
+        }
+    }
+
+    /**
+     * @return 原来的 Context，交给 {@link #exit} 恢复
+     */
+    static ContextView enter(ContextView context) {
+        ContextView previous = CURRENT.get();
+        if (previous != context) {
+            CURRENT.set(context);
+            copyToMdc(context);
+        }
+        return previous;
+    }
+
+    static void exit(ContextView context, ContextView previous) {
+        if (previous == context) {
+            return;
+        }
+        if (previous == null) {
+            CURRENT.remove();
+            for (ContextKey<?> key : ContextKey.mdcKeys()) {
+                MDC.remove(key.name());
+            }
+        } else {
+            CURRENT.set(previous);
+            copyToMdc(previous);
+        }
+    }
+
+    private static void copyToMdc(ContextView context) {
+        for (ContextKey<?> key : ContextKey.mdcKeys()) {
+            Object value = context.getOrDefault(key, null);
+            if (value != null) {
+                MDC.put(key.name(), value.toString());
+            } else {
+                MDC.remove(key.name());
+            }
+        }
+    }
+
+    static final class BridgeSubscriber<T> implements CoreSubscriber<T>, Subscription {
+
+        final CoreSubscriber<? super T> actual;
+
+        final Context context;
+
+        Subscription upstream;
+
+        BridgeSubscriber(CoreSubscriber<? super T> actual) {
+            this.actual = actual;
+            this.context = actual.currentContext();
+        }
+
+        @Override
+        public Context currentContext() {
+            return context;
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            upstream = s;
+            actual.onSubscribe(this);
+        }
+
+        @Override
+        public void onNext(T t) {
+            ContextView previous = enter(context);
+            try {
+                actual.onNext(t);
+            } finally {
+                exit(context, previous);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            ContextView previous = enter(context);
+            try {
+                actual.onError(t);
+            } finally {
+                exit(context, previous);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            ContextView previous = enter(context);
+            try {
+                actual.onComplete();
+            } finally {
+                exit(context, previous);
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            upstream.request(n);
+        }
+
+        @Override
+        public void cancel() {
+            upstream.cancel();
+        }
+    }
+}
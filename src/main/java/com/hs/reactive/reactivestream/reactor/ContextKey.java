@@ -0,0 +1,112 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * {@link FlatContext} 的 key，同一个名字只有一个实例（驻留），创建时分配一个下标，FlatContext 按下标在数组中直接存取
+ * 用字符串 key 读写 FlatContext 时，已经注册过的名字也按下标存取，和用 ContextKey 是同一个值
+ * key 的个数是全局的、只增不减，应该定义成常量，比如链路追踪 id、租户 id，而不是每个请求一个
+ *
+ * @param <T> 值的类型
+ */
+public final class ContextKey<T> {
+
+    /**
+     * 最多注册这么多个 key，FlatContext 的数组最长也是这么长
+     */
+    static final int MAX_KEYS = 256;
+
+    private static final Map<String, ContextKey<?>> KEYS = new ConcurrentHashMap<>();
+
+    private static final AtomicReferenceArray<ContextKey<?>> BY_INDEX = new AtomicReferenceArray<>(MAX_KEYS);
+
+    /**
+     * 需要同步到 MDC 的 key，写时复制，由 KEYS 的锁保护写入
+     */
+    private static volatile ContextKey<?>[] mdcKeys = new ContextKey<?>[0];
+
+    private final String name;
+
+    private final int index;
+
+    private final boolean mdc;
+
+    private ContextKey(String name, int index, boolean mdc) {
+        this.name = name;
+        this.index = index;
+        this.mdc = mdc;
+    }
+
+    public static <T> ContextKey<T> of(String name) {
+        return register(name, false);
+    }
+
+    /**
+     * 值会被 {@link ContextBridge} 以 name 为 key 写进 MDC，日志中可以直接打印
+     */
+    public static <T> ContextKey<T> mdc(String name) {
+        return register(name, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> ContextKey<T> register(String name, boolean mdc) {
+        ContextKey<?> key = KEYS.get(name);
+        if (key == null) {
+            synchronized (KEYS) {
+                key = KEYS.get(name);
+                if (key == null) {
+                    if (KEYS.size() >= MAX_KEYS) {
+                        throw new IllegalStateException("Too many context keys, at most " + MAX_KEYS);
+                    }
+                    key = new ContextKey<>(name, KEYS.size(), mdc);
+                    if (mdc) {
+                        ContextKey<?>[] keys = mdcKeys;
+                        ContextKey<?>[] next = new ContextKey<?>[keys.length + 1];
+                        System.arraycopy(keys, 0, next, 0, keys.length);
+                        next[keys.length] = key;
+                        mdcKeys = next;
+                    }
+                    BY_INDEX.set(key.index, key);
+                    KEYS.put(name, key);
+                }
+            }
+        }
+        if (key.mdc != mdc) {
+            throw new IllegalArgumentException("Context key '" + name + "' is already registered with mdc=" + key.mdc);
+        }
+        return (ContextKey<T>) key;
+    }
+
+    /**
+     * 字符串 key 对应的 ContextKey，没有注册过返回 null
+     */
+    static ContextKey<?> lookup(Object key) {
+        if (key instanceof ContextKey) {
+            return (ContextKey<?>) key;
+        }
+        return key instanceof String ? KEYS.get(key) : null;
+    }
+
+    static ContextKey<?> keyAt(int index) {
+        return BY_INDEX.get(index);
+    }
+
+    static ContextKey<?>[] mdcKeys() {
+        return mdcKeys;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    int index() {
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,64 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 元素和字节之间的转换，{@link OffHeapReplaySink} 用它把元素以字节的形式存在堆外
+ *
+ * @param <T> 元素类型
+ */
+public interface ElementSerializer<T> {
+
+    /**
+     * 把元素写进 target，空间不够时抛出 {@link java.nio.BufferOverflowException}，调用方会扩容后重试
+     */
+    void write(T value, ByteBuffer target);
+
+    /**
+     * 从 source 的 position 到 limit 读出一个元素
+     */
+    T read(ByteBuffer source);
+
+    static ElementSerializer<Integer> ofInt() {
+        return new ElementSerializer<>() {
+            @Override
+            public void write(Integer value, ByteBuffer target) {
+                target.putInt(value);
+            }
+
+            @Override
+            public Integer read(ByteBuffer source) {
+                return source.getInt();
+            }
+        };
+    }
+
+    static ElementSerializer<Long> ofLong() {
+        return new ElementSerializer<>() {
+            @Override
+            public void write(Long value, ByteBuffer target) {
+                target.putLong(value);
+            }
+
+            @Override
+            public Long read(ByteBuffer source) {
+                return source.getLong();
+            }
+        };
+    }
+
+    static ElementSerializer<String> ofString() {
+        return new ElementSerializer<>() {
+            @Override
+            public void write(String value, ByteBuffer target) {
+                target.put(value.getBytes(StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public String read(ByteBuffer source) {
+                return StandardCharsets.UTF_8.decode(source).toString();
+            }
+        };
+    }
+}
@@ -0,0 +1,266 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import com.hs.reactive.reactivestream.flow.MpscArrayRing;
+import reactor.core.Disposable;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 多生产者的事件接入，给 {@link MyListen} 这种监听器用
+ * Flux.create 默认的 BUFFER 策略把事件放进无界队列，很多 UI/事件线程同时发送时，突发的事件会无限堆积；而且 FluxSink.next 是串行化的，生产者之间会互相竞争
+ * 这里：
+ * 1、按生产者线程分成多个条带（stripe），每个条带是一个有界的 {@link MpscArrayRing}，不同线程的事件大多落在不同条带上，互不竞争
+ * 2、生产者调用 offer，放不下直接返回 false，调用方可以据此降级，永远不会阻塞
+ * 3、只有一个后台任务负责消费：按下游的请求量，轮流从每个条带中一次取最多 batchSize 个事件发给下游，生产者只在后台任务没有在运行时才调度它
+ * 4、放不下的时候按 overflowStrategy 处理：DROP 丢弃新事件并计数，ERROR 向下游发出溢出错误
+ * 和 Flux.push 一样只能有一个订阅者
+ *
+ * @param <T> 事件类型
+ */
+public final class EventIngestor<T> implements Disposable {
+
+    private final MpscArrayRing<T>[] stripes;
+
+    private final int mask;
+
+    private final int batchSize;
+
+    private final FluxSink.OverflowStrategy overflowStrategy;
+
+    private final Scheduler.Worker worker;
+
+    private final Flux<T> flux;
+
+    private final AtomicReference<FluxSink<T>> sink = new AtomicReference<>();
+
+    /**
+     * 后台消费任务是否已经被调度
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final LongAdder emitted = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private volatile boolean overflowed;
+
+    private volatile boolean done;
+
+    private volatile boolean terminated;
+
+    private volatile boolean disposed;
+
+    public EventIngestor(int stripes, int stripeCapacity, FluxSink.OverflowStrategy overflowStrategy) {
+        this(stripes, stripeCapacity, 256, overflowStrategy, Schedulers.single());
+    }
+
+    /**
+     * @param stripes          条带数，向上取 2 的幂，一般取生产者线程数
+     * @param stripeCapacity   每个条带最多缓冲的事件数
+     * @param batchSize        消费时每个条带一次最多取多少个，避免一个很忙的条带饿死其他条带
+     * @param overflowStrategy 只支持 DROP 和 ERROR，其他策略要么无界（BUFFER），要么需要生产者从队列中取元素（LATEST）
+     * @param scheduler        后台消费任务运行的调度器
+     */
+    @SuppressWarnings("unchecked")
+    public EventIngestor(int stripes, int stripeCapacity, int batchSize, FluxSink.OverflowStrategy overflowStrategy, Scheduler scheduler) {
+        if (overflowStrategy != FluxSink.OverflowStrategy.DROP && overflowStrategy != FluxSink.OverflowStrategy.ERROR) {
+            throw new IllegalArgumentException("Only DROP and ERROR overflow strategies are supported: " + overflowStrategy);
+        }
+        if (stripes < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("stripes and batchSize must be positive");
+        }
+        int size = 1 << (32 - Integer.numberOfLeadingZeros(stripes - 1));
+        this.stripes = new MpscArrayRing[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new MpscArrayRing<>(stripeCapacity);
+        }
+        this.mask = size - 1;
+        this.batchSize = batchSize;
+        this.overflowStrategy = overflowStrategy;
+        this.worker = scheduler.createWorker();
+        //只有后台消费任务一个线程调用 next，本来不需要 Flux.create 的串行化，
+        //但是 Flux.push 的 onRequest 只在注册时回调一次 Long.MAX_VALUE，之后下游再 request 不会通知，消费任务就不会被重新调度
+        this.flux = Flux.create(s -> {
+            if (!sink.compareAndSet(null, s)) {
+                s.error(new IllegalStateException("EventIngestor allows only a single Subscriber"));
+                return;
+            }
+            if (disposed) {
+                s.complete();
+                return;
+            }
+            s.onRequest(n -> schedule());
+            s.onDispose(() -> sink.compareAndSet(s, null));
+        }, FluxSink.OverflowStrategy.IGNORE);
+    }
+
+    /**
+     * 生产者调用，可以被任意多个线程同时调用，不会阻塞
+     *
+     * @return 这个线程对应的条带满了、或者已经结束了返回 false
+     */
+    public boolean offer(T event) {
+        if (done) {
+            return false;
+        }
+        MpscArrayRing<T> stripe = stripes[(int) Thread.currentThread().getId() & mask];
+        if (!stripe.offer(event)) {
+            dropped.increment();
+            if (overflowStrategy == FluxSink.OverflowStrategy.ERROR) {
+                overflowed = true;
+                schedule();
+            }
+            return false;
+        }
+        schedule();
+        return true;
+    }
+
+    /**
+     * 不再接收新事件，已经缓冲的事件发完之后结束
+     */
+    public void complete() {
+        done = true;
+        schedule();
+    }
+
+    /**
+     * 订阅之后才开始消费
+     */
+    public Flux<T> flux() {
+        return flux;
+    }
+
+    private void schedule() {
+        //已经调度了就只是一次 volatile 读，生产者之间不竞争
+        if (!disposed && !scheduled.get() && scheduled.compareAndSet(false, true)) {
+            worker.schedule(this::drain);
+        }
+    }
+
+    private void drain() {
+        for (; ; ) {
+            FluxSink<T> s = sink.get();
+            if (terminated) {
+                return;
+            }
+            if (s != null) {
+                if (overflowed) {
+                    terminated = true;
+                    s.error(Exceptions.failWithOverflow("EventIngestor stripe is full"));
+                    return;
+                }
+                //requestedFromDownstream 每发一个就减一，只在开始时取一次，和已发出的数量比较
+                long r = s.requestedFromDownstream();
+                long e = 0L;
+                boolean progress = true;
+                while (progress && e < r) {
+                    progress = false;
+                    for (MpscArrayRing<T> stripe : stripes) {
+                        int n = 0;
+                        T event;
+                        while (n < batchSize && e + n < r && (event = stripe.poll()) != null) {
+                            s.next(event);
+                            n++;
+                        }
+                        if (n > 0) {
+                            e += n;
+                            progress = true;
+                        }
+                    }
+                }
+                emitted.add(e);
+                if (done && isEmpty()) {
+                    terminated = true;
+                    s.complete();
+                    return;
+                }
+            }
+            scheduled.set(false);
+            //生产者可能在 scheduled 还是 true 的时候放进了事件，重新检查一次，避免事件没人消费
+            FluxSink<T> current = sink.get();
+            boolean pending = current != null
+                    && (overflowed || (done && isEmpty()) || (!isEmpty() && current.requestedFromDownstream() > 0));
+            if (!pending || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private boolean isEmpty() {
+        for (MpscArrayRing<T> stripe : stripes) {
+            if (!stripe.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 已经发给下游的事件数
+     */
+    public long emittedCount() {
+        return emitted.sum();
+    }
+
+    /**
+     * 因为条带满了被丢弃的事件数
+     */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * 所有条带中还没有发给下游的事件数
+     */
+    public int queueDepth() {
+        int depth = 0;
+        for (MpscArrayRing<T> stripe : stripes) {
+            depth += stripe.size();
+        }
+        return depth;
+    }
+
+    /**
+     * 立即停止：不再接收新事件，丢掉还没发出的事件，下游收到 onComplete
+     * 结束信号在后台消费任务的 worker 上发出，不会和正在进行的 drain 并发
+     */
+    @Override
+    public void dispose() {
+        if (disposed) {
+            return;
+        }
+        done = true;
+        disposed = true;
+        try {
+            worker.schedule(() -> {
+                if (!terminated) {
+                    terminated = true;
+                    for (MpscArrayRing<T> stripe : stripes) {
+                        stripe.clear();
+                    }
+                    FluxSink<T> s = sink.get();
+                    if (s != null) {
+                        s.complete();
+                    }
+                }
+                worker.dispose();
+            });
+        } catch (RejectedExecutionException e) {
+            worker.dispose();
+        }
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return disposed;
+    }
+}
@@ -0,0 +1,221 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * 扁平数组实现的 Context，key 是驻留的 {@link ContextKey}，按 key 的下标直接存取
+ * Reactor 自带的 Context 超过 5 个 key 之后是 ContextN，每次 put 都要复制一个 LinkedHashMap；
+ * 一个请求带着十来个追踪、租户相关的 key，在流中写好几次，每次都复制整个 map
+ * 这里每次 put 只复制一个数组（长度是用到的最大下标 + 1），get 是一次数组下标访问；
+ * 不是 ContextKey（也不是注册过的名字）的 key 放在一个普通的 Context 里，行为和原来一样；stream() 中注册过的 key 是 ContextKey 对象
+ * 注意 contextWrite(ContextView) 会被 Reactor 转成 ContextN，要用函数的形式：contextWrite(FlatContext.write(key, value))
+ */
+public final class FlatContext implements Context {
+
+    private static final FlatContext EMPTY = new FlatContext(new Object[0], 0, Context.empty());
+
+    /**
+     * 下标是 ContextKey 的下标，null 表示没有这个 key；创建之后不再修改，多个 FlatContext 可以共享
+     */
+    private final Object[] values;
+
+    private final int flatSize;
+
+    private final Context rest;
+
+    private FlatContext(Object[] values, int flatSize, Context rest) {
+        this.values = values;
+        this.flatSize = flatSize;
+        this.rest = rest;
+    }
+
+    public static FlatContext empty() {
+        return EMPTY;
+    }
+
+    /**
+     * 已经是 FlatContext 的直接返回，否则把所有的值复制进来，只复制一次数组
+     */
+    public static FlatContext from(ContextView context) {
+        if (context instanceof FlatContext) {
+            return (FlatContext) context;
+        }
+        return EMPTY.putAll(context);
+    }
+
+    /**
+     * 用法：contextWrite(FlatContext.write(TRACE_ID, traceId))
+     */
+    public static Function<Context, Context> write(ContextKey<?> key, Object value) {
+        return context -> from(context).put(key, value);
+    }
+
+    /**
+     * 一次写入多个值，只复制一次数组；values 可以提前构造好复用
+     */
+    public static Function<Context, Context> writeAll(FlatContext values) {
+        return context -> from(context).putAll((ContextView) values);
+    }
+
+    public <T> T get(ContextKey<T> key) {
+        Object v = key.index() < values.length ? values[key.index()] : null;
+        if (v == null) {
+            throw new NoSuchElementException("Context does not contain key: " + key);
+        }
+        @SuppressWarnings("unchecked")
+        T t = (T) v;
+        return t;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key) {
+        ContextKey<?> k = ContextKey.lookup(key);
+        if (k == null) {
+            return rest.get(key);
+        }
+        return (T) get(k);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T getOrDefault(Object key, T defaultValue) {
+        ContextKey<?> k = ContextKey.lookup(key);
+        if (k == null) {
+            return rest.getOrDefault(key, defaultValue);
+        }
+        Object v = k.index() < values.length ? values[k.index()] : null;
+        return v == null ? defaultValue : (T) v;
+    }
+
+    @Override
+    public boolean hasKey(Object key) {
+        ContextKey<?> k = ContextKey.lookup(key);
+        if (k == null) {
+            return rest.hasKey(key);
+        }
+        return k.index() < values.length && values[k.index()] != null;
+    }
+
+    @Override
+    public int size() {
+        return flatSize + rest.size();
+    }
+
+    @Override
+    public FlatContext put(Object key, Object value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key and value must not be null");
+        }
+        ContextKey<?> k = ContextKey.lookup(key);
+        if (k == null) {
+            return new FlatContext(values, flatSize, rest.put(key, value));
+        }
+        int index = k.index();
+        Object[] next = Arrays.copyOf(values, Math.max(values.length, index + 1));
+        int size = next[index] == null ? flatSize + 1 : flatSize;
+        next[index] = value;
+        return new FlatContext(next, size, rest);
+    }
+
+    @Override
+    public FlatContext delete(Object key) {
+        ContextKey<?> k = ContextKey.lookup(key);
+        if (k == null) {
+            return rest.hasKey(key) ? new FlatContext(values, flatSize, rest.delete(key)) : this;
+        }
+        int index = k.index();
+        if (index >= values.length || values[index] == null) {
+            return this;
+        }
+        Object[] next = values.clone();
+        next[index] = null;
+        return new FlatContext(next, flatSize - 1, rest);
+    }
+
+    /**
+     * 所有的值写进同一个新数组，只复制一次
+     */
+    @Override
+    public FlatContext putAll(ContextView other) {
+        if (other.isEmpty()) {
+            return this;
+        }
+        Object[] next = values;
+        boolean copied = false;
+        int size = flatSize;
+        Context nextRest = rest;
+        if (other instanceof FlatContext) {
+            FlatContext o = (FlatContext) other;
+            next = Arrays.copyOf(values, Math.max(values.length, o.values.length));
+            copied = true;
+            for (int i = 0; i < o.values.length; i++) {
+                if (o.values[i] != null) {
+                    if (next[i] == null) {
+                        size++;
+                    }
+                    next[i] = o.values[i];
+                }
+            }
+            nextRest = nextRest.putAll(o.rest.readOnly());
+        } else {
+            Iterator<Map.Entry<Object, Object>> it = other.stream().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Object, Object> e = it.next();
+                ContextKey<?> k = ContextKey.lookup(e.getKey());
+                if (k == null) {
+                    nextRest = nextRest.put(e.getKey(), e.getValue());
+                    continue;
+                }
+                if (!copied) {
+                    next = Arrays.copyOf(values, Math.max(values.length, ContextKey.MAX_KEYS));
+                    copied = true;
+                }
+                if (next[k.index()] == null) {
+                    size++;
+                }
+                next[k.index()] = e.getValue();
+            }
+            if (copied) {
+                next = trim(next);
+            }
+        }
+        return new FlatContext(next, size, nextRest);
+    }
+
+    private static Object[] trim(Object[] values) {
+        int length = values.length;
+        while (length > 0 && values[length - 1] == null) {
+            length--;
+        }
+        return length == values.length ? values : Arrays.copyOf(values, length);
+    }
+
+    @Override
+    public Stream<Map.Entry<Object, Object>> stream() {
+        Stream<Map.Entry<Object, Object>> flat = IntStream.range(0, values.length)
+                .filter(i -> values[i] != null)
+                .mapToObj(i -> new AbstractMap.SimpleImmutableEntry<>(ContextKey.keyAt(i), values[i]));
+        return Stream.concat(flat, rest.stream());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("FlatContext{");
+        stream().forEach(e -> sb.append(e.getKey()).append('=').append(e.getValue()).append(", "));
+        if (sb.charAt(sb.length() - 1) == ' ') {
+            sb.setLength(sb.length() - 2);
+        }
+        return sb.append('}').toString();
+    }
+}
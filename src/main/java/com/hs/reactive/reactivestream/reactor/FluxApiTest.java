@@ -2,7 +2,9 @@ package com.hs.reactive.reactivestream.reactor;
 
 import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
 import reactor.core.scheduler.Schedulers;
 
 import java.io.IOException;
@@ -52,6 +54,22 @@ public class FluxApiTest {
         });
     }
 
+    /**
+     * 很多线程同时触发事件时，Flux.create 默认的 BUFFER 策略会把突发的事件放进无界队列
+     * 改为 EventIngestor：每个线程写自己的有界条带，满了 offer 返回 false，后台按下游的请求量批量发出
+     */
+    public static void ingestorTest() {
+        //4 个条带，每个最多缓冲 1024 个事件，放不下就丢弃
+        EventIngestor<Object> ingestor = new EventIngestor<>(4, 1024, FluxSink.OverflowStrategy.DROP);
+        ingestor.flux()
+                .subscribe(name -> System.out.println("处理了" + name + "按钮的点击"));
+        MyListen myListen = new MyListen(ingestor);
+        for (int i = 0; i < 4; i++) {
+            int thread = i;
+            new Thread(() -> myListen.onClick("线程" + thread)).start();
+        }
+    }
+
     /**
      * 自定义流元素的处理规则
      */
@@ -87,6 +105,38 @@ public class FluxApiTest {
 //        Schedulers.single();
         //自己定义一个线程池
 //        Schedulers.fromExecutor(new ThreadPoolExecutor(1,1))
+        //虚拟线程，给阻塞调用用，不受 boundedElastic 线程数的限制；JDK 21 之前退回到 boundedElastic
+//        VirtualThreadScheduler.create("blocking");
+    }
+
+    /**
+     * 阻塞调用放到虚拟线程上：1000 个同时阻塞 100ms 的调用，boundedElastic 只有 10 * CPU 核数个线程，要排好几轮；虚拟线程一轮就完成了
+     * 同时检测虚拟线程有没有在 synchronized 块中阻塞、钉住平台线程
+     */
+    static void virtualThreadTest() {
+        Scheduler scheduler = VirtualThreadScheduler.create("blocking");
+        VirtualThreadPinningMonitor monitor = VirtualThreadPinningMonitor.start(Duration.ofMillis(20));
+        Object lock = new Object();
+        long start = System.nanoTime();
+        Flux.range(1, 1000)
+                .flatMap(i -> Mono.fromCallable(() -> {
+                            if (i % 100 == 0) {
+                                //在 synchronized 块中阻塞会钉住平台线程
+                                synchronized (lock) {
+                                    Thread.sleep(100);
+                                }
+                            } else {
+                                Thread.sleep(100);
+                            }
+                            return Thread.currentThread().toString();
+                        })
+                        .subscribeOn(scheduler), 1000)
+                .count()
+                .doOnNext(count -> System.out.println(count + "个阻塞调用耗时" + Duration.ofNanos(System.nanoTime() - start).toMillis()
+                        + "ms，调度器" + scheduler + "，钉住了" + monitor.pinnedCount() + "次：" + monitor.hotspots()))
+                .block();
+        monitor.dispose();
+        scheduler.dispose();
     }
 
     /**
@@ -190,9 +240,11 @@ public class FluxApiTest {
 //        generateTest();
 //        handleTest();
 //        threadTest();
+//        virtualThreadTest();
 //        transformTest();
 //        emptyTest();
 //        mergeTest();
+//        ingestorTest();
         zipTest();
         System.in.read();
 
@@ -2,6 +2,8 @@ package com.hs.reactive.reactivestream.reactor;
 
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
 
 import java.io.IOException;
 import java.time.Duration;
@@ -153,6 +155,22 @@ public class FluxDemo1 {
         buffer.subscribe(v-> System.out.println(v.getClass()));
     }
 
+    /**
+     * buffer 只能按个数攒批，而批量写库、批量调用 HTTP 接口时，一批的大小还受字节数和等待时间的限制
+     * MicroBatcher：攒够 100 个、或者字符串总长度达到 1KB、或者等了 50ms，哪个先满足就发出一批
+     */
+    public static void microBatchTest(){
+        MicroBatcher<String> batcher = new MicroBatcher<>(100, 1024, String::length, Duration.ofMillis(50));
+        Flux.range(1, 1000)
+                .map(i -> "user-" + i)
+                .transform(batcher)
+                .subscribe(batch -> {
+                    System.out.println("一批" + batch.size() + "个，共" + batch.weight() + "字节");
+                    //处理完（比如写库成功）之后把批次还回池中复用
+                    batch.release();
+                }, e -> {}, () -> System.out.println("批次大小分布" + batcher.batchSize().snapshot() + "，攒批延迟分布（纳秒）" + batcher.flushLatency().snapshot()));
+    }
+
     /**
      * 测试 limit 方法
      */
@@ -168,12 +186,49 @@ public class FluxDemo1 {
         integerFlux.subscribe();
     }
 
+    /**
+     * limitTest 用 log 看 request(n)，每个信号都同步打印一次；换成埋点统计，只计数，最后打印一次
+     * 可以看到 limitRate(20) 之前请求了 15 次以上（第一次 20 个，之后每次 15 个），limitRate 之后只请求了一次 Long.MAX_VALUE
+     */
+    public static void metricsTest(){
+        PipelineMetrics metrics = new PipelineMetrics();
+        Flux.range(1, 300)
+                .transformDeferred(metrics.flux("before limitRate"))
+                .limitRate(20)
+                .transformDeferred(metrics.flux("after limitRate"))
+                .doOnComplete(() -> metrics.snapshot().forEach(System.out::println))
+                .subscribe();
+        //排查问题时也可以给所有操作符都加上统计，之后组装的流都会生效
+//        metrics.installGlobalHook();
+    }
+
+    /**
+     * 行情之类的流：8 个品种每 50 微秒更新一次，下游每 100ms 才能处理一个
+     * delayElements、onBackpressureBuffer 会把每次更新都排队，越积越多；按品种合并后每个品种只保留最新的价格，
+     * 下游每次拿到的都是最新值，延迟不超过 8 个品种各处理一次的时间
+     * 换成 new Conflator<>(Tuple2::getT1, 64, Duration.ofSeconds(1)) 就是每秒采样一次，每个品种每秒最多发一次
+     */
+    public static void conflateTest(){
+        Conflator<Tuple2<String, Long>, String> conflator = new Conflator<>(Tuple2::getT1, 64);
+        Flux.interval(Duration.ofNanos(50_000))
+                .map(i -> Tuples.of("symbol" + (i % 8), i))
+                .transform(conflator)
+                .concatMap(quote -> Mono.just(quote).delayElement(Duration.ofMillis(100)), 1)
+                .take(Duration.ofSeconds(3))
+                .doOnComplete(() -> System.out.println("收到 " + conflator.receivedCount() + " 次更新，合并了 " + conflator.conflatedCount()
+                        + " 次，发出 " + conflator.deliveredCount() + " 次，等待时间 " + conflator.staleness().snapshot()))
+                .subscribe(System.out::println);
+    }
+
     public static void main(String[] args) throws IOException {
 //        flux();
 //        mono();
 //        subscribeTest();
 //        methodTest();
 //        bufferTest();
+//        microBatchTest();
+//        metricsTest();
+//        conflateTest();
         limitTest();
         //卡住主线程别结束
         System.in.read();
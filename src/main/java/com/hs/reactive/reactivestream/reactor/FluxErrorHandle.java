@@ -1,6 +1,13 @@
 package com.hs.reactive.reactivestream.reactor;
 
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * 错误处理 <br/>
@@ -10,7 +17,9 @@ import reactor.core.publisher.Flux;
  * 4. doOnError         【流会异常完成，消费者会收到异常】 <br/>
  * 5. onErrorContinue   【流会正常完成，消费者不会收到异常】 <br/>
  * 6. onErrorComplete   【流会正常完成，消费者不会收到异常】 <br/>
- * 7. onErrorStop       【流会异常完成，但消费者不会收到异常】
+ * 7. onErrorStop       【流会异常完成，但消费者不会收到异常】<br/>
+ * 下游一直失败时不再调用它：{@link CircuitBreaker}、{@link Bulkhead}
+ * 记录错误信号不要用 System.out.println：{@link SignalLog}
  */
 public class FluxErrorHandle {
 
@@ -60,7 +69,72 @@ public class FluxErrorHandle {
     }
 
 
-    public static void main(String[] args) {
+    /**
+     * 上面的操作符只能处理已经发生的异常，下游一直失败时还是会一直调用它
+     * 熔断器：最近的调用中失败率超过 50% 就打开，打开期间直接拒绝，1 秒后放行几个调用试探
+     */
+    static void circuitBreakerTest() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("user-service", 0.5, Duration.ofSeconds(1));
+        AtomicBoolean healthy = new AtomicBoolean(false);
+        Mono<String> call = Mono.fromCallable(() -> {
+            if (!healthy.get()) {
+                throw new MyException("下游挂了");
+            }
+            return "ok";
+        });
+        for (int i = 0; i < 40; i++) {
+            call.transformDeferred(breaker::mono)
+                    .onErrorResume(CallRejectedException.class, e -> Mono.just("熔断了，走降级逻辑"))
+                    .onErrorResume(e -> Mono.just("调用失败：" + e.getMessage()))
+                    .subscribe(System.out::println);
+        }
+        System.out.println(breaker.metrics());
+        //下游恢复了，等熔断器进入半开状态试探成功后关闭
+        healthy.set(true);
+        Thread.sleep(1100);
+        for (int i = 0; i < 20; i++) {
+            call.transformDeferred(breaker::mono).subscribe();
+        }
+        System.out.println(breaker.metrics());
+    }
+
+    /**
+     * 舱壁：最多同时 5 个调用，多出来的直接拒绝，不排队
+     */
+    static void bulkheadTest() {
+        Bulkhead bulkhead = new Bulkhead("slow-service", 5);
+        Flux.range(1, 20)
+                .flatMap(i -> Mono.delay(Duration.ofMillis(100))
+                        .map(tick -> "第" + i + "个调用成功")
+                        .transformDeferred(bulkhead::mono)
+                        .onErrorResume(CallRejectedException.class, e -> Mono.just("第" + i + "个调用被拒绝：" + e.getMessage())))
+                .doOnNext(System.out::println)
+                .blockLast();
+        System.out.println("成功" + bulkhead.acceptedCount() + "个，拒绝" + bulkhead.rejectedCount() + "个");
+    }
+
+    /**
+     * errorTest 用 doOnError/doFinally 里的 System.out.println 看信号，控制台输出是加锁的同步写
+     * 换成二进制的信号日志：每个信号写进内存中的环，后台线程再写进内存映射文件，最后读出来打印
+     */
+    static void signalLogTest() throws IOException {
+        Path file = Files.createTempFile("signals", ".bin");
+        SignalLog log = SignalLog.open(file, 65536, 64 << 20);
+        Flux.range(1, 10)
+                .map(s -> s == 3 ? s / 0 : s)
+                .doOnEach(log.tracer("errorTest"))
+                .onErrorResume(e -> Flux.empty())
+                .blockLast();
+        //刷到文件之后读出来
+        log.dispose();
+        SignalLog.read(file).forEach(System.out::println);
+        System.out.println("丢弃了" + log.droppedCount() + "条");
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
         errorTest();
+//        circuitBreakerTest();
+//        bulkheadTest();
+//        signalLogTest();
     }
 }
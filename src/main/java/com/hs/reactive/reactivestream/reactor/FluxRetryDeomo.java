@@ -1,13 +1,21 @@
 package com.hs.reactive.reactivestream.reactor;
 
+import org.slf4j.MDC;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Scheduler;
 import reactor.core.scheduler.Schedulers;
 import reactor.util.context.Context;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
 
 import java.io.IOException;
 import java.time.Duration;
+import java.util.List;
 import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * 重试机制
@@ -25,12 +33,31 @@ public class FluxRetryDeomo {
                 .log()
                 //一秒超时
                 .timeout(Duration.ofSeconds(1))
-                // retry(3) 方法会将流重试三次
-                .retry(3)
+                // retry(3) 方法会将流重试三次，失败之后马上重新订阅，下游慢的时候会把压力放大
+//                .retry(3)
+                //最多重试三次，每次等 [0, 100ms * 2^k] 之间的随机时间，并且受整个进程的重试预算限制
+                .retryWhen(new JitteredBackoff(3, Duration.ofMillis(100), Duration.ofSeconds(1), RetryBudget.global()))
                 .log()
                 .subscribe(System.out::println);
     }
 
+    /**
+     * 对冲请求：大部分请求 10ms 就返回，偶尔有请求要 1 秒，超过 p95 还没有返回就再发一次
+     */
+    static void hedgeTest() {
+        //对冲用单独的预算：对冲请求最多占 10%，不和 retryTest 中 JitteredBackoff 的全局预算混在一起
+        Hedger<Integer> hedger = new Hedger<>(Duration.ofMillis(50), new RetryBudget(0.1, 20));
+        Mono<Integer> call = Mono.fromCallable(() -> ThreadLocalRandom.current().nextInt(100))
+                .flatMap(i -> Mono.just(i).delayElement(Duration.ofMillis(i < 5 ? 1000 : 10)));
+        Flux.range(1, 200)
+                .concatMap(i -> call.transform(hedger).elapsed())
+                .map(Tuple2::getT1)
+                .reduce(Math::max)
+                .doOnNext(max -> System.out.println("最慢的请求耗时" + max + "ms，对冲延迟" + hedger.hedgeDelay()
+                        + "，对冲请求" + hedger.hedgeCount() + "次，对冲请求先返回" + hedger.hedgeWinCount() + "次"))
+                .block();
+    }
+
     /**
      * Sinks: 接收器，数据管道，数据流顺着管道往下流转
      *
@@ -46,6 +73,7 @@ public class FluxRetryDeomo {
 //        Sinks.many().replay();
 //        //背压，相当于缓冲区最多放十个元素
 //        Sinks.many().unicast().onBackpressureBuffer(new PriorityQueue<>(10));
+//        //注意 PriorityQueue 不是线程安全的，10 也只是初始容量不是上限，需要按优先级出队的有界缓冲用 PrioritySink，见 prioritySinkTest
 //
 //        //发送一个数据，相当于 Mono
 //        Sinks.one();
@@ -67,6 +95,48 @@ public class FluxRetryDeomo {
         }).start();
     }
 
+    /**
+     * 按优先级出队的有界缓冲：总共最多缓冲 100 个，满了之后高优先级的告警挤掉低优先级的告警
+     */
+    static void prioritySinkTest() {
+        PrioritySink<String> sink = new PrioritySink<>(3, 100, PrioritySink.OverflowPolicy.DROP_LOWEST,
+                dropped -> System.out.println("丢弃了" + dropped));
+        //多个线程同时发送也不会返回 FAIL_NON_SERIALIZED
+        for (int i = 0; i < 3; i++) {
+            int producer = i;
+            new Thread(() -> {
+                for (int j = 0; j < 100; j++) {
+                    sink.tryEmitNext("生产者" + producer + "的告警" + j + "，优先级" + (j % 3), j % 3);
+                }
+            }).start();
+        }
+        sink.asFlux()
+                .delayElements(Duration.ofMillis(10))
+                .subscribe(System.out::println);
+    }
+
+    /**
+     * cache(n) 和 Sinks.many().replay() 把要重放的元素作为对象存在堆上，重放的历史很长时 GC 压力很大
+     * OffHeapReplaySink 把元素序列化后存在堆外的环形缓冲区中，可以按个数、字节数和时间淘汰
+     */
+    static void offHeapCacheTest() {
+        //最多保留 3 个元素、占用 1MB、保留 1 分钟
+        OffHeapReplaySink<Integer> sink = OffHeapReplaySink.direct(ElementSerializer.ofInt(), 1 << 20, 3, Duration.ofMinutes(1));
+        Flux<Integer> cache = Flux.range(1, 10)
+                .delayElements(Duration.ofSeconds(1))
+                //和 cache(3) 一样，第二个订阅者从 5-3=2 的这个元素开始消费
+                .transform(sink::cache);
+        cache.subscribe();
+        new Thread(()->{
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            cache.subscribe(s-> System.out.println("我是第二个订阅者"+s));
+        }).start();
+    }
+
     /**
      * 阻塞式 api 测试
      */
@@ -78,6 +148,24 @@ public class FluxRetryDeomo {
         System.out.println(integer);
     }
 
+    /**
+     * 在响应式的流中间不能直接 block（会阻塞 parallel 之类的非阻塞线程，Reactor 会直接报错），要把阻塞的部分放到专门的调度器上
+     * boundedElastic 的线程数有上限，阻塞调用很多时用虚拟线程
+     */
+    static void blockOnVirtualThreadTest() {
+        Scheduler blocking = VirtualThreadScheduler.create("blocking");
+        Flux.interval(Duration.ofMillis(100))
+                .take(3)
+                .flatMap(tick -> Mono.fromCallable(() -> Flux.just(1, 2, 3, 4, 5, 6)
+                                .filter(i -> i > 3)
+                                .delayElements(Duration.ofMillis(50))
+                                .blockFirst())
+                        .subscribeOn(blocking))
+                .doOnNext(i -> System.out.println(Thread.currentThread() + "拿到" + i))
+                .blockLast();
+        blocking.dispose();
+    }
+
     /**
      *  parallel 并发处理测试
      */
@@ -90,6 +178,43 @@ public class FluxRetryDeomo {
                 .subscribe();
     }
 
+    /**
+     * runOn 把批次轮流分给每个 rail，一个很慢的批次会卡住它后面分到同一个 rail 的批次，其他 rail 做完了只能闲着
+     * 换成工作窃取：空闲的 rail 从忙的 rail 的队列中偷批次来处理
+     */
+    static void workStealingTest() {
+        WorkStealingParallelFlux<List<Integer>> rails = WorkStealingParallelFlux.from(Flux.range(1, 100).buffer(10), 10,
+                Schedulers.newParallel("my-parallel"));
+        rails.map(batch -> {
+                    //第一批特别慢
+                    if (batch.get(0) == 1) {
+                        LockSupport.parkNanos(Duration.ofSeconds(1).toNanos());
+                    }
+                    return batch;
+                })
+                .sequential()
+                .doOnComplete(() -> rails.railStats().forEach(System.out::println))
+                .subscribe(System.out::println);
+    }
+
+    /**
+     * 同一个用户的事件要按顺序处理，不同用户之间并行
+     * groupBy(userId).flatMap(g -> g.concatMap(...)) 每个用户一个 GroupedFlux，用户数超过 flatMap 的并发数（默认 256）时会卡住
+     * 换成按 key 分区：用户按哈希分到 8 条车道上，每条车道按顺序一个一个处理，用户再多也只有 8 条车道
+     */
+    static void partitionTest() {
+        KeyPartitioner<Tuple2<Integer, Integer>, String> partitioner = new KeyPartitioner<>(8, Tuple2::getT1,
+                event -> Mono.fromCallable(() -> "user " + event.getT1() + " event " + event.getT2() + " on " + Thread.currentThread().getName())
+                        .subscribeOn(Schedulers.parallel()));
+        //10000 个用户，每个用户 3 个事件
+        Flux.range(0, 30000)
+                .map(i -> Tuples.of(i % 10000, i / 10000))
+                .transform(partitioner)
+                .filter(line -> line.startsWith("user 42 "))
+                .doOnComplete(() -> System.out.println("processed " + partitioner.processedCount() + ", blocked " + partitioner.blockedCount()))
+                .subscribe(System.out::println);
+    }
+
     /**
      * 响应式编程中的 threadLocal
      */
@@ -108,12 +233,58 @@ public class FluxRetryDeomo {
         ;
     }
 
+    static final ContextKey<String> TRACE_ID = ContextKey.mdc("traceId");
+
+    static final ContextKey<String> TENANT = ContextKey.of("tenant");
+
+    /**
+     * 扁平数组的 Context：key 先注册成 ContextKey，写入时用 contextWrite(FlatContext.write(...))
+     * 装上 ContextBridge 之后，publishOn、delayElements 换了线程，MDC 中的 traceId 还在，日志可以直接打印
+     */
+    static void flatContextTest() {
+        ContextBridge.install();
+        Flux.range(1, 3)
+                .transform(ContextBridge::flux)
+                .publishOn(Schedulers.parallel())
+                .delayElements(Duration.ofMillis(10))
+                .doOnNext(i -> System.out.println(Thread.currentThread().getName() + " traceId=" + MDC.get("traceId") + " " + i))
+                .transformDeferredContextual((flux, context) -> flux.map(i -> context.get(TENANT) + ":" + i))
+                .contextWrite(FlatContext.write(TENANT, "acme"))
+                .contextWrite(FlatContext.write(TRACE_ID, "trace-42"))
+                .subscribe(System.out::println);
+    }
+
+    /**
+     * cache() 只对一条流有效，多个请求之间不共享；AsyncCache 按 key 缓存，1000 个并发请求查同一个 key 只加载一次
+     * 写入 4 秒后提前刷新（照常返回旧值），5 秒后过期
+     */
+    static void asyncCacheTest() {
+        AsyncCache<Integer, String> cache = new AsyncCache<>(1000, Duration.ofSeconds(5), Duration.ofSeconds(4),
+                key -> Mono.fromCallable(() -> "user" + key).delayElement(Duration.ofMillis(100)));
+        Flux.range(0, 1000)
+                .flatMap(i -> cache.get(i % 2), 1000)
+                .count()
+                .subscribe(count -> System.out.println(count + " 个请求，" + cache.stats()));
+        //loader 每次调用都不一样时，把上游的 mono 作为 loader
+        Mono.fromCallable(() -> "user7")
+                .transformDeferred(cache.cached(7))
+                .subscribe(System.out::println);
+    }
+
     public static void main(String[] args) throws IOException {
 //        retryTest();
+//        hedgeTest();
 //        sinksTest();
+//        offHeapCacheTest();
+//        prioritySinkTest();
 //        blockTest();
+//        blockOnVirtualThreadTest();
 //        parallelTest();
+//        workStealingTest();
+//        partitionTest();
         contextTest();
+//        flatContextTest();
+//        asyncCacheTest();
         System.in.read();
 
     }
@@ -0,0 +1,138 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 对冲请求，用法：mono.transform(hedger)，同一个下游服务的调用共用一个 hedger
+ * 请求发出去之后，如果过了 p95 延迟还没有结果，再发一个一样的请求，哪个先返回就用哪个，另一个取消掉
+ * 只有 5% 左右的请求会多发一次，但是长尾延迟从“慢请求的延迟”降到了大约“p95 + 一次正常请求的延迟”
+ * 1、p95 从最近的请求的延迟统计出来，每 window 个请求换一个直方图，延迟分布变了能跟上；
+ * 第一个请求被取消（对冲请求先返回了）时也记录它已经等了多久，否则慢请求都不进统计，p95 越来越小，对冲越来越多
+ * 2、样本不够的时候用 initialDelay
+ * 3、第二个请求也要从 {@link RetryBudget} 取令牌，下游整体变慢的时候不会把所有请求都发两遍；
+ * 每次订阅都会往预算里存一次令牌，外面再套 retryWhen(JitteredBackoff) 时两者要用不同的预算，
+ * 否则一个请求会存两次令牌（JitteredBackoff 存一次，每次重试订阅 hedger 又存一次），预算就不再限制重试的比例了
+ * 4、第二个请求失败了就忽略，还是等第一个请求的结果；第一个请求失败了直接把异常发给下游，失败的重试交给 {@link JitteredBackoff}
+ * 被对冲的请求必须是幂等的
+ */
+public final class Hedger<T> implements Function<Mono<T>, Mono<T>> {
+
+    private final Duration initialDelay;
+
+    private final long minDelayNanos;
+
+    private final int window;
+
+    private final RetryBudget budget;
+
+    private final Scheduler scheduler;
+
+    /**
+     * 正在记录的直方图和上一个窗口的直方图
+     */
+    private final AtomicReference<BucketHistogram[]> histograms =
+            new AtomicReference<>(new BucketHistogram[]{new BucketHistogram(), null});
+
+    private final LongAdder hedges = new LongAdder();
+
+    private final LongAdder hedgeWins = new LongAdder();
+
+    public Hedger(Duration initialDelay, RetryBudget budget) {
+        this(initialDelay, Duration.ofMillis(1), 1000, budget, Schedulers.parallel());
+    }
+
+    /**
+     * @param initialDelay 样本不够时，等多久再发第二个请求
+     * @param minDelay     至少等多久再发第二个请求，避免下游很快时几乎每个请求都发两遍
+     * @param window       每个直方图记录多少个请求
+     * @param budget       对冲请求的预算，不要和包在外面的 JitteredBackoff 共用同一个
+     * @param scheduler    计时用的调度器
+     */
+    public Hedger(Duration initialDelay, Duration minDelay, int window, RetryBudget budget, Scheduler scheduler) {
+        if (window < 20) {
+            throw new IllegalArgumentException("window must be at least 20 to estimate p95");
+        }
+        this.initialDelay = initialDelay;
+        this.minDelayNanos = minDelay.toNanos();
+        this.window = window;
+        this.budget = budget;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public Mono<T> apply(Mono<T> call) {
+        return Mono.defer(() -> {
+            budget.onRequest();
+            Mono<T> primary = timed(call, true);
+            Mono<T> hedge = Mono.delay(hedgeDelay(), scheduler)
+                    .flatMap(tick -> {
+                        if (!budget.tryAcquire()) {
+                            return Mono.never();
+                        }
+                        hedges.increment();
+                        return timed(call, false)
+                                .doOnSuccess(v -> hedgeWins.increment())
+                                .onErrorResume(e -> Mono.never());
+                    });
+            //firstWithSignal 取第一个发出信号的，取消另一个；对冲请求失败时变成 never，不会抢在第一个请求前面
+            return Mono.firstWithSignal(primary, hedge);
+        });
+    }
+
+    /**
+     * @param recordCancel 被取消时也记录已经等待的时间；对冲请求被取消说明第一个请求先返回了，它等的时间很短，不能记
+     */
+    private Mono<T> timed(Mono<T> call, boolean recordCancel) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return call.doFinally(signal -> {
+                if (signal == SignalType.ON_COMPLETE || (recordCancel && signal == SignalType.CANCEL)) {
+                    record(System.nanoTime() - start);
+                }
+            });
+        });
+    }
+
+    private void record(long latency) {
+        BucketHistogram[] current = histograms.get();
+        current[0].record(latency);
+        if (current[0].count() >= window) {
+            //只有一个线程能换成功，其他线程继续往旧的直方图里记也没关系
+            histograms.compareAndSet(current, new BucketHistogram[]{new BucketHistogram(), current[0]});
+        }
+    }
+
+    /**
+     * 当前使用的对冲延迟：优先用上一个完整窗口的 p95
+     */
+    public Duration hedgeDelay() {
+        BucketHistogram[] current = histograms.get();
+        BucketHistogram samples = current[1] != null ? current[1] : current[0];
+        if (samples.count() < 20) {
+            return initialDelay;
+        }
+        return Duration.ofNanos(Math.max(minDelayNanos, samples.percentile(0.95)));
+    }
+
+    /**
+     * 发出的对冲请求数
+     */
+    public long hedgeCount() {
+        return hedges.sum();
+    }
+
+    /**
+     * 对冲请求比第一个请求先返回的次数
+     */
+    public long hedgeWinCount() {
+        return hedgeWins.sum();
+    }
+}
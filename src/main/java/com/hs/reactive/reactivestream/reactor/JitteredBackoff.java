@@ -0,0 +1,90 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import org.reactivestreams.Publisher;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+/**
+ * 指数退避 + 随机抖动 + 重试预算，用法：mono.retryWhen(new JitteredBackoff(...))
+ * retry(n) 失败之后马上重新订阅，下游慢的时候所有调用方同时重试，正好在最不该加压的时候把压力放大 n 倍
+ * 这里第 k 次重试前等待 [0, min(maxBackoff, firstBackoff * 2^k)] 之间的随机时间（full jitter），调用方的重试在时间上错开；
+ * 每次重试之前还要从 {@link RetryBudget} 取令牌，取不到就直接把原来的异常发给下游
+ * retryWhen 每次被订阅都会调用一次 generateCompanion，所以在这里给预算存令牌，每个请求只存一次
+ */
+public final class JitteredBackoff extends Retry {
+
+    private final long maxAttempts;
+
+    private final long firstBackoffNanos;
+
+    private final long maxBackoffNanos;
+
+    private final RetryBudget budget;
+
+    private final Predicate<? super Throwable> retryable;
+
+    private final Scheduler scheduler;
+
+    public JitteredBackoff(long maxAttempts, Duration firstBackoff, Duration maxBackoff, RetryBudget budget) {
+        this(maxAttempts, firstBackoff, maxBackoff, budget, t -> true, Schedulers.parallel());
+    }
+
+    /**
+     * @param maxAttempts  最多重试几次
+     * @param firstBackoff 第一次重试最多等多久
+     * @param maxBackoff   每次重试最多等多久
+     * @param budget       重试预算，一般用 {@link RetryBudget#global()}
+     * @param retryable    哪些异常需要重试，比如参数错误这种重试也没用的就不要重试
+     * @param scheduler    退避计时用的调度器
+     */
+    public JitteredBackoff(long maxAttempts, Duration firstBackoff, Duration maxBackoff, RetryBudget budget,
+                           Predicate<? super Throwable> retryable, Scheduler scheduler) {
+        if (maxAttempts < 0 || firstBackoff.isNegative() || maxBackoff.compareTo(firstBackoff) < 0) {
+            throw new IllegalArgumentException("maxAttempts must not be negative and maxBackoff must not be less than firstBackoff");
+        }
+        this.maxAttempts = maxAttempts;
+        this.firstBackoffNanos = firstBackoff.toNanos();
+        this.maxBackoffNanos = maxBackoff.toNanos();
+        this.budget = budget;
+        this.retryable = retryable;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public Publisher<?> generateCompanion(Flux<RetrySignal> retrySignals) {
+        budget.onRequest();
+        //RetrySignal 对象会被复用，只能在 concatMap 的函数里同步读取
+        return retrySignals.concatMap(signal -> {
+            Throwable failure = signal.failure();
+            long attempt = signal.totalRetries();
+            if (!retryable.test(failure)) {
+                return Mono.error(failure);
+            }
+            if (attempt >= maxAttempts) {
+                return Mono.error(Exceptions.retryExhausted("Retries exhausted: " + attempt + "/" + maxAttempts, failure));
+            }
+            if (!budget.tryAcquire()) {
+                return Mono.error(failure);
+            }
+            return Mono.delay(Duration.ofNanos(ThreadLocalRandom.current().nextLong(ceiling(attempt) + 1)), scheduler);
+        });
+    }
+
+    /**
+     * min(maxBackoff, firstBackoff * 2^attempt)，注意乘法溢出
+     */
+    long ceiling(long attempt) {
+        if (attempt >= 63 || firstBackoffNanos > maxBackoffNanos >> attempt) {
+            return maxBackoffNanos;
+        }
+        return firstBackoffNanos << attempt;
+    }
+}
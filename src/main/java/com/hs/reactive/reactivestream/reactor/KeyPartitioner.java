@@ -0,0 +1,509 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import com.hs.reactive.reactivestream.flow.MpscArrayRing;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxOperator;
+import reactor.core.publisher.Operators;
+import reactor.util.context.Context;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 按 key 分区、保证同一个 key 有序的处理操作符，替代 groupBy(key).flatMap(g -> g.concatMap(processor))
+ * groupBy 每个 key 创建一个 GroupedFlux，key 多了分配很多对象；而且 key 的个数超过 flatMap 的并发数时，
+ * 新的分组没有人订阅，groupBy 的队列满了之后整条流就卡住了
+ * 这里固定有 lanes 条车道，key 按哈希分到车道上，每条车道一次只处理一个元素，处理完（processor 返回的 Publisher 结束）才处理下一个：
+ * 1、同一个 key 总在同一条车道上，按上游的顺序处理，结果也按这个顺序发给下游；不同车道之间并行
+ * 2、每条车道最多排队 laneCapacity 个元素，所有车道的队列是一个扁平的数组，key 再多也不会分配新的对象
+ * 3、目标车道满了时，上游的元素停在一个有界的积压队列里，不再向上游请求，直到这条车道腾出位置（队头阻塞，换来有界的内存）
+ * 并行来自 processor 本身的异步（比如 subscribeOn、数据库调用），同步的 processor 会在当前线程上一个一个执行
+ * 用法：flux.transform(partitioner)，同一个 partitioner 可以用在多条流上，统计是共享的
+ *
+ * @param <T> 元素类型
+ * @param <R> 处理结果的类型
+ */
+public final class KeyPartitioner<T, R> implements Function<Publisher<T>, Flux<R>> {
+
+    /**
+     * 每次处理最多预取这么多个结果
+     */
+    static final int INNER_PREFETCH = 32;
+
+    private final int lanes;
+
+    private final int laneCapacity;
+
+    private final int prefetch;
+
+    private final Function<? super T, ?> keyExtractor;
+
+    private final Function<? super T, ? extends Publisher<? extends R>> processor;
+
+    private final LongAdder processed = new LongAdder();
+
+    private final LongAdder blocked = new LongAdder();
+
+    public KeyPartitioner(int lanes, Function<? super T, ?> keyExtractor,
+                          Function<? super T, ? extends Publisher<? extends R>> processor) {
+        this(lanes, 16, 256, keyExtractor, processor);
+    }
+
+    /**
+     * @param lanes        车道数，也就是最多同时处理多少个元素
+     * @param laneCapacity 每条车道最多排队多少个元素
+     * @param prefetch     向上游预取多少个元素，也是积压队列的容量
+     * @param keyExtractor 取元素的 key，key 相同的元素按顺序处理
+     * @param processor    处理一个元素
+     */
+    public KeyPartitioner(int lanes, int laneCapacity, int prefetch, Function<? super T, ?> keyExtractor,
+                          Function<? super T, ? extends Publisher<? extends R>> processor) {
+        if (lanes < 1 || laneCapacity < 1 || prefetch < 1) {
+            throw new IllegalArgumentException("lanes, laneCapacity and prefetch must be positive");
+        }
+        this.lanes = lanes;
+        this.laneCapacity = laneCapacity;
+        this.prefetch = prefetch;
+        this.keyExtractor = keyExtractor;
+        this.processor = processor;
+    }
+
+    @Override
+    public Flux<R> apply(Publisher<T> source) {
+        return new FluxOperator<T, R>(Flux.from(source)) {
+            @Override
+            public void subscribe(CoreSubscriber<? super R> actual) {
+                source.subscribe(new PartitionSubscriber(actual));
+            }
+        };
+    }
+
+    /**
+     * 处理完的元素数
+     */
+    public long processedCount() {
+        return processed.sum();
+    }
+
+    /**
+     * 因为目标车道满了、上游被挡住的次数，持续偏高说明有热点 key，或者 laneCapacity 太小
+     */
+    public long blockedCount() {
+        return blocked.sum();
+    }
+
+    int laneOf(T item) {
+        int h = keyExtractor.apply(item).hashCode();
+        return Math.floorMod(h ^ (h >>> 16), lanes);
+    }
+
+    final class PartitionSubscriber implements CoreSubscriber<T>, Subscription {
+
+        final CoreSubscriber<? super R> actual;
+
+        final MpscArrayRing<T> backlog;
+
+        final Lane[] laneArray;
+
+        /**
+         * 所有车道的排队元素，车道 i 占 [i * laneCapacity, (i + 1) * laneCapacity)，每段是一个环；
+         * 以下三个字段只在 drain 中访问
+         */
+        final Object[] queued;
+
+        final int[] heads;
+
+        final int[] sizes;
+
+        /**
+         * 正在处理或者有元素在排队的车道数
+         */
+        int busyLanes;
+
+        /**
+         * 从积压队列移到车道、还没有向上游补充请求的元素数
+         */
+        int consumed;
+
+        final int limit;
+
+        /**
+         * 积压队列的队头被挡住了，同一次阻塞只计数一次
+         */
+        boolean headBlocked;
+
+        int nextLane;
+
+        final AtomicLong requested = new AtomicLong();
+
+        final AtomicInteger wip = new AtomicInteger();
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        Subscription upstream;
+
+        volatile boolean done;
+
+        volatile boolean cancelled;
+
+        @SuppressWarnings("unchecked")
+        PartitionSubscriber(CoreSubscriber<? super R> actual) {
+            this.actual = actual;
+            this.backlog = new MpscArrayRing<>(prefetch);
+            this.laneArray = new KeyPartitioner.Lane[lanes];
+            for (int i = 0; i < lanes; i++) {
+                laneArray[i] = new Lane(this);
+            }
+            this.queued = new Object[lanes * laneCapacity];
+            this.heads = new int[lanes];
+            this.sizes = new int[lanes];
+            this.limit = prefetch - (prefetch >> 2);
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            if (Operators.validate(upstream, s)) {
+                upstream = s;
+                actual.onSubscribe(this);
+                s.request(prefetch);
+            }
+        }
+
+        @Override
+        public void onNext(T item) {
+            if (done) {
+                Operators.onNextDropped(item, actual.currentContext());
+                return;
+            }
+            //已经向上游请求、还没有到达的元素数不超过 prefetch，积压队列不会满
+            backlog.offer(item);
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (done) {
+                Operators.onErrorDropped(t, actual.currentContext());
+                return;
+            }
+            innerError(t);
+            done = true;
+            drain();
+        }
+
+        @Override
+        public void onComplete() {
+            if (done) {
+                return;
+            }
+            done = true;
+            drain();
+        }
+
+        void innerError(Throwable t) {
+            if (!error.compareAndSet(null, t)) {
+                Operators.onErrorDropped(t, actual.currentContext());
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (Operators.validate(n)) {
+                long r;
+                long next;
+                do {
+                    r = requested.get();
+                    next = Operators.addCap(r, n);
+                } while (!requested.compareAndSet(r, next));
+                drain();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                upstream.cancel();
+                for (Lane lane : laneArray) {
+                    lane.cancel();
+                }
+                //drain 没有在运行时由这里清理队列，否则交给 drain
+                if (wip.getAndIncrement() == 0) {
+                    clear();
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void clear() {
+            T item;
+            while ((item = backlog.poll()) != null) {
+                Operators.onDiscard(item, actual.currentContext());
+            }
+            for (int i = 0; i < queued.length; i++) {
+                if (queued[i] != null) {
+                    Operators.onDiscard(queued[i], actual.currentContext());
+                    queued[i] = null;
+                }
+            }
+            for (Lane lane : laneArray) {
+                R v;
+                while ((v = lane.results.poll()) != null) {
+                    Operators.onDiscard(v, actual.currentContext());
+                }
+            }
+        }
+
+        /**
+         * 把积压队列中的元素按顺序移到各自的车道，遇到车道满了就停下，保证同一个 key 不会越过前面的元素
+         */
+        void dispatch() {
+            int moved = 0;
+            T item;
+            while ((item = backlog.peek()) != null) {
+                int lane = laneOf(item);
+                int size = sizes[lane];
+                if (size == laneCapacity) {
+                    if (!headBlocked) {
+                        headBlocked = true;
+                        blocked.increment();
+                    }
+                    break;
+                }
+                headBlocked = false;
+                backlog.poll();
+                queued[lane * laneCapacity + (heads[lane] + size) % laneCapacity] = item;
+                sizes[lane] = size + 1;
+                if (size == 0 && !laneArray[lane].active) {
+                    busyLanes++;
+                }
+                moved++;
+            }
+            if (moved != 0 && !done) {
+                int c = consumed + moved;
+                if (c >= limit) {
+                    consumed = 0;
+                    upstream.request(c);
+                } else {
+                    consumed = c;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        T pollLane(int lane) {
+            int index = lane * laneCapacity + heads[lane];
+            T item = (T) queued[index];
+            queued[index] = null;
+            heads[lane] = heads[lane] + 1 == laneCapacity ? 0 : heads[lane] + 1;
+            sizes[lane]--;
+            return item;
+        }
+
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            for (; ; ) {
+                if (cancelled) {
+                    clear();
+                    return;
+                }
+                if (error.get() != null) {
+                    fail();
+                    return;
+                }
+                dispatch();
+                long r = requested.get();
+                long e = 0L;
+                int start = nextLane;
+                for (int k = 0; k < lanes; k++) {
+                    int i = start + k < lanes ? start + k : start + k - lanes;
+                    Lane lane = laneArray[i];
+                    for (; ; ) {
+                        //结果全部发完、这次处理也结束了，车道才空闲下来
+                        while (lane.active && e != r) {
+                            R v = lane.results.poll();
+                            if (v == null) {
+                                break;
+                            }
+                            actual.onNext(v);
+                            e++;
+                            lane.replenish();
+                            if (cancelled) {
+                                clear();
+                                return;
+                            }
+                        }
+                        if (lane.active && lane.innerDone && lane.results.isEmpty()) {
+                            lane.active = false;
+                            processed.increment();
+                            if (sizes[i] == 0) {
+                                busyLanes--;
+                            }
+                        }
+                        if (lane.active || sizes[i] == 0 || error.get() != null) {
+                            break;
+                        }
+                        T item = pollLane(i);
+                        Publisher<? extends R> p;
+                        try {
+                            p = processor.apply(item);
+                        } catch (Throwable t) {
+                            innerError(Operators.onOperatorError(null, t, item, actual.currentContext()));
+                            break;
+                        }
+                        if (p == null) {
+                            innerError(new NullPointerException("The processor returned a null Publisher"));
+                            break;
+                        }
+                        lane.start(p);
+                    }
+                }
+                //下一轮从下一条车道开始发，避免总是前面的车道先发
+                nextLane = start + 1 == lanes ? 0 : start + 1;
+                if (e != 0L && r != Long.MAX_VALUE) {
+                    requested.addAndGet(-e);
+                }
+                if (error.get() != null) {
+                    fail();
+                    return;
+                }
+                //车道腾出了位置，积压的元素可以继续分发
+                dispatch();
+                if (done && busyLanes == 0 && backlog.isEmpty()) {
+                    cancelled = true;
+                    actual.onComplete();
+                    return;
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        void fail() {
+            cancelled = true;
+            upstream.cancel();
+            for (Lane lane : laneArray) {
+                lane.cancel();
+            }
+            clear();
+            actual.onError(error.get());
+        }
+    }
+
+    /**
+     * 一条车道，同时也是当前这次处理的订阅者，每处理一个元素订阅一次，不为每次处理分配新的订阅者
+     */
+    final class Lane implements CoreSubscriber<R> {
+
+        final PartitionSubscriber parent;
+
+        final MpscArrayRing<R> results = new MpscArrayRing<>(INNER_PREFETCH);
+
+        final int limit = INNER_PREFETCH - (INNER_PREFETCH >> 2);
+
+        volatile Subscription subscription;
+
+        volatile boolean innerDone;
+
+        /**
+         * 以下两个字段只在 drain 中访问
+         */
+        boolean active;
+
+        int consumed;
+
+        Lane(PartitionSubscriber parent) {
+            this.parent = parent;
+        }
+
+        @SuppressWarnings("unchecked")
+        void start(Publisher<? extends R> p) {
+            active = true;
+            consumed = 0;
+            if (p instanceof Callable) {
+                //Mono.just、Mono.empty 之类的直接取值，不用订阅
+                R v;
+                try {
+                    v = ((Callable<R>) p).call();
+                } catch (Throwable t) {
+                    parent.innerError(Operators.onOperatorError(t, parent.actual.currentContext()));
+                    innerDone = true;
+                    return;
+                }
+                if (v != null) {
+                    results.offer(v);
+                }
+                innerDone = true;
+                return;
+            }
+            innerDone = false;
+            p.subscribe(this);
+        }
+
+        void replenish() {
+            int c = consumed + 1;
+            if (c == limit) {
+                consumed = 0;
+                subscription.request(c);
+            } else {
+                consumed = c;
+            }
+        }
+
+        @Override
+        public Context currentContext() {
+            return parent.actual.currentContext();
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            subscription = s;
+            if (parent.cancelled) {
+                s.cancel();
+                return;
+            }
+            s.request(INNER_PREFETCH);
+        }
+
+        @Override
+        public void onNext(R r) {
+            if (!results.offer(r)) {
+                parent.innerError(Exceptions.failWithOverflow("The processor produced more results than requested"));
+            }
+            parent.drain();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            parent.innerError(t);
+            innerDone = true;
+            parent.drain();
+        }
+
+        @Override
+        public void onComplete() {
+            innerDone = true;
+            parent.drain();
+        }
+
+        void cancel() {
+            Subscription s = subscription;
+            if (s != null && !innerDone) {
+                s.cancel();
+            }
+        }
+    }
+}
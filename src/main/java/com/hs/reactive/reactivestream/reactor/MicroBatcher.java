@@ -0,0 +1,381 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import com.hs.reactive.reactivestream.flow.MpmcArrayRing;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxOperator;
+import reactor.core.publisher.Operators;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * 微批操作符，buffer(n) 只能按个数攒批，每批还要 new 一个 ArrayList
+ * 这里以下三个条件哪个先满足就发出一批：
+ * 1、攒够 maxItems 个元素
+ * 2、元素的权重（比如序列化后的字节数，由 weigher 计算）加起来达到 maxWeight
+ * 3、这一批的第一个元素到达之后过了 linger 时间
+ * 批次容器从池中借，下游调用 {@link Batch#release()} 后还回池中复用
+ * 有背压：最多攒两批已经满了但是下游还没要的批次，之后就不再向上游请求
+ * 用法：flux.transform(batcher)，同一个 batcher 可以用在多条流上，直方图和池是共享的
+ *
+ * @param <T> 元素类型
+ */
+public final class MicroBatcher<T> implements Function<Publisher<T>, Flux<Batch<T>>> {
+
+    /**
+     * 最多攒这么多个已经满了的批次
+     */
+    static final int MAX_READY = 2;
+
+    private final int maxItems;
+
+    private final long maxWeight;
+
+    private final ToLongFunction<? super T> weigher;
+
+    private final long lingerNanos;
+
+    private final Scheduler timer;
+
+    private final MpmcArrayRing<Batch<T>> pool;
+
+    /**
+     * 从第一个元素进入批次到批次发给下游的时间，纳秒
+     */
+    private final BucketHistogram flushLatency = new BucketHistogram();
+
+    private final BucketHistogram batchSize = new BucketHistogram();
+
+    private final LongAdder sizeFlushes = new LongAdder();
+
+    private final LongAdder weightFlushes = new LongAdder();
+
+    private final LongAdder lingerFlushes = new LongAdder();
+
+    public MicroBatcher(int maxItems, long maxWeight, ToLongFunction<? super T> weigher, Duration linger) {
+        this(maxItems, maxWeight, weigher, linger, Schedulers.parallel(), 64);
+    }
+
+    /**
+     * @param maxItems  每批最多多少个元素
+     * @param maxWeight 每批的权重上限，不需要按权重攒批可以传 Long.MAX_VALUE
+     * @param weigher   计算一个元素的权重
+     * @param linger    一批最多等多久
+     * @param timer     linger 计时用的调度器
+     * @param poolSize  池中最多保留多少个空闲的批次
+     */
+    public MicroBatcher(int maxItems, long maxWeight, ToLongFunction<? super T> weigher, Duration linger,
+                        Scheduler timer, int poolSize) {
+        if (maxItems < 1 || maxWeight < 1) {
+            throw new IllegalArgumentException("maxItems and maxWeight must be positive");
+        }
+        this.maxItems = maxItems;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.lingerNanos = linger.toNanos();
+        this.timer = timer;
+        this.pool = new MpmcArrayRing<>(poolSize);
+    }
+
+    @Override
+    public Flux<Batch<T>> apply(Publisher<T> source) {
+        return new FluxOperator<T, Batch<T>>(Flux.from(source)) {
+            @Override
+            public void subscribe(CoreSubscriber<? super Batch<T>> actual) {
+                source.subscribe(new BatchSubscriber(actual));
+            }
+        };
+    }
+
+    /**
+     * 批次从第一个元素进入到发给下游的延迟，纳秒
+     */
+    public BucketHistogram flushLatency() {
+        return flushLatency;
+    }
+
+    /**
+     * 每批的元素个数
+     */
+    public BucketHistogram batchSize() {
+        return batchSize;
+    }
+
+    /**
+     * 因为个数、权重、等待时间而发出的批次数
+     */
+    public long sizeFlushCount() {
+        return sizeFlushes.sum();
+    }
+
+    public long weightFlushCount() {
+        return weightFlushes.sum();
+    }
+
+    public long lingerFlushCount() {
+        return lingerFlushes.sum();
+    }
+
+    private Batch<T> acquire() {
+        Batch<T> batch = pool.poll();
+        if (batch == null) {
+            return new Batch<>(Math.min(maxItems, 1024), pool);
+        }
+        batch.released = 0;
+        return batch;
+    }
+
+    final class BatchSubscriber implements CoreSubscriber<T>, Subscription {
+
+        final CoreSubscriber<? super Batch<T>> actual;
+
+        final AtomicLong requested = new AtomicLong();
+
+        final AtomicInteger wip = new AtomicInteger();
+
+        Subscription upstream;
+
+        /**
+         * 以下字段由 this 的锁保护：上游的 onNext 和 linger 定时器在不同的线程上
+         */
+        Batch<T> current;
+
+        Disposable lingerTask;
+
+        final ArrayDeque<Batch<T>> ready = new ArrayDeque<>(MAX_READY + 1);
+
+        /**
+         * 已经向上游请求、还没有到达的元素数
+         */
+        long outstanding;
+
+        boolean done;
+
+        Throwable error;
+
+        volatile boolean cancelled;
+
+        BatchSubscriber(CoreSubscriber<? super Batch<T>> actual) {
+            this.actual = actual;
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            if (Operators.validate(upstream, s)) {
+                upstream = s;
+                actual.onSubscribe(this);
+            }
+        }
+
+        @Override
+        public void onNext(T item) {
+            long itemWeight = weigher.applyAsLong(item);
+            boolean flushed = false;
+            boolean exhausted;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                exhausted = --outstanding == 0;
+                if (current == null) {
+                    current = acquire();
+                    if (lingerTask == null) {
+                        lingerTask = timer.schedule(this::onLinger, lingerNanos, TimeUnit.NANOSECONDS);
+                    }
+                }
+                current.add(item, itemWeight);
+                if (current.size() >= maxItems) {
+                    sizeFlushes.increment();
+                    seal();
+                    flushed = true;
+                } else if (current.weight >= maxWeight) {
+                    weightFlushes.increment();
+                    seal();
+                    flushed = true;
+                }
+            }
+            //只有发出了一批、或者上一轮请求的元素都到了，才需要进入 drain
+            if (flushed || exhausted) {
+                drain();
+            }
+        }
+
+        /**
+         * 定时器不跟着批次走：批次发出时不取消定时器，定时器到期时如果当前批次还没到 linger 时间，就按剩下的时间重新调度
+         * 批次发得很快时，每个 linger 周期最多调度一次，而不是每批都调度、取消一次
+         */
+        void onLinger() {
+            synchronized (this) {
+                lingerTask = null;
+                if (current == null || done) {
+                    return;
+                }
+                long remaining = current.firstItemNanos + lingerNanos - System.nanoTime();
+                if (remaining > 0) {
+                    lingerTask = timer.schedule(this::onLinger, remaining, TimeUnit.NANOSECONDS);
+                    return;
+                }
+                lingerFlushes.increment();
+                seal();
+            }
+            drain();
+        }
+
+        /**
+         * 调用方持有锁
+         */
+        void seal() {
+            ready.add(current);
+            current = null;
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            synchronized (this) {
+                if (done) {
+                    Operators.onErrorDropped(t, actual.currentContext());
+                    return;
+                }
+                error = t;
+                done = true;
+                discard();
+            }
+            drain();
+        }
+
+        @Override
+        public void onComplete() {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                if (current != null) {
+                    seal();
+                }
+                if (lingerTask != null) {
+                    lingerTask.dispose();
+                    lingerTask = null;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (Operators.validate(n)) {
+                long r;
+                long next;
+                do {
+                    r = requested.get();
+                    next = Operators.addCap(r, n);
+                } while (!requested.compareAndSet(r, next));
+                drain();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            upstream.cancel();
+            synchronized (this) {
+                discard();
+            }
+        }
+
+        /**
+         * 调用方持有锁，丢掉还没发出的批次
+         */
+        void discard() {
+            if (lingerTask != null) {
+                lingerTask.dispose();
+                lingerTask = null;
+            }
+            if (current != null) {
+                current.release();
+                current = null;
+            }
+            Batch<T> batch;
+            while ((batch = ready.poll()) != null) {
+                batch.release();
+            }
+        }
+
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            for (; ; ) {
+                if (cancelled) {
+                    return;
+                }
+                long r = requested.get();
+                long e = 0L;
+                long toRequest = 0L;
+                boolean terminate = false;
+                Throwable failure = null;
+                while (e != r) {
+                    Batch<T> batch;
+                    synchronized (this) {
+                        batch = ready.poll();
+                    }
+                    if (batch == null) {
+                        break;
+                    }
+                    flushLatency.record(System.nanoTime() - batch.firstItemNanos);
+                    batchSize.record(batch.size());
+                    actual.onNext(batch);
+                    e++;
+                    if (cancelled) {
+                        return;
+                    }
+                }
+                synchronized (this) {
+                    if (done && ready.isEmpty() && current == null) {
+                        terminate = true;
+                        failure = error;
+                    } else if (error != null) {
+                        terminate = true;
+                        failure = error;
+                    } else if (!done && outstanding == 0 && ready.size() < MAX_READY) {
+                        //上一轮请求的元素都到了，并且攒着的满批次不多，再向上游要一批
+                        outstanding = maxItems;
+                        toRequest = maxItems;
+                    }
+                }
+                if (terminate) {
+                    cancelled = true;
+                    if (failure != null) {
+                        actual.onError(failure);
+                    } else {
+                        actual.onComplete();
+                    }
+                    return;
+                }
+                if (e != 0L && r != Long.MAX_VALUE) {
+                    requested.addAndGet(-e);
+                }
+                if (toRequest != 0L) {
+                    upstream.request(toRequest);
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
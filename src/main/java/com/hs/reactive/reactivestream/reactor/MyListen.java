@@ -10,12 +10,25 @@ public class MyListen {
 
     FluxSink<Object> sink;
 
+    EventIngestor<Object> ingestor;
+
     public MyListen(FluxSink<Object> sink) {
         this.sink = sink;
     }
 
+    /**
+     * 多个线程同时触发事件时用 EventIngestor，事件太多会被丢弃而不是无限堆积
+     */
+    public MyListen(EventIngestor<Object> ingestor) {
+        this.ingestor = ingestor;
+    }
+
     public void onClick(Object name){
         System.out.println("点击了"+name+"按钮");
-        sink.next(name);
+        if (ingestor == null) {
+            sink.next(name);
+        } else if (!ingestor.offer(name)) {
+            System.out.println("点击太频繁，丢弃了"+name);
+        }
     }
 }
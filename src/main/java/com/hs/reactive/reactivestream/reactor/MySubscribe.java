@@ -1,18 +1,22 @@
 package com.hs.reactive.reactivestream.reactor;
 
 import org.reactivestreams.Subscription;
-import reactor.core.publisher.BaseSubscriber;
 import reactor.core.publisher.SignalType;
 
-public class MySubscribe extends BaseSubscriber<Integer> {
+/**
+ * 自定义订阅者
+ * 不再每个元素之后 request(1)，由 AdaptiveDemandBaseSubscriber 按批次请求
+ */
+public class MySubscribe extends AdaptiveDemandBaseSubscriber<Integer> {
     @Override
     protected void hookOnSubscribe(Subscription subscription) {
         System.out.println("消费订阅成功" + subscription);
-        request(1);
+        //发出第一批请求
+        super.hookOnSubscribe(subscription);
     }
 
     @Override
-    protected void hookOnNext(Integer value) {
+    protected void hookOnValue(Integer value) {
         System.out.println("消费获取到消费的数据" + value);
 //                if(value>8){
 //                    //取消订阅流，触发 doOnCancel 方法
@@ -20,7 +24,6 @@ public class MySubscribe extends BaseSubscriber<Integer> {
 //                    //报个错，触发 hookOnError 方法
 //                    int i = 10 / 0;
 //                }
-        request(1);
     }
 
     @Override
@@ -0,0 +1,598 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * 元素存在堆外的重放 sink，用来代替 Flux.cache(n) 和 Sinks.many().replay().limit(n)
+ * cache 和 replay 把要重放的元素作为堆上的对象保存，重放几十万个元素时这些对象会一直晋升到老年代，GC 压力很大
+ * 这里元素先序列化，再写进一块环形的堆外内存（直接内存或者内存映射文件），堆上只有几个游标，占用和重放深度无关：
+ * 1、每条记录是 [int 长度][long 写入时间][数据]，写到末尾放不下就写一个填充标记，从头开始写
+ * 2、超过 maxCount 条、空间不够、或者超过 maxAge 的旧记录会被淘汰
+ * 3、订阅者各自记录读到的位置，按 request 的数量从环中读取并反序列化，有背压；
+ * 读得太慢、要读的记录已经被淘汰时，直接跳到最旧的一条，跳过的数量记在 skippedCount 中
+ * 4、写入加写锁，读取用 StampedLock 的乐观读，读完再校验，校验失败（读的时候被覆盖了）才加读锁重读
+ *
+ * @param <T> 元素类型
+ */
+public final class OffHeapReplaySink<T> implements Publisher<T> {
+
+    /**
+     * 记录头：int 长度 + long 写入时间
+     */
+    static final int HEADER = 12;
+
+    /**
+     * 填充标记，表示从这里到末尾都是空的
+     */
+    static final int PADDING = -1;
+
+    @SuppressWarnings("rawtypes")
+    static final ReplaySubscription[] EMPTY = new ReplaySubscription[0];
+
+    final ElementSerializer<T> serializer;
+
+    final ByteBuffer storage;
+
+    final int capacity;
+
+    final int maxCount;
+
+    final long maxAgeNanos;
+
+    final StampedLock lock = new StampedLock();
+
+    /**
+     * 以下四个位置都是单调递增的，由写锁保护，读的时候用乐观读
+     * pos 是字节位置，对 capacity 取模就是在环中的偏移；seq 是记录的序号
+     */
+    long headPos;
+
+    long tailPos;
+
+    long headSeq;
+
+    long tailSeq;
+
+    /**
+     * 序列化用的缓冲区，只在写锁中使用
+     */
+    ByteBuffer scratch = ByteBuffer.allocate(256);
+
+    volatile boolean done;
+
+    volatile Throwable error;
+
+    final AtomicReference<ReplaySubscription<T>[]> subscribers;
+
+    final LongAdder skipped = new LongAdder();
+
+    @SuppressWarnings("unchecked")
+    OffHeapReplaySink(ElementSerializer<T> serializer, ByteBuffer storage, int maxCount, Duration maxAge) {
+        if (maxCount < 1) {
+            throw new IllegalArgumentException("maxCount must be positive");
+        }
+        if (storage.capacity() <= HEADER) {
+            throw new IllegalArgumentException("storage is too small");
+        }
+        this.serializer = serializer;
+        this.storage = storage;
+        this.capacity = storage.capacity();
+        this.maxCount = maxCount;
+        this.maxAgeNanos = maxAge == null ? 0L : maxAge.toNanos();
+        this.subscribers = new AtomicReference<>(EMPTY);
+    }
+
+    /**
+     * 存在直接内存中
+     *
+     * @param capacityBytes 最多占用的字节数
+     * @param maxCount      最多保留的元素个数
+     * @param maxAge        元素最多保留多久，null 表示不限
+     */
+    public static <T> OffHeapReplaySink<T> direct(ElementSerializer<T> serializer, int capacityBytes, int maxCount, Duration maxAge) {
+        return new OffHeapReplaySink<>(serializer, ByteBuffer.allocateDirect(capacityBytes), maxCount, maxAge);
+    }
+
+    /**
+     * 存在内存映射文件中，页缓存由操作系统管理，不占用 JVM 的直接内存额度
+     */
+    public static <T> OffHeapReplaySink<T> mapped(ElementSerializer<T> serializer, Path file, int capacityBytes,
+                                                  int maxCount, Duration maxAge) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            //映射建立之后关闭 channel 不影响映射
+            return new OffHeapReplaySink<>(serializer, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacityBytes), maxCount, maxAge);
+        }
+    }
+
+    /**
+     * 发送一个元素，可以被多个线程调用
+     *
+     * @throws IllegalArgumentException 序列化后比整个环还大
+     */
+    public Sinks.EmitResult tryEmitNext(T value) {
+        if (done) {
+            return Sinks.EmitResult.FAIL_TERMINATED;
+        }
+        long stamp = lock.writeLock();
+        try {
+            if (done) {
+                return Sinks.EmitResult.FAIL_TERMINATED;
+            }
+            append(value);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        drainAll();
+        return Sinks.EmitResult.OK;
+    }
+
+    public Sinks.EmitResult tryEmitComplete() {
+        return terminate(null);
+    }
+
+    public Sinks.EmitResult tryEmitError(Throwable error) {
+        return terminate(error);
+    }
+
+    private Sinks.EmitResult terminate(Throwable error) {
+        long stamp = lock.writeLock();
+        try {
+            if (done) {
+                return Sinks.EmitResult.FAIL_TERMINATED;
+            }
+            this.error = error;
+            done = true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        drainAll();
+        return Sinks.EmitResult.OK;
+    }
+
+    public Flux<T> asFlux() {
+        return Flux.from(this);
+    }
+
+    /**
+     * 作为操作符使用：第一个订阅者第一次 request 之后才订阅 source，之后的订阅者从环中重放，相当于 cache(n)
+     * 等到第一次 request 是因为同步的 source 会在订阅时一口气发完，订阅者还没有请求的话就只能看到最后 maxCount 个
+     * 用法：flux.transform(sink::cache)
+     */
+    public Flux<T> cache(Publisher<? extends T> source) {
+        AtomicBoolean connected = new AtomicBoolean();
+        Runnable connect = () -> {
+            if (connected.compareAndSet(false, true)) {
+                Flux.from(source).subscribe(this::tryEmitNext, this::tryEmitError, this::tryEmitComplete);
+            }
+        };
+        return Flux.from(subscriber -> subscribe(subscriber, connect));
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+        subscribe(subscriber, null);
+    }
+
+    private void subscribe(Subscriber<? super T> subscriber, Runnable onFirstRequest) {
+        //规范 1.9
+        Objects.requireNonNull(subscriber, "subscriber");
+        ReplaySubscription<T> subscription = new ReplaySubscription<>(this, subscriber);
+        subscription.onFirstRequest = onFirstRequest;
+        //先 onSubscribe 再加入：加入之后并发的 tryEmitComplete 才会 drain 它，终止信号不会早于 onSubscribe（规范 1.9、1.3）
+        subscriber.onSubscribe(subscription);
+        add(subscription);
+        //onSubscribe 中已经取消或者已经终止的，remove 在 add 之前什么也没做
+        if (subscription.cancelled) {
+            remove(subscription);
+            return;
+        }
+        subscription.drain();
+    }
+
+    /**
+     * 当前保留的元素个数
+     */
+    public long size() {
+        long stamp = lock.readLock();
+        try {
+            return tailSeq - headSeq;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 当前保留的元素占用的字节数（包括记录头和填充）
+     */
+    public long usedBytes() {
+        long stamp = lock.readLock();
+        try {
+            return tailPos - headPos;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 订阅者因为读得太慢或者元素过期而跳过的元素数
+     */
+    public long skippedCount() {
+        return skipped.sum();
+    }
+
+    /**
+     * 调用方持有写锁
+     */
+    private void append(T value) {
+        int length = serialize(value);
+        int record = HEADER + length;
+        if (record > capacity) {
+            throw new IllegalArgumentException("element of " + length + " bytes does not fit into " + capacity + " bytes");
+        }
+        long now = System.nanoTime();
+        evictExpired(now);
+        int offset = offset(tailPos);
+        int remaining = capacity - offset;
+        boolean wrap = remaining < record;
+        long need = wrap ? remaining + record : record;
+        while (headSeq != tailSeq && (tailSeq - headSeq >= maxCount || capacity - (tailPos - headPos) < need)) {
+            evictHead();
+        }
+        if (wrap) {
+            if (remaining >= 4) {
+                storage.putInt(offset, PADDING);
+            }
+            tailPos += remaining;
+            offset = 0;
+            if (headSeq == tailSeq) {
+                headPos = tailPos;
+            }
+        }
+        storage.putInt(offset, length);
+        storage.putLong(offset + 4, now);
+        storage.put(offset + HEADER, scratch, 0, length);
+        tailPos += record;
+        tailSeq++;
+    }
+
+    private int serialize(T value) {
+        for (; ; ) {
+            scratch.clear();
+            try {
+                serializer.write(value, scratch);
+                return scratch.position();
+            } catch (BufferOverflowException ex) {
+                if (scratch.capacity() >= capacity) {
+                    throw new IllegalArgumentException("element does not fit into " + capacity + " bytes", ex);
+                }
+                scratch = ByteBuffer.allocate(Math.min(capacity, scratch.capacity() * 2));
+            }
+        }
+    }
+
+    private void evictExpired(long now) {
+        if (maxAgeNanos == 0L) {
+            return;
+        }
+        while (headSeq != tailSeq) {
+            headPos = recordPos(headPos);
+            if (now - storage.getLong(offset(headPos) + 4) <= maxAgeNanos) {
+                return;
+            }
+            evictHead();
+        }
+    }
+
+    private void evictHead() {
+        headPos = recordPos(headPos);
+        headPos += HEADER + storage.getInt(offset(headPos));
+        headSeq++;
+    }
+
+    /**
+     * 跳过填充，返回 pos 之后第一条记录的位置
+     */
+    long recordPos(long pos) {
+        for (; ; ) {
+            int offset = offset(pos);
+            int remaining = capacity - offset;
+            if (remaining >= HEADER && storage.getInt(offset) != PADDING) {
+                return pos;
+            }
+            pos += remaining;
+        }
+    }
+
+    int offset(long pos) {
+        return (int) (pos % capacity);
+    }
+
+    private void drainAll() {
+        for (ReplaySubscription<T> subscription : subscribers.get()) {
+            subscription.drain();
+        }
+    }
+
+    private void add(ReplaySubscription<T> subscription) {
+        ReplaySubscription<T>[] current;
+        ReplaySubscription<T>[] next;
+        do {
+            current = subscribers.get();
+            next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = subscription;
+        } while (!subscribers.compareAndSet(current, next));
+    }
+
+    @SuppressWarnings("unchecked")
+    void remove(ReplaySubscription<T> subscription) {
+        ReplaySubscription<T>[] current;
+        ReplaySubscription<T>[] next;
+        do {
+            current = subscribers.get();
+            int index = Arrays.asList(current).indexOf(subscription);
+            if (index < 0) {
+                return;
+            }
+            next = current.length == 1 ? EMPTY : new ReplaySubscription[current.length - 1];
+            System.arraycopy(current, 0, next, 0, index);
+            System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+        } while (!subscribers.compareAndSet(current, next));
+    }
+
+    static final class ReplaySubscription<T> implements Subscription {
+
+        final OffHeapReplaySink<T> parent;
+
+        final Subscriber<? super T> actual;
+
+        final AtomicLong requested = new AtomicLong();
+
+        final AtomicInteger wip = new AtomicInteger();
+
+        volatile boolean cancelled;
+
+        volatile Throwable badRequest;
+
+        volatile Runnable onFirstRequest;
+
+        /**
+         * 下一条要读的记录，只在 drain 中读写
+         */
+        long cursorSeq;
+
+        long cursorPos;
+
+        /**
+         * 读取时先放在这里，乐观读校验通过才提交到游标
+         */
+        long pendingSeq;
+
+        long pendingPos;
+
+        long pendingSkipped;
+
+        boolean pendingExpired;
+
+        /**
+         * 反序列化用的缓冲区
+         */
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+
+        ReplaySubscription(OffHeapReplaySink<T> parent, Subscriber<? super T> actual) {
+            this.parent = parent;
+            this.actual = actual;
+            //从订阅时最旧的一条开始读，订阅之前就被淘汰的记录不算跳过
+            long stamp = parent.lock.readLock();
+            try {
+                this.cursorSeq = parent.headSeq;
+                this.cursorPos = parent.headPos;
+            } finally {
+                parent.lock.unlockRead(stamp);
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0L) {
+                //规范 3.9：request 的数量必须大于 0，错误也要在 drain 中发出，不能和 onNext 并发
+                badRequest = new IllegalArgumentException("non-positive subscription request");
+                drain();
+                return;
+            }
+            long current;
+            long next;
+            do {
+                current = requested.get();
+                if (current == Long.MAX_VALUE) {
+                    return;
+                }
+                next = current + n;
+                if (next < 0L) {
+                    next = Long.MAX_VALUE;
+                }
+            } while (!requested.compareAndSet(current, next));
+            drain();
+            Runnable connect = onFirstRequest;
+            if (connect != null) {
+                onFirstRequest = null;
+                connect.run();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                parent.remove(this);
+            }
+        }
+
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            for (; ; ) {
+                if (cancelled) {
+                    return;
+                }
+                if (badRequest != null) {
+                    cancel();
+                    actual.onError(badRequest);
+                    return;
+                }
+                long r = requested.get();
+                long e = 0L;
+                while (e != r) {
+                    if (cancelled) {
+                        return;
+                    }
+                    //先读 done 再读数据，done 为 true 时读到 null 就说明真的读完了
+                    boolean d = parent.done;
+                    T value = next();
+                    if (value == null) {
+                        if (d) {
+                            terminate();
+                            return;
+                        }
+                        break;
+                    }
+                    actual.onNext(value);
+                    e++;
+                }
+                if (e == r && !cancelled && parent.done && caughtUp()) {
+                    terminate();
+                    return;
+                }
+                if (e != 0L && r != Long.MAX_VALUE) {
+                    requested.addAndGet(-e);
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void terminate() {
+            cancelled = true;
+            parent.remove(this);
+            Throwable error = parent.error;
+            if (error != null) {
+                actual.onError(error);
+            } else {
+                actual.onComplete();
+            }
+        }
+
+        private boolean caughtUp() {
+            long stamp = parent.lock.readLock();
+            try {
+                return cursorSeq >= parent.tailSeq;
+            } finally {
+                parent.lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * 读下一个元素，已经读完返回 null，过期的元素跳过
+         */
+        private T next() {
+            for (; ; ) {
+                long now = parent.maxAgeNanos == 0L ? 0L : System.nanoTime();
+                int length = readOptimistic(now);
+                cursorSeq = pendingSeq;
+                cursorPos = pendingPos;
+                if (pendingSkipped != 0L) {
+                    parent.skipped.add(pendingSkipped);
+                }
+                if (length < 0) {
+                    return null;
+                }
+                if (pendingExpired) {
+                    parent.skipped.increment();
+                    continue;
+                }
+                buffer.clear().limit(length);
+                return parent.serializer.read(buffer);
+            }
+        }
+
+        private int readOptimistic(long now) {
+            StampedLock lock = parent.lock;
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0L) {
+                try {
+                    int length = read(now);
+                    if (lock.validate(stamp)) {
+                        return length;
+                    }
+                } catch (RuntimeException ex) {
+                    //读的时候被覆盖了，读到的长度是乱的，下面加锁重读
+                }
+            }
+            stamp = lock.readLock();
+            try {
+                return read(now);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * 把下一条记录的数据复制到 buffer，返回数据长度，已经读完返回 -1
+         */
+        private int read(long now) {
+            OffHeapReplaySink<T> p = parent;
+            long seq = cursorSeq;
+            long pos = cursorPos;
+            pendingSkipped = 0L;
+            pendingExpired = false;
+            if (seq < p.headSeq) {
+                //要读的记录已经被淘汰了，跳到最旧的一条
+                pendingSkipped = p.headSeq - seq;
+                seq = p.headSeq;
+                pos = p.headPos;
+            }
+            if (seq >= p.tailSeq) {
+                pendingSeq = seq;
+                pendingPos = pos;
+                return -1;
+            }
+            pos = p.recordPos(pos);
+            int offset = p.offset(pos);
+            int length = p.storage.getInt(offset);
+            if (length < 0 || length > p.capacity - HEADER) {
+                throw new IllegalStateException("torn record");
+            }
+            pendingExpired = p.maxAgeNanos != 0L && now - p.storage.getLong(offset + 4) > p.maxAgeNanos;
+            if (buffer.capacity() < length) {
+                buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+            }
+            p.storage.get(offset + HEADER, buffer.array(), 0, length);
+            pendingSeq = seq + 1;
+            pendingPos = pos + HEADER + length;
+            return length;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.Fuseable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxOperator;
+import reactor.core.publisher.Hooks;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoOperator;
+import reactor.core.publisher.Operators;
+import reactor.util.context.Context;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 流的埋点统计，替代调试时用的 log() 和 doOnNext(System.out::println)
+ * log() 每个信号都同步写一次控制台，控制台输出是加锁的，吞吐量会掉好几个数量级；这里每个信号只是一两次 LongAdder 的加法，
+ * 按名字汇总，需要时再读取（webflux 应用中是 /metrics/pipelines）
+ * 1、某一段：flux.transformDeferred(metrics.flux("name"))、mono.transformDeferred(metrics.mono("name"))
+ * 2、所有操作符：{@link #installGlobalHook()}，通过 Hooks.onEachOperator 在每个操作符后面插一个统计的订阅者，按操作符的名字汇总；
+ * 每个操作符都多一层订阅者，并且会关掉操作符融合，只在排查问题时打开
+ * 每个名字统计：订阅数、正在进行的订阅数、onNext 数和速率、request(n) 请求的数量和还没送达的数量、
+ * 从订阅到第一个元素的延迟、正常结束、异常和取消的次数
+ */
+public final class PipelineMetrics {
+
+    static final String HOOK_KEY = "pipeline-metrics";
+
+    private static final PipelineMetrics GLOBAL = new PipelineMetrics();
+
+    /**
+     * 名字最多这么多个，全局钩子按操作符名字汇总，正常不会超过
+     */
+    static final int MAX_NAMES = 1024;
+
+    private final Map<String, OperatorMetrics> operators = new ConcurrentHashMap<>();
+
+    private final OperatorMetrics overflow = new OperatorMetrics("other");
+
+    public static PipelineMetrics global() {
+        return GLOBAL;
+    }
+
+    public <T> Function<Flux<T>, Flux<T>> flux(String name) {
+        OperatorMetrics metrics = operator(name);
+        return source -> new FluxOperator<T, T>(source) {
+            @Override
+            public void subscribe(CoreSubscriber<? super T> actual) {
+                source.subscribe(new MetricsSubscriber<>(actual, metrics, false));
+            }
+        };
+    }
+
+    /**
+     * Mono 的第一个元素就算结束，block() 之类的在收到元素后取消不算取消
+     */
+    public <T> Function<Mono<T>, Mono<T>> mono(String name) {
+        OperatorMetrics metrics = operator(name);
+        return source -> new MonoOperator<T, T>(source) {
+            @Override
+            public void subscribe(CoreSubscriber<? super T> actual) {
+                source.subscribe(new MetricsSubscriber<>(actual, metrics, true));
+            }
+        };
+    }
+
+    public OperatorMetrics operator(String name) {
+        OperatorMetrics metrics = operators.get(name);
+        if (metrics == null) {
+            if (operators.size() >= MAX_NAMES) {
+                return overflow;
+            }
+            metrics = operators.computeIfAbsent(name, OperatorMetrics::new);
+        }
+        return metrics;
+    }
+
+    /**
+     * 给之后组装的所有操作符加上统计，名字是操作符的名字，或者 name("...") 指定的名字；已经组装好的流不受影响
+     */
+    public void installGlobalHook() {
+        Hooks.onEachOperator(HOOK_KEY, Operators.lift((scannable, actual) ->
+                new MetricsSubscriber<>(actual, operator("operator:" + scannable.name()), false)));
+    }
+
+    public void removeGlobalHook() {
+        Hooks.resetOnEachOperator(HOOK_KEY);
+    }
+
+    /**
+     * 所有名字的统计，onNext 速率是和上一次调用 snapshot 之间的平均速率
+     */
+    public List<Snapshot> snapshot() {
+        List<Snapshot> result = new ArrayList<>(operators.size() + 1);
+        operators.values().forEach(m -> result.add(m.snapshot()));
+        if (overflow.subscribed.sum() > 0) {
+            result.add(overflow.snapshot());
+        }
+        return result;
+    }
+
+    /**
+     * @param inFlight           正在进行（订阅了、还没有结束或者取消）的订阅数
+     * @param onNextPerSecond    和上一次 snapshot 之间的平均 onNext 速率
+     * @param requested          有界的 request(n) 加起来请求了多少个元素
+     * @param unboundedRequests  request(Long.MAX_VALUE) 的次数，这样的订阅不计入 requested 和 outstanding
+     * @param outstanding        请求了、还没有送达的元素数
+     * @param firstElementNanos  从订阅到第一个元素的延迟，纳秒
+     */
+    public record Snapshot(String name, long subscribed, long inFlight, long onNext, double onNextPerSecond,
+                           long requested, long unboundedRequests, long outstanding, long completed, long errors,
+                           long cancelled, BucketHistogram.Snapshot firstElementNanos) {
+    }
+
+    /**
+     * 一个名字的计数，多条流、多个订阅共享
+     */
+    public static final class OperatorMetrics {
+
+        final String name;
+
+        final LongAdder subscribed = new LongAdder();
+
+        final LongAdder inFlight = new LongAdder();
+
+        final LongAdder onNext = new LongAdder();
+
+        final LongAdder requested = new LongAdder();
+
+        final LongAdder unboundedRequests = new LongAdder();
+
+        final LongAdder outstanding = new LongAdder();
+
+        final LongAdder completed = new LongAdder();
+
+        final LongAdder errors = new LongAdder();
+
+        final LongAdder cancelled = new LongAdder();
+
+        final BucketHistogram firstElement = new BucketHistogram();
+
+        /**
+         * 以下两个字段由 this 的锁保护，只在 snapshot 时访问
+         */
+        long lastOnNext;
+
+        long lastSnapshotNanos = System.nanoTime();
+
+        OperatorMetrics(String name) {
+            this.name = name;
+        }
+
+        synchronized Snapshot snapshot() {
+            long now = System.nanoTime();
+            long n = onNext.sum();
+            double rate = now == lastSnapshotNanos ? 0 : (n - lastOnNext) * 1e9 / (now - lastSnapshotNanos);
+            lastOnNext = n;
+            lastSnapshotNanos = now;
+            return new Snapshot(name, subscribed.sum(), inFlight.sum(), n, rate, requested.sum(), unboundedRequests.sum(),
+                    outstanding.sum(), completed.sum(), errors.sum(), cancelled.sum(), firstElement.snapshot());
+        }
+    }
+
+    /**
+     * 实现 QueueSubscription 只是为了能插在可融合的操作符之间（下游会把上游的 Subscription 强转成 QueueSubscription），
+     * requestFusion 总是返回 NONE，不参与融合
+     */
+    static final class MetricsSubscriber<T> implements CoreSubscriber<T>, Fuseable.QueueSubscription<T> {
+
+        static final AtomicIntegerFieldUpdater<MetricsSubscriber> TERMINATED =
+                AtomicIntegerFieldUpdater.newUpdater(MetricsSubscriber.class, "terminated");
+
+        static final AtomicLongFieldUpdater<MetricsSubscriber> REMAINING =
+                AtomicLongFieldUpdater.newUpdater(MetricsSubscriber.class, "remaining");
+
+        /**
+         * remaining 的值，表示下游请求过 Long.MAX_VALUE，不再统计还没送达的数量
+         */
+        static final long UNBOUNDED = -1L;
+
+        final CoreSubscriber<? super T> actual;
+
+        final OperatorMetrics metrics;
+
+        final boolean mono;
+
+        final long subscribeNanos;
+
+        Subscription upstream;
+
+        boolean first = true;
+
+        volatile int terminated;
+
+        /**
+         * 请求了、还没有送达的元素数
+         */
+        volatile long remaining;
+
+        MetricsSubscriber(CoreSubscriber<? super T> actual, OperatorMetrics metrics, boolean mono) {
+            this.actual = actual;
+            this.metrics = metrics;
+            this.mono = mono;
+            this.subscribeNanos = System.nanoTime();
+            metrics.subscribed.increment();
+            metrics.inFlight.increment();
+        }
+
+        @Override
+        public Context currentContext() {
+            return actual.currentContext();
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            if (Operators.validate(upstream, s)) {
+                upstream = s;
+                actual.onSubscribe(this);
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            metrics.onNext.increment();
+            long r;
+            do {
+                r = remaining;
+                if (r <= 0) {
+                    break;
+                }
+            } while (!REMAINING.compareAndSet(this, r, r - 1));
+            if (r > 0) {
+                metrics.outstanding.decrement();
+            }
+            if (first) {
+                first = false;
+                metrics.firstElement.record(System.nanoTime() - subscribeNanos);
+                if (mono && terminate()) {
+                    metrics.completed.increment();
+                }
+            }
+            actual.onNext(t);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (terminate()) {
+                metrics.errors.increment();
+            }
+            actual.onError(t);
+        }
+
+        @Override
+        public void onComplete() {
+            if (terminate()) {
+                metrics.completed.increment();
+            }
+            actual.onComplete();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n == Long.MAX_VALUE) {
+                metrics.unboundedRequests.increment();
+                long r = REMAINING.getAndSet(this, UNBOUNDED);
+                if (r > 0) {
+                    metrics.outstanding.add(-r);
+                }
+            } else if (n > 0) {
+                metrics.requested.add(n);
+                long r;
+                do {
+                    r = remaining;
+                    if (r == UNBOUNDED) {
+                        break;
+                    }
+                } while (!REMAINING.compareAndSet(this, r, Operators.addCap(r, n)));
+                if (r != UNBOUNDED) {
+                    metrics.outstanding.add(n);
+                }
+            }
+            upstream.request(n);
+        }
+
+        @Override
+        public void cancel() {
+            if (terminate()) {
+                metrics.cancelled.increment();
+            }
+            upstream.cancel();
+        }
+
+        @Override
+        public int requestFusion(int requestedMode) {
+            return Fuseable.NONE;
+        }
+
+        @Override
+        public T poll() {
+            return null;
+        }
+
+        @Override
+        public int size() {
+            return 0;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return true;
+        }
+
+        @Override
+        public void clear() {
+        }
+
+        /**
+         * 结束、异常、取消只统计第一次，同时把还没送达的请求从 outstanding 中去掉
+         */
+        boolean terminate() {
+            if (terminated == 0 && TERMINATED.compareAndSet(this, 0, 1)) {
+                metrics.inFlight.decrement();
+                long r = REMAINING.getAndSet(this, UNBOUNDED);
+                if (r > 0) {
+                    metrics.outstanding.add(-r);
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import com.hs.reactive.reactivestream.flow.MpmcArrayRing;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Operators;
+import reactor.core.publisher.Sinks;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * 按优先级出队的有界背压缓冲 sink，用来代替 Sinks.many().unicast().onBackpressureBuffer(new PriorityQueue<>(10))
+ * PriorityQueue 不是线程安全的，构造参数 10 也只是初始容量，不是上限，过载时内存会无限增长
+ * 这里：
+ * 1、每个优先级一个无锁的 {@link MpmcArrayRing}，0 是最高优先级；所有优先级共享一个总容量 capacity
+ * 2、多个线程可以同时调用 tryEmitNext，不会返回 FAIL_NON_SERIALIZED；出队在 WIP 循环中进行，每次先取优先级最高的
+ * 3、总容量满了按 {@link OverflowPolicy} 处理，高优先级的事件可以挤掉低优先级的事件
+ * 和 unicast 一样只能有一个订阅者
+ *
+ * @param <T> 元素类型
+ */
+public final class PrioritySink<T> implements Publisher<T> {
+
+    /**
+     * 缓冲区满了之后的处理方式
+     */
+    public enum OverflowPolicy {
+        /**
+         * 丢弃比新元素优先级低的元素中，优先级最低的那一级里最旧的一个；没有更低的就丢弃新元素
+         */
+        DROP_LOWEST,
+        /**
+         * 丢弃和新元素同一优先级中最旧的一个；这一级是空的就丢弃新元素
+         */
+        DROP_OLDEST,
+        /**
+         * 不丢弃，向订阅者发出溢出错误，和 onBackpressureError 一样
+         */
+        ERROR
+    }
+
+    private final MpmcArrayRing<T>[] levels;
+
+    private final int capacity;
+
+    private final OverflowPolicy policy;
+
+    private final Consumer<? super T> onDrop;
+
+    /**
+     * 所有优先级中的元素总数
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final AtomicInteger wip = new AtomicInteger();
+
+    private final AtomicLong requested = new AtomicLong();
+
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private volatile Subscriber<? super T> actual;
+
+    private volatile boolean done;
+
+    private volatile Throwable error;
+
+    private volatile boolean cancelled;
+
+    private volatile boolean overflowed;
+
+    public PrioritySink(int levels, int capacity, OverflowPolicy policy) {
+        this(levels, capacity, policy, dropped -> {
+        });
+    }
+
+    /**
+     * @param levels   优先级的个数，优先级取值 0 ~ levels - 1，0 最高
+     * @param capacity 所有优先级加起来最多缓冲的元素数
+     * @param onDrop   被丢弃的元素
+     */
+    @SuppressWarnings("unchecked")
+    public PrioritySink(int levels, int capacity, OverflowPolicy policy, Consumer<? super T> onDrop) {
+        if (levels < 1 || capacity < 1) {
+            throw new IllegalArgumentException("levels and capacity must be positive");
+        }
+        this.levels = new MpmcArrayRing[levels];
+        for (int i = 0; i < levels; i++) {
+            //每一级都可能装满整个容量，总数由 size 限制；tryEmitNext 依赖这一点，offer 不会失败
+            this.levels[i] = new MpmcArrayRing<>(capacity);
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+        this.onDrop = onDrop;
+    }
+
+    /**
+     * 发送一个元素，可以被多个线程同时调用
+     *
+     * @param priority 0 最高
+     * @return 新元素被丢弃或者溢出时返回 FAIL_OVERFLOW
+     */
+    public Sinks.EmitResult tryEmitNext(T item, int priority) {
+        if (priority < 0 || priority >= levels.length) {
+            throw new IllegalArgumentException("priority must be in [0, " + levels.length + ")");
+        }
+        if (done) {
+            return Sinks.EmitResult.FAIL_TERMINATED;
+        }
+        if (cancelled) {
+            return Sinks.EmitResult.FAIL_CANCELLED;
+        }
+        for (; ; ) {
+            int s = size.get();
+            if (s < capacity) {
+                if (size.compareAndSet(s, s + 1)) {
+                    break;
+                }
+                continue;
+            }
+            if (policy == OverflowPolicy.ERROR) {
+                if (!done) {
+                    error = Exceptions.failWithOverflow("PrioritySink is full, capacity " + capacity);
+                    overflowed = true;
+                    done = true;
+                    drain();
+                }
+                return Sinks.EmitResult.FAIL_OVERFLOW;
+            }
+            int victim = victimLevel(priority);
+            if (victim < 0) {
+                drop(item);
+                return Sinks.EmitResult.FAIL_OVERFLOW;
+            }
+            T evicted = levels[victim].poll();
+            if (evicted != null) {
+                //取出一个再放入一个，总数不变
+                drop(evicted);
+                break;
+            }
+            //这一级刚被消费者取空了，重新检查容量
+        }
+        //size 已经占好了位置，每一级的环又能装下整个容量，正常不会失败；环的大小改了的话要在这里还回占的位置
+        if (!levels[priority].offer(item)) {
+            size.decrementAndGet();
+            drop(item);
+            //已经结束的话，size 回到 0 时下游要收到终止信号
+            drain();
+            return Sinks.EmitResult.FAIL_OVERFLOW;
+        }
+        drain();
+        return Sinks.EmitResult.OK;
+    }
+
+    private int victimLevel(int priority) {
+        if (policy == OverflowPolicy.DROP_OLDEST) {
+            return levels[priority].isEmpty() ? -1 : priority;
+        }
+        for (int i = levels.length - 1; i > priority; i--) {
+            if (!levels[i].isEmpty()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void drop(T item) {
+        dropped.increment();
+        onDrop.accept(item);
+    }
+
+    public Sinks.EmitResult tryEmitComplete() {
+        if (done) {
+            return Sinks.EmitResult.FAIL_TERMINATED;
+        }
+        done = true;
+        drain();
+        return Sinks.EmitResult.OK;
+    }
+
+    public Sinks.EmitResult tryEmitError(Throwable error) {
+        if (done) {
+            return Sinks.EmitResult.FAIL_TERMINATED;
+        }
+        this.error = error;
+        done = true;
+        drain();
+        return Sinks.EmitResult.OK;
+    }
+
+    public Flux<T> asFlux() {
+        return Flux.from(this);
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+        if (!subscribed.compareAndSet(false, true)) {
+            Operators.error(subscriber, new IllegalStateException("PrioritySink allows only a single Subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+                if (Operators.validate(n)) {
+                    long current;
+                    long next;
+                    do {
+                        current = requested.get();
+                        next = Operators.addCap(current, n);
+                    } while (!requested.compareAndSet(current, next));
+                    drain();
+                }
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                drain();
+            }
+        });
+        actual = subscriber;
+        drain();
+    }
+
+    /**
+     * 当前缓冲的元素总数
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * 因为容量满了被丢弃的元素数（包括被挤掉的旧元素和没能放进去的新元素）
+     */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        for (; ; ) {
+            Subscriber<? super T> a = actual;
+            if (cancelled) {
+                clear();
+            } else if (a != null) {
+                if (overflowed) {
+                    //溢出错误不等缓冲区排空，立即发出
+                    cancelled = true;
+                    clear();
+                    a.onError(error);
+                    return;
+                }
+                long r = requested.get();
+                long e = 0L;
+                while (e != r) {
+                    boolean d = done;
+                    T item = poll();
+                    if (item == null) {
+                        if (d && size.get() == 0) {
+                            terminate(a);
+                            return;
+                        }
+                        break;
+                    }
+                    a.onNext(item);
+                    e++;
+                }
+                if (e == r && done && size.get() == 0) {
+                    terminate(a);
+                    return;
+                }
+                if (e != 0L && r != Long.MAX_VALUE) {
+                    requested.addAndGet(-e);
+                }
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+
+    private T poll() {
+        for (MpmcArrayRing<T> level : levels) {
+            T item = level.poll();
+            if (item != null) {
+                size.decrementAndGet();
+                return item;
+            }
+        }
+        return null;
+    }
+
+    private void terminate(Subscriber<? super T> a) {
+        cancelled = true;
+        Throwable e = error;
+        if (e != null) {
+            a.onError(e);
+        } else {
+            a.onComplete();
+        }
+    }
+
+    private void clear() {
+        while (poll() != null) {
+            //丢掉剩下的元素
+        }
+    }
+}
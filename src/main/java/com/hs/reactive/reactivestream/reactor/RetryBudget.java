@@ -0,0 +1,105 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 重试预算，令牌桶：每个请求往桶里存 retryRatio 个令牌，每次重试（包括对冲请求）从桶里取 1 个令牌，取不到就不重试
+ * 这样重试的次数最多是请求数的 retryRatio 倍，下游变慢、大量请求失败的时候，重试不会把流量放大好几倍
+ * 桶最多存 maxRetries 个令牌，一开始是满的，刚启动还没有请求的时候也可以重试几次
+ * 令牌按千分之一为单位存成一个 long，存取都只是一次 CAS；桶满了的时候存令牌只是一次读
+ */
+public final class RetryBudget {
+
+    private static final long UNIT = 1000;
+
+    /**
+     * 整个进程共用的预算：重试最多占请求数的 10%，最多攒 100 次重试
+     */
+    private static final RetryBudget GLOBAL = new RetryBudget(0.1, 100);
+
+    private final long deposit;
+
+    private final long capacity;
+
+    private final AtomicLong tokens;
+
+    private final LongAdder requests = new LongAdder();
+
+    private final LongAdder retries = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param retryRatio 重试数占请求数的比例上限，比如 0.1
+     * @param maxRetries 桶的容量，最多可以连续重试多少次
+     */
+    public RetryBudget(double retryRatio, int maxRetries) {
+        if (retryRatio < 0 || maxRetries < 1) {
+            throw new IllegalArgumentException("retryRatio must not be negative and maxRetries must be positive");
+        }
+        this.deposit = Math.round(retryRatio * UNIT);
+        this.capacity = maxRetries * UNIT;
+        this.tokens = new AtomicLong(capacity);
+    }
+
+    public static RetryBudget global() {
+        return GLOBAL;
+    }
+
+    /**
+     * 每个请求（不是每次尝试）调用一次
+     */
+    public void onRequest() {
+        requests.increment();
+        long current;
+        long next;
+        do {
+            current = tokens.get();
+            if (current >= capacity) {
+                return;
+            }
+            next = Math.min(capacity, current + deposit);
+        } while (!tokens.compareAndSet(current, next));
+    }
+
+    /**
+     * 重试之前调用
+     *
+     * @return 预算用完了返回 false，这时不应该重试
+     */
+    public boolean tryAcquire() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current < UNIT) {
+                rejected.increment();
+                return false;
+            }
+        } while (!tokens.compareAndSet(current, current - UNIT));
+        retries.increment();
+        return true;
+    }
+
+    /**
+     * 桶里还剩多少次重试
+     */
+    public double available() {
+        return (double) tokens.get() / UNIT;
+    }
+
+    public long requestCount() {
+        return requests.sum();
+    }
+
+    public long retryCount() {
+        return retries.sum();
+    }
+
+    /**
+     * 因为预算用完而没有重试的次数
+     */
+    public long rejectedCount() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,441 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.Disposable;
+import reactor.core.Fuseable;
+import reactor.core.publisher.Hooks;
+import reactor.core.publisher.Operators;
+import reactor.core.publisher.Signal;
+import reactor.core.publisher.SignalType;
+import reactor.util.context.Context;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * 信号的二进制日志，替代 doOnEach(System.out::println) 和 log()，可以在生产环境一直开着
+ * System.out.println 是加锁的同步写，在事件循环线程中调用会阻塞 IO；log() 还要格式化字符串
+ * 这里每个信号是一条固定 32 字节的记录，生产者只做三件事：CAS 抢一个槽位、写 4 个 long、发布槽位，不分配对象、不加锁、不阻塞；
+ * 环满了就丢弃并计数（{@link #droppedCount()}）
+ * 后台线程把环中的记录按顺序拷贝到内存映射文件中，文件也是一个环，写满了从头覆盖最旧的记录
+ * 1、记录：[long 相对文件创建时的纳秒][int 名字编号][int 信号类型][long 线程 id][long 负载]
+ * 负载是 request(n) 的 n、数字元素的值、异常类名的编号，其他元素默认是 0，可以自己指定
+ * 2、名字（流的名字、操作符名字、异常类名）在第一次出现时编号，编号和名字写在 file.names 中，一行一个
+ * 3、文件头 64 字节：魔数、版本、记录大小、记录容量、创建时的纪元纳秒、已写入的记录数；用 {@link #read} 读出来
+ * 用法：flux.doOnEach(log.tracer("name"))；或者 {@link #installGlobalHook()} 记录所有操作符的所有信号（包括 request 和 cancel）
+ */
+public final class SignalLog implements Disposable {
+
+    static final int MAGIC = 0x52534947;
+
+    static final int VERSION = 1;
+
+    static final int HEADER = 64;
+
+    static final int RECORD = 32;
+
+    /**
+     * 文件头中已写入的记录数的位置
+     */
+    static final int WRITTEN_OFFSET = 32;
+
+    static final String HOOK_KEY = "signal-log";
+
+    private final int mask;
+
+    /**
+     * 环：每条记录占 4 个 long；sequences[i] == 序号 + 1 表示第 i 个槽位已经写好，可以被后台线程读取
+     */
+    private final long[] slots;
+
+    private final AtomicLongArray sequences;
+
+    private final AtomicLong producerIndex = new AtomicLong();
+
+    private volatile long consumerIndex;
+
+    private final MappedByteBuffer file;
+
+    private final long fileRecords;
+
+    private final Path namesFile;
+
+    private final Map<String, Integer> names = new ConcurrentHashMap<>();
+
+    private final long baseNanos = System.nanoTime();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final Thread drainer;
+
+    private volatile boolean disposed;
+
+    /**
+     * 全局钩子是否由这个实例安装，dispose 时一起移除
+     */
+    private volatile boolean hookInstalled;
+
+    /**
+     * 只在后台线程中访问
+     */
+    private long written;
+
+    private SignalLog(MappedByteBuffer file, long fileRecords, Path namesFile, int ringCapacity) {
+        int capacity = 1 << (32 - Integer.numberOfLeadingZeros(ringCapacity - 1));
+        this.mask = capacity - 1;
+        this.slots = new long[capacity * 4];
+        this.sequences = new AtomicLongArray(capacity);
+        this.file = file;
+        this.fileRecords = fileRecords;
+        this.namesFile = namesFile;
+        file.putInt(0, MAGIC);
+        file.putInt(4, VERSION);
+        file.putInt(8, RECORD);
+        file.putLong(16, fileRecords);
+        file.putLong(24, TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()));
+        file.putLong(WRITTEN_OFFSET, 0L);
+        this.drainer = new Thread(this::drain, "signal-log");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * @param file         日志文件，名字写在 file.names 中；已经存在的文件会被覆盖
+     * @param ringCapacity 内存中的环最多缓冲多少条记录，向上取 2 的幂
+     * @param fileBytes    文件大小，最大 2GB，写满之后从头覆盖
+     */
+    public static SignalLog open(Path file, int ringCapacity, long fileBytes) throws IOException {
+        long records = (fileBytes - HEADER) / RECORD;
+        if (ringCapacity < 1 || records < 1 || fileBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("ringCapacity must be positive and fileBytes must be between one record and 2GB");
+        }
+        Path namesFile = file.resolveSibling(file.getFileName() + ".names");
+        Files.write(namesFile, new byte[0]);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            //映射建立之后关闭 channel 不影响映射
+            return new SignalLog(channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + records * RECORD), records,
+                    namesFile, ringCapacity);
+        }
+    }
+
+    /**
+     * 名字的编号，第一次出现时追加到 file.names 中；只在组装流或者第一次出现某种异常时调用，不在每个信号上调用
+     */
+    public int nameId(String name) {
+        Integer id = names.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (names) {
+            id = names.get(name);
+            if (id == null) {
+                id = names.size();
+                try {
+                    Files.write(namesFile, (name.replace('\n', ' ') + "\n").getBytes(StandardCharsets.UTF_8),
+                            StandardOpenOption.APPEND);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                names.put(name, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * 记录一个信号，不阻塞
+     *
+     * @return 环满了或者已经 dispose 返回 false；dispose 之后不再计入丢弃数
+     */
+    public boolean log(int nameId, SignalType type, long payload) {
+        if (disposed) {
+            return false;
+        }
+        long index;
+        do {
+            index = producerIndex.get();
+            if (index - consumerIndex >= mask + 1) {
+                dropped.increment();
+                return false;
+            }
+        } while (!producerIndex.compareAndSet(index, index + 1));
+        int slot = (int) index & mask;
+        int offset = slot << 2;
+        slots[offset] = System.nanoTime() - baseNanos;
+        slots[offset + 1] = ((long) nameId << 32) | type.ordinal();
+        slots[offset + 2] = Thread.currentThread().getId();
+        slots[offset + 3] = payload;
+        //release 写：后台线程看到序号时，上面 4 个 long 也一定可见
+        sequences.lazySet(slot, index + 1);
+        return true;
+    }
+
+    /**
+     * 给 doOnEach 用，元素是数字时记录它的值
+     */
+    public <T> Consumer<Signal<T>> tracer(String name) {
+        return tracer(name, value -> value instanceof Number ? ((Number) value).longValue() : 0L);
+    }
+
+    /**
+     * @param payload 元素的负载，比如订单号
+     */
+    public <T> Consumer<Signal<T>> tracer(String name, ToLongFunction<? super T> payload) {
+        int id = nameId(name);
+        return signal -> {
+            switch (signal.getType()) {
+                case ON_NEXT:
+                    log(id, SignalType.ON_NEXT, payload.applyAsLong(signal.get()));
+                    break;
+                case ON_ERROR:
+                    log(id, SignalType.ON_ERROR, nameId(signal.getThrowable().getClass().getName()));
+                    break;
+                default:
+                    log(id, signal.getType(), 0L);
+            }
+        };
+    }
+
+    /**
+     * 记录之后组装的所有操作符的所有信号，名字是操作符的名字或者 name("...") 指定的名字；
+     * 每个操作符多一层订阅者，并且不参与操作符融合
+     */
+    public void installGlobalHook() {
+        Hooks.onEachOperator(HOOK_KEY, Operators.lift((scannable, actual) ->
+                new SignalSubscriber<>(actual, this, nameId("operator:" + scannable.name()))));
+        hookInstalled = true;
+    }
+
+    public void removeGlobalHook() {
+        hookInstalled = false;
+        Hooks.resetOnEachOperator(HOOK_KEY);
+    }
+
+    /**
+     * 环满了丢弃的记录数
+     */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * 写进文件的记录数，包括已经被覆盖的
+     */
+    public long writtenCount() {
+        return file.getLong(WRITTEN_OFFSET);
+    }
+
+    private void drain() {
+        for (; ; ) {
+            int n = drainBatch();
+            if (n == 0) {
+                if (disposed) {
+                    //dispose 之后再取一次，把 dispose 之前写进环的记录写完
+                    if (drainBatch() == 0) {
+                        file.force();
+                        return;
+                    }
+                    continue;
+                }
+                //没有记录就睡 1ms，生产者不需要唤醒后台线程
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+    }
+
+    /**
+     * @return 这次写进文件的记录数
+     */
+    private int drainBatch() {
+        long index = consumerIndex;
+        int n = 0;
+        for (; ; ) {
+            int slot = (int) index & mask;
+            //生产者抢到了槽位还没写完时停在这里，下一轮再取，保证文件中的顺序和抢槽位的顺序一致
+            if (sequences.get(slot) != index + 1) {
+                break;
+            }
+            int offset = slot << 2;
+            int position = HEADER + (int) ((written % fileRecords) * RECORD);
+            file.putLong(position, slots[offset]);
+            long nameAndType = slots[offset + 1];
+            file.putInt(position + 8, (int) (nameAndType >>> 32));
+            file.putInt(position + 12, (int) nameAndType);
+            file.putLong(position + 16, slots[offset + 2]);
+            file.putLong(position + 24, slots[offset + 3]);
+            written++;
+            index++;
+            n++;
+            //每个槽位读完就还给生产者，环不会因为一批很大而显得是满的
+            consumerIndex = index;
+        }
+        if (n != 0) {
+            file.putLong(WRITTEN_OFFSET, written);
+        }
+        return n;
+    }
+
+    /**
+     * 停止后台线程，环中剩下的记录写完之后刷到磁盘；这个实例安装的全局钩子也一起移除
+     */
+    @Override
+    public void dispose() {
+        if (!disposed) {
+            disposed = true;
+            if (hookInstalled) {
+                removeGlobalHook();
+            }
+            try {
+                drainer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return disposed;
+    }
+
+    /**
+     * 按写入的顺序读出文件中还没有被覆盖的记录
+     */
+    public static List<Entry> read(Path file) throws IOException {
+        List<String> names = Files.readAllLines(file.resolveSibling(file.getFileName() + ".names"), StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a signal log: " + file);
+        }
+        long records = buffer.getLong(16);
+        long epochNanos = buffer.getLong(24);
+        long written = buffer.getLong(WRITTEN_OFFSET);
+        SignalType[] types = SignalType.values();
+        List<Entry> entries = new ArrayList<>();
+        for (long i = Math.max(0, written - records); i < written; i++) {
+            int position = HEADER + (int) ((i % records) * RECORD);
+            int type = buffer.getInt(position + 12);
+            int nameId = buffer.getInt(position + 8);
+            //直接调用 log 时传的编号不一定在 names 中
+            String name = nameId >= 0 && nameId < names.size() ? names.get(nameId) : "#" + nameId;
+            entries.add(new Entry(epochNanos + buffer.getLong(position), name,
+                    types[type], buffer.getLong(position + 16), buffer.getLong(position + 24)));
+        }
+        return entries;
+    }
+
+    /**
+     * @param epochNanos 纪元纳秒，精度是 nanoTime 的精度，起点是文件创建时的毫秒时间
+     * @param payload    ON_ERROR 时是异常类名的编号，其他见类的注释
+     */
+    public record Entry(long epochNanos, String name, SignalType type, long thread, long payload) {
+    }
+
+    /**
+     * 全局钩子插在操作符之间的订阅者，实现 QueueSubscription 只是为了能插在可融合的操作符之间，不参与融合
+     */
+    static final class SignalSubscriber<T> implements CoreSubscriber<T>, Fuseable.QueueSubscription<T> {
+
+        final CoreSubscriber<? super T> actual;
+
+        final SignalLog log;
+
+        final int nameId;
+
+        Subscription upstream;
+
+        SignalSubscriber(CoreSubscriber<? super T> actual, SignalLog log, int nameId) {
+            this.actual = actual;
+            this.log = log;
+            this.nameId = nameId;
+        }
+
+        @Override
+        public Context currentContext() {
+            return actual.currentContext();
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            if (Operators.validate(upstream, s)) {
+                upstream = s;
+                log.log(nameId, SignalType.ON_SUBSCRIBE, 0L);
+                actual.onSubscribe(this);
+            }
+        }
+
+        @Override
+        public void onNext(T t) {
+            log.log(nameId, SignalType.ON_NEXT, t instanceof Number ? ((Number) t).longValue() : 0L);
+            actual.onNext(t);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            log.log(nameId, SignalType.ON_ERROR, log.nameId(t.getClass().getName()));
+            actual.onError(t);
+        }
+
+        @Override
+        public void onComplete() {
+            log.log(nameId, SignalType.ON_COMPLETE, 0L);
+            actual.onComplete();
+        }
+
+        @Override
+        public void request(long n) {
+            log.log(nameId, SignalType.REQUEST, n);
+            upstream.request(n);
+        }
+
+        @Override
+        public void cancel() {
+            log.log(nameId, SignalType.CANCEL, 0L);
+            upstream.cancel();
+        }
+
+        @Override
+        public int requestFusion(int requestedMode) {
+            return Fuseable.NONE;
+        }
+
+        @Override
+        public T poll() {
+            return null;
+        }
+
+        @Override
+        public int size() {
+            return 0;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return true;
+        }
+
+        @Override
+        public void clear() {
+        }
+    }
+}
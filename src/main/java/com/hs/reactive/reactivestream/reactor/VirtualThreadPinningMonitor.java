@@ -0,0 +1,128 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+import reactor.core.Disposable;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 检测虚拟线程钉住（pin）平台线程：虚拟线程在 synchronized 块中、或者在本地方法的栈帧中阻塞时，不能从平台线程上卸载，
+ * 平台线程就跟着一起阻塞了，钉住的多了虚拟线程调度器的几个平台线程会被占满
+ * 通过 JFR 的 jdk.VirtualThreadPinned 事件检测，这个事件 JDK 21 才有，更早的 JDK 上不会收到事件
+ * 按栈顶的几个非 JDK 栈帧分组统计，找到是哪段代码钉住了线程，然后把 synchronized 换成 ReentrantLock 或者把调用挪出同步块
+ * 也可以用 -Djdk.tracePinnedThreads=short 启动，钉住时直接打印栈
+ */
+public final class VirtualThreadPinningMonitor implements Disposable {
+
+    static final String EVENT = "jdk.VirtualThreadPinned";
+
+    /**
+     * 最多统计这么多个不同的位置，避免栈很分散的时候无限增长
+     */
+    static final int MAX_HOTSPOTS = 64;
+
+    private final RecordingStream stream;
+
+    private final LongAdder pinned = new LongAdder();
+
+    private final LongAdder pinnedNanos = new LongAdder();
+
+    private final Map<String, LongAdder> hotspots = new ConcurrentHashMap<>();
+
+    private volatile boolean disposed;
+
+    private VirtualThreadPinningMonitor(Duration threshold) {
+        this.stream = new RecordingStream();
+        stream.enable(EVENT).withThreshold(threshold).withStackTrace();
+        stream.onEvent(EVENT, this::onPinned);
+    }
+
+    /**
+     * @param threshold 钉住超过这个时间才记录，JFR 默认是 20ms
+     */
+    public static VirtualThreadPinningMonitor start(Duration threshold) {
+        VirtualThreadPinningMonitor monitor = new VirtualThreadPinningMonitor(threshold);
+        monitor.stream.startAsync();
+        return monitor;
+    }
+
+    private void onPinned(RecordedEvent event) {
+        pinned.increment();
+        pinnedNanos.add(event.getDuration().toNanos());
+        String location = location(event.getStackTrace());
+        LongAdder counter = hotspots.get(location);
+        if (counter == null && hotspots.size() < MAX_HOTSPOTS) {
+            counter = hotspots.computeIfAbsent(location, k -> new LongAdder());
+        }
+        if (counter != null) {
+            counter.increment();
+        }
+    }
+
+    /**
+     * 栈顶前 3 个不是 JDK 自己的、也不是 lambda 生成的栈帧
+     */
+    static String location(RecordedStackTrace stackTrace) {
+        if (stackTrace == null) {
+            return "unknown";
+        }
+        StringBuilder sb = new StringBuilder();
+        int n = 0;
+        List<RecordedFrame> frames = stackTrace.getFrames();
+        for (RecordedFrame frame : frames) {
+            String type = frame.getMethod().getType().getName();
+            if (type.startsWith("java.") || type.startsWith("jdk.") || type.startsWith("sun.") || type.contains("$$Lambda")) {
+                continue;
+            }
+            if (n > 0) {
+                sb.append(" <- ");
+            }
+            sb.append(type).append('.').append(frame.getMethod().getName()).append(':').append(frame.getLineNumber());
+            if (++n == 3) {
+                break;
+            }
+        }
+        return n == 0 ? "jdk" : sb.toString();
+    }
+
+    /**
+     * 钉住的次数
+     */
+    public long pinnedCount() {
+        return pinned.sum();
+    }
+
+    /**
+     * 钉住的总时间
+     */
+    public Duration pinnedTime() {
+        return Duration.ofNanos(pinnedNanos.sum());
+    }
+
+    /**
+     * 每个位置钉住的次数
+     */
+    public Map<String, Long> hotspots() {
+        Map<String, Long> result = new ConcurrentHashMap<>();
+        hotspots.forEach((k, v) -> result.put(k, v.sum()));
+        return result;
+    }
+
+    @Override
+    public void dispose() {
+        disposed = true;
+        stream.close();
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return disposed;
+    }
+}
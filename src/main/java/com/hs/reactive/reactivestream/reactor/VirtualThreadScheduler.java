@@ -0,0 +1,425 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.Exceptions;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 虚拟线程调度器，给流中的阻塞调用（JDBC、文件 IO、block）用：subscribeOn(scheduler)、publishOn(scheduler)
+ * boundedElastic 最多 10 * CPU 核数个线程，阻塞调用多的时候线程很快用完，后面的任务只能排队；
+ * 虚拟线程阻塞时不占用平台线程，每个任务一个虚拟线程，并发的阻塞调用数不受线程数限制
+ * 1、项目按 JDK 17 编译，虚拟线程的 api 通过反射调用；用 -Pjdk21 编译、在 JDK 21 上运行时才是真正的虚拟线程，
+ * 否则 {@link #create} 退回到 boundedElastic
+ * 2、同一个 Worker 上的任务按提交的顺序一个一个执行，和其他调度器的 Worker 一样
+ * 3、延时任务先在 parallel 调度器上计时，到时间后再交给虚拟线程执行
+ * 4、周期任务由一个虚拟线程睡到下一个周期再执行，按固定频率，执行慢了错过的周期不补；任务抛出异常后不再执行
+ * 虚拟线程在 synchronized 块中或者本地方法中阻塞时会钉住（pin）平台线程，用 {@link VirtualThreadPinningMonitor} 检测
+ */
+public final class VirtualThreadScheduler implements Scheduler {
+
+    /**
+     * Thread.ofVirtual()，JDK 21 之前是 null
+     */
+    private static final Method OF_VIRTUAL;
+
+    private static final Method BUILDER_NAME;
+
+    private static final Method BUILDER_FACTORY;
+
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        Method newExecutor = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            //实现类不是 public 的，要通过 public 的接口 Thread.Builder 调用
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_FACTORY = factory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newExecutor;
+    }
+
+    private final String name;
+
+    private final ExecutorService executor;
+
+    private final Scheduler timer;
+
+    private VirtualThreadScheduler(String name, ExecutorService executor, Scheduler timer) {
+        this.name = name;
+        this.executor = executor;
+        this.timer = timer;
+    }
+
+    /**
+     * 当前 JVM 是否支持虚拟线程
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @param name 虚拟线程名称的前缀，线程名是 name-0、name-1 ...
+     * @return 支持虚拟线程时返回虚拟线程调度器，否则返回 Schedulers.boundedElastic()
+     */
+    public static Scheduler create(String name) {
+        if (!isSupported()) {
+            return Schedulers.boundedElastic();
+        }
+        try {
+            Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name + "-", 0L);
+            ThreadFactory factory = (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+            ExecutorService executor = (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, factory);
+            return new VirtualThreadScheduler(name, executor, Schedulers.parallel());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to create virtual thread executor", e);
+        }
+    }
+
+    @Override
+    public Disposable schedule(Runnable task) {
+        VirtualTask t = new VirtualTask(Schedulers.onSchedule(task));
+        execute(t);
+        return t;
+    }
+
+    @Override
+    public Disposable schedule(Runnable task, long delay, TimeUnit unit) {
+        VirtualTask t = new VirtualTask(Schedulers.onSchedule(task));
+        t.timer = timer.schedule(() -> execute(t), delay, unit);
+        return t;
+    }
+
+    @Override
+    public Disposable schedulePeriodically(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        PeriodicTask t = new PeriodicTask(Schedulers.onSchedule(task), unit.toNanos(initialDelay),
+                unit.toNanos(period), null);
+        execute(t);
+        return t;
+    }
+
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            throw Exceptions.failWithRejected(e);
+        }
+    }
+
+    @Override
+    public Worker createWorker() {
+        return new VirtualWorker();
+    }
+
+    @Override
+    public void dispose() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return executor.isShutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "VirtualThreadScheduler(\"" + name + "\")";
+    }
+
+    /**
+     * 一个任务，取消时如果已经在运行就中断它所在的虚拟线程
+     */
+    static final class VirtualTask implements Runnable, Disposable {
+
+        final Runnable task;
+
+        volatile Disposable timer;
+
+        /**
+         * Worker 上还在计时的延时任务所在的集合，取消时从中移除
+         */
+        volatile Disposable.Composite parent;
+
+        volatile Thread runner;
+
+        volatile boolean disposed;
+
+        VirtualTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            if (disposed) {
+                return;
+            }
+            runner = Thread.currentThread();
+            try {
+                task.run();
+            } catch (Throwable ex) {
+                Thread current = Thread.currentThread();
+                current.getUncaughtExceptionHandler().uncaughtException(current, ex);
+            } finally {
+                runner = null;
+                //清掉取消时设置的中断标记，不影响同一个 Worker 的下一个任务
+                Thread.interrupted();
+            }
+        }
+
+        @Override
+        public void dispose() {
+            disposed = true;
+            Disposable t = timer;
+            if (t != null) {
+                t.dispose();
+            }
+            Disposable.Composite p = parent;
+            if (p != null) {
+                p.remove(this);
+            }
+            Thread r = runner;
+            if (r != null) {
+                r.interrupt();
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return disposed;
+        }
+    }
+
+    /**
+     * 周期任务，计时的虚拟线程一直睡到下一个周期，dispose 时中断它
+     * Worker 上的周期任务只负责计时，到时间后放进 Worker 的队列，和其他任务按顺序执行；上一次还没执行完时跳过这一次
+     */
+    static final class PeriodicTask implements Runnable, Disposable {
+
+        final Runnable task;
+
+        final long initialDelay;
+
+        final long period;
+
+        /**
+         * null 时直接在计时的虚拟线程上执行
+         */
+        final VirtualWorker worker;
+
+        final VirtualTask tick;
+
+        /**
+         * 已经放进 Worker 的队列，还没执行完
+         */
+        volatile boolean pending;
+
+        volatile Thread timer;
+
+        volatile boolean disposed;
+
+        PeriodicTask(Runnable task, long initialDelay, long period, VirtualWorker worker) {
+            this.task = task;
+            this.initialDelay = initialDelay;
+            this.period = period;
+            this.worker = worker;
+            this.tick = new VirtualTask(this::runOnce);
+        }
+
+        @Override
+        public void run() {
+            timer = Thread.currentThread();
+            try {
+                long next = System.nanoTime() + initialDelay;
+                while (!disposed) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                        continue;
+                    }
+                    if (worker == null) {
+                        runOnce();
+                    } else if (!pending) {
+                        pending = true;
+                        worker.enqueue(tick);
+                    }
+                    long now = System.nanoTime();
+                    next += period;
+                    if (next - now < 0) {
+                        next = now + period;
+                    }
+                }
+            } catch (InterruptedException e) {
+                //dispose 或者调度器 dispose
+            } finally {
+                timer = null;
+                if (worker != null) {
+                    worker.tasks.remove(this);
+                }
+            }
+        }
+
+        void runOnce() {
+            try {
+                if (!disposed) {
+                    task.run();
+                }
+            } catch (Throwable ex) {
+                dispose();
+                Thread current = Thread.currentThread();
+                current.getUncaughtExceptionHandler().uncaughtException(current, ex);
+            } finally {
+                pending = false;
+            }
+        }
+
+        @Override
+        public void dispose() {
+            disposed = true;
+            tick.dispose();
+            Thread t = timer;
+            if (t != null) {
+                t.interrupt();
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return disposed;
+        }
+    }
+
+    /**
+     * 任务放进队列，由一个虚拟线程按顺序执行；队列空了这个虚拟线程就结束，下次有任务再启动一个新的
+     */
+    final class VirtualWorker implements Worker, Runnable {
+
+        final Queue<VirtualTask> queue = new ConcurrentLinkedQueue<>();
+
+        final AtomicInteger wip = new AtomicInteger();
+
+        /**
+         * 还在计时的延时任务和周期任务，dispose 时一起取消，计时的线程不用等到时间才退出
+         */
+        final Disposable.Composite tasks = Disposables.composite();
+
+        volatile boolean disposed;
+
+        volatile VirtualTask current;
+
+        @Override
+        public Disposable schedule(Runnable task) {
+            if (disposed) {
+                throw Exceptions.failWithRejected();
+            }
+            VirtualTask t = new VirtualTask(Schedulers.onSchedule(task));
+            enqueue(t);
+            return t;
+        }
+
+        @Override
+        public Disposable schedule(Runnable task, long delay, TimeUnit unit) {
+            if (disposed) {
+                throw Exceptions.failWithRejected();
+            }
+            VirtualTask t = new VirtualTask(Schedulers.onSchedule(task));
+            if (!tasks.add(t)) {
+                throw Exceptions.failWithRejected();
+            }
+            t.parent = tasks;
+            //到时间之后进入队列，之后由 dispose 清空队列、取消正在执行的任务
+            t.timer = timer.schedule(() -> {
+                tasks.remove(t);
+                enqueue(t);
+            }, delay, unit);
+            return t;
+        }
+
+        @Override
+        public Disposable schedulePeriodically(Runnable task, long initialDelay, long period, TimeUnit unit) {
+            if (disposed) {
+                throw Exceptions.failWithRejected();
+            }
+            PeriodicTask t = new PeriodicTask(Schedulers.onSchedule(task), unit.toNanos(initialDelay),
+                    unit.toNanos(period), this);
+            if (!tasks.add(t)) {
+                throw Exceptions.failWithRejected();
+            }
+            try {
+                execute(t);
+            } catch (RuntimeException e) {
+                tasks.remove(t);
+                throw e;
+            }
+            return t;
+        }
+
+        void enqueue(VirtualTask t) {
+            if (disposed) {
+                return;
+            }
+            queue.offer(t);
+            if (wip.getAndIncrement() == 0) {
+                execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            for (; ; ) {
+                VirtualTask t;
+                while ((t = queue.poll()) != null) {
+                    if (disposed) {
+                        queue.clear();
+                        return;
+                    }
+                    current = t;
+                    t.run();
+                    current = null;
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void dispose() {
+            disposed = true;
+            tasks.dispose();
+            queue.clear();
+            VirtualTask t = current;
+            if (t != null) {
+                t.dispose();
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return disposed;
+        }
+    }
+}
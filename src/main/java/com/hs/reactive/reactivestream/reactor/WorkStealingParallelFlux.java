@@ -0,0 +1,429 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.publisher.Operators;
+import reactor.core.publisher.ParallelFlux;
+import reactor.core.scheduler.Scheduler;
+import reactor.util.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+/**
+ * 工作窃取的 ParallelFlux，替代 parallel(n).runOn(scheduler)
+ * runOn 把元素轮流分给每个 rail，每个 rail 预取 256 个放在自己的队列里；一个很慢的元素会卡住它后面排队的所有元素，其他 rail 做完了只能闲着
+ * 这里每个 rail 也有自己的队列，但是 rail 自己的队列空了之后，会从排队最长的 rail 的队列里偷一个过来处理；
+ * 分发元素时如果目标 rail 正在忙，还会叫醒一个空闲的 rail 来偷
+ * 用法：flux.as(f -> WorkStealingParallelFlux.from(f, 10, scheduler)).map(...).sequential()
+ * 需要同一个 key 的元素按顺序处理时用 {@link #keyed}：按 key 的哈希分配 rail，不窃取，同一个 key 总在同一个 rail 上
+ * 每个 rail 处理了多少个元素、偷了多少个、忙的时间占比见 {@link #railStats()}，多次订阅时是累计的
+ *
+ * @param <T> 元素类型
+ */
+public final class WorkStealingParallelFlux<T> extends ParallelFlux<T> {
+
+    private final Publisher<? extends T> source;
+
+    private final int parallelism;
+
+    private final Scheduler scheduler;
+
+    private final int prefetch;
+
+    @Nullable
+    private final Function<? super T, ?> keyExtractor;
+
+    private final AtomicLongArray processed;
+
+    private final AtomicLongArray stolen;
+
+    private final AtomicLongArray busyNanos;
+
+    private volatile long startNanos;
+
+    private WorkStealingParallelFlux(Publisher<? extends T> source, int parallelism, Scheduler scheduler, int prefetch,
+                                     @Nullable Function<? super T, ?> keyExtractor) {
+        if (parallelism < 1 || prefetch < 1) {
+            throw new IllegalArgumentException("parallelism and prefetch must be positive");
+        }
+        this.source = source;
+        this.parallelism = parallelism;
+        this.scheduler = scheduler;
+        this.prefetch = prefetch;
+        this.keyExtractor = keyExtractor;
+        this.processed = new AtomicLongArray(parallelism);
+        this.stolen = new AtomicLongArray(parallelism);
+        this.busyNanos = new AtomicLongArray(parallelism);
+    }
+
+    /**
+     * @param prefetch 每个 rail 从上游预取多少个元素，总共预取 parallelism * prefetch 个；慢任务多的时候取小一点，排队的少，窃取的机会多
+     */
+    public static <T> WorkStealingParallelFlux<T> from(Publisher<? extends T> source, int parallelism, Scheduler scheduler, int prefetch) {
+        return new WorkStealingParallelFlux<>(source, parallelism, scheduler, prefetch, null);
+    }
+
+    public static <T> WorkStealingParallelFlux<T> from(Publisher<? extends T> source, int parallelism, Scheduler scheduler) {
+        return from(source, parallelism, scheduler, 16);
+    }
+
+    /**
+     * 按 key 的哈希分配 rail，同一个 key 的元素按上游的顺序在同一个 rail 上处理；不会窃取，所以热点 key 还是会卡住它的 rail
+     */
+    public static <T> WorkStealingParallelFlux<T> keyed(Publisher<? extends T> source, int parallelism, Scheduler scheduler,
+                                                        int prefetch, Function<? super T, ?> keyExtractor) {
+        return new WorkStealingParallelFlux<>(source, parallelism, scheduler, prefetch, keyExtractor);
+    }
+
+    @Override
+    public int parallelism() {
+        return parallelism;
+    }
+
+    @Override
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    @Override
+    public void subscribe(CoreSubscriber<? super T>[] subscribers) {
+        if (!validate(subscribers)) {
+            return;
+        }
+        if (startNanos == 0L) {
+            startNanos = System.nanoTime();
+        }
+        source.subscribe(new Dispatcher(subscribers));
+    }
+
+    /**
+     * 每个 rail 的统计
+     */
+    public List<RailStats> railStats() {
+        long elapsed = startNanos == 0L ? 0L : System.nanoTime() - startNanos;
+        List<RailStats> stats = new ArrayList<>(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            long busy = busyNanos.get(i);
+            stats.add(new RailStats(i, processed.get(i), stolen.get(i), elapsed == 0L ? 0 : Math.min(1, (double) busy / elapsed)));
+        }
+        return stats;
+    }
+
+    /**
+     * @param processed   这个 rail 处理的元素数，包括偷来的
+     * @param stolen      从其他 rail 偷来的元素数
+     * @param utilisation 这个 rail 在下游 onNext 中的时间占从第一次订阅到现在的比例
+     */
+    public record RailStats(int rail, long processed, long stolen, double utilisation) {
+    }
+
+    final class Dispatcher implements CoreSubscriber<T> {
+
+        final CoreSubscriber<? super T>[] subscribers;
+
+        final Rail[] rails;
+
+        /**
+         * 所有 rail 的队列中还没有被取走的元素数
+         */
+        final AtomicInteger pending = new AtomicInteger();
+
+        /**
+         * 被取走了、还没有向上游补充请求的元素数
+         */
+        final AtomicInteger consumed = new AtomicInteger();
+
+        final AtomicInteger cancelledRails = new AtomicInteger();
+
+        final int limit;
+
+        Subscription upstream;
+
+        int next;
+
+        volatile boolean done;
+
+        volatile Throwable error;
+
+        @SuppressWarnings("unchecked")
+        Dispatcher(CoreSubscriber<? super T>[] subscribers) {
+            this.subscribers = subscribers;
+            this.rails = new WorkStealingParallelFlux.Rail[parallelism];
+            for (int i = 0; i < parallelism; i++) {
+                rails[i] = new Rail(i, this);
+            }
+            int total = prefetch * parallelism;
+            this.limit = total - (total >> 2);
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            if (Operators.validate(upstream, s)) {
+                upstream = s;
+                for (int i = 0; i < parallelism; i++) {
+                    subscribers[i].onSubscribe(rails[i]);
+                }
+                s.request((long) prefetch * parallelism);
+            }
+        }
+
+        @Override
+        public void onNext(T item) {
+            int index;
+            if (keyExtractor != null) {
+                int h = keyExtractor.apply(item).hashCode();
+                index = Math.floorMod(h ^ (h >>> 16), parallelism);
+            } else {
+                index = next;
+                next = index + 1 == parallelism ? 0 : index + 1;
+            }
+            Rail rail = rails[index];
+            if (rail.cancelled) {
+                //只有部分 rail 被取消时才会走到这里，分给它的元素直接丢弃
+                Operators.onDiscard(item, subscribers[index].currentContext());
+                return;
+            }
+            pending.incrementAndGet();
+            rail.offer(item);
+            boolean busy = !rail.schedule();
+            if (busy && keyExtractor == null) {
+                //目标 rail 正在处理别的元素，叫醒一个空闲的 rail 来偷
+                for (Rail other : rails) {
+                    if (other.wip.get() == 0 && other.requested.get() > 0 && other.schedule()) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (done) {
+                Operators.onErrorDropped(t, subscribers[0].currentContext());
+                return;
+            }
+            error = t;
+            done = true;
+            wakeAll();
+        }
+
+        @Override
+        public void onComplete() {
+            if (done) {
+                return;
+            }
+            done = true;
+            wakeAll();
+        }
+
+        void wakeAll() {
+            for (Rail rail : rails) {
+                rail.schedule();
+            }
+        }
+
+        /**
+         * 从自己的队列取，取不到再从排队最长的 rail 偷
+         */
+        @Nullable
+        T take(Rail self) {
+            T item = self.poll();
+            if (item == null && keyExtractor == null) {
+                Rail victim = null;
+                int max = 0;
+                for (Rail rail : rails) {
+                    int size = rail.size;
+                    if (rail != self && size > max) {
+                        max = size;
+                        victim = rail;
+                    }
+                }
+                if (victim != null) {
+                    item = victim.poll();
+                    if (item != null) {
+                        stolen.incrementAndGet(self.index);
+                    }
+                }
+            }
+            if (item != null) {
+                if (pending.decrementAndGet() == 0 && done) {
+                    //最后一个元素被取走了，其他 rail 可能已经检查过、在等着，叫醒它们结束
+                    wakeAll();
+                }
+                int c = consumed.incrementAndGet();
+                if (c >= limit && consumed.compareAndSet(c, 0)) {
+                    upstream.request(c);
+                }
+            }
+            return item;
+        }
+
+        void cancelRail() {
+            if (cancelledRails.incrementAndGet() == parallelism) {
+                upstream.cancel();
+            }
+        }
+    }
+
+    final class Rail implements Subscription {
+
+        final int index;
+
+        final Dispatcher parent;
+
+        /**
+         * 由自己的锁保护：分发线程放进来，自己和窃取的 rail 取出去
+         */
+        final ArrayDeque<T> queue = new ArrayDeque<>();
+
+        /**
+         * 队列长度，窃取时不加锁地挑选最长的队列
+         */
+        volatile int size;
+
+        final AtomicLong requested = new AtomicLong();
+
+        final AtomicInteger wip = new AtomicInteger();
+
+        final Scheduler.Worker worker;
+
+        volatile boolean cancelled;
+
+        boolean terminated;
+
+        Rail(int index, Dispatcher parent) {
+            this.index = index;
+            this.parent = parent;
+            this.worker = scheduler.createWorker();
+        }
+
+        void offer(T item) {
+            synchronized (queue) {
+                queue.offerLast(item);
+                size = queue.size();
+            }
+        }
+
+        @Nullable
+        T poll() {
+            synchronized (queue) {
+                T item = queue.pollFirst();
+                if (item != null) {
+                    size = queue.size();
+                }
+                return item;
+            }
+        }
+
+        /**
+         * @return 这次调用调度了 drain 返回 true；drain 已经在运行返回 false
+         */
+        boolean schedule() {
+            if (wip.getAndIncrement() == 0) {
+                try {
+                    worker.schedule(this::drain);
+                } catch (RejectedExecutionException e) {
+                    //rail 已经结束或者被取消，worker 已经释放了
+                }
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void request(long n) {
+            if (Operators.validate(n)) {
+                long r;
+                long next;
+                do {
+                    r = requested.get();
+                    next = Operators.addCap(r, n);
+                } while (!requested.compareAndSet(r, next));
+                schedule();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                worker.dispose();
+                int dropped;
+                synchronized (queue) {
+                    dropped = queue.size();
+                    queue.clear();
+                    size = 0;
+                }
+                //丢掉的元素不再算在 pending 里，否则其他 rail 永远等不到 pending 变成 0
+                if (dropped > 0 && parent.pending.addAndGet(-dropped) == 0 && parent.done) {
+                    parent.wakeAll();
+                }
+                parent.cancelRail();
+            }
+        }
+
+        void drain() {
+            CoreSubscriber<? super T> actual = parent.subscribers[index];
+            int missed = 1;
+            for (; ; ) {
+                if (cancelled || terminated) {
+                    return;
+                }
+                long r = requested.get();
+                long e = 0L;
+                while (e != r) {
+                    if (cancelled) {
+                        return;
+                    }
+                    Throwable error = parent.error;
+                    if (error != null) {
+                        terminate(actual, error);
+                        return;
+                    }
+                    T item = parent.take(this);
+                    if (item == null) {
+                        break;
+                    }
+                    long start = System.nanoTime();
+                    actual.onNext(item);
+                    busyNanos.addAndGet(index, System.nanoTime() - start);
+                    processed.incrementAndGet(index);
+                    e++;
+                }
+                if (parent.done && (parent.error != null || parent.pending.get() == 0)) {
+                    terminate(actual, parent.error);
+                    return;
+                }
+                if (e != 0L && r != Long.MAX_VALUE) {
+                    requested.addAndGet(-e);
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        void terminate(CoreSubscriber<? super T> actual, @Nullable Throwable error) {
+            terminated = true;
+            synchronized (queue) {
+                queue.clear();
+                size = 0;
+            }
+            worker.dispose();
+            if (error != null) {
+                actual.onError(error);
+            } else {
+                actual.onComplete();
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.hs.reactive.reactivestream.webflux;
+
+import com.hs.reactive.reactivestream.flow.MpscArrayRing;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步的请求日志
+ * 在 netty 的事件循环线程中直接 System.out.println 会阻塞 IO 线程（控制台输出是加锁的同步写）
+ * 这里事件循环线程只把要打印的对象放进无锁队列，字符串拼接和打印都在后台线程中做，队列满了就丢弃并计数，永远不会阻塞
+ */
+public class AsyncRequestLog {
+
+    private final MpscArrayRing<Object> queue;
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final String prefix;
+
+    public AsyncRequestLog(String prefix, int capacity) {
+        this.prefix = prefix;
+        this.queue = new MpscArrayRing<>(capacity);
+        Thread drainer = new Thread(this::drain, "async-request-log");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * 记录一条日志，不阻塞
+     *
+     * @return 队列满了返回 false
+     */
+    public boolean log(Object event) {
+        if (queue.offer(event)) {
+            return true;
+        }
+        dropped.increment();
+        return false;
+    }
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    private void drain() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Object event = queue.poll();
+            if (event == null) {
+                //没有日志就睡 1ms，生产者不需要唤醒后台线程
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                continue;
+            }
+            System.out.println(prefix + event);
+        }
+    }
+}
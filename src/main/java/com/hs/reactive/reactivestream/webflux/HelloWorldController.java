@@ -1,28 +1,54 @@
 package com.hs.reactive.reactivestream.webflux;
 
 import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RestController;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 
 @RestController
 public class HelloWorldController {
 
+    private final SseHub<Long> eventHub;
+
+    public HelloWorldController(SseHub<Long> eventHub) {
+        this.eventHub = eventHub;
+    }
+
     @GetMapping("test")
     public Mono<String> hello(String test) {
         return Mono.just("xixi" + test);
     }
 
+    //返回 R 的接口由 REncoder 编码，{"code":0,"msg":"success","data": 这段是缓存好的字节
+    @GetMapping("r")
+    public Mono<ImmutableR<String>> r(String test) {
+        return Mono.just(ImmutableR.ok("xixi" + test));
+    }
+
     //MediaType.TEXT_EVENT_STREAM_VALUE 标记为一个数据流，通知浏览器要一直接收
+    //每个客户端都会新建一个定时器和一条独立的序列，客户端多了开销很大
+//    @GetMapping(value = "event", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+//    public Flux<Integer> eventTest() {
+//        return Flux.range(1, 20)
+//                .delayElements(Duration.ofSeconds(2));
+//    }
+
+    //改为所有客户端共享同一个上游，断线重连时浏览器会带上 Last-Event-ID，从重放环中补发错过的事件
     @GetMapping(value = "event", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public Flux<Integer> eventTest() {
-        return Flux.range(1, 20)
-                .delayElements(Duration.ofSeconds(2));
+    public Flux<ServerSentEvent<Long>> eventTest(@RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId) {
+        return eventHub.connect(lastEventId);
+    }
+
+    //当前连接的客户端数、丢弃的事件数
+    @GetMapping("event/metrics")
+    public Mono<ImmutableR<SseHub.Metrics>> eventMetrics() {
+        return Mono.fromSupplier(() -> ImmutableR.ok(eventHub.metrics()));
     }
 
 }
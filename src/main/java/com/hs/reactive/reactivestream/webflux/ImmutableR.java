@@ -0,0 +1,21 @@
+package com.hs.reactive.reactivestream.webflux;
+
+/**
+ * 不可变的响应包装，字段都是 final，可以放心地共享和缓存
+ * 和 {@link R} 的 JSON 格式一样，都由 {@link REncoder} 编码
+ *
+ * @param data 数据
+ * @param code 状态码，0 表示成功
+ * @param msg  提示信息
+ */
+public record ImmutableR<T>(T data, int code, String msg) {
+
+    /**
+     * 没有数据的成功响应，全局共享一个实例
+     */
+    public static final ImmutableR<Void> SUCCESS = new ImmutableR<>(null, 0, "success");
+
+    public static <T> ImmutableR<T> ok(T data) {
+        return new ImmutableR<>(data, 0, "success");
+    }
+}
@@ -0,0 +1,21 @@
+package com.hs.reactive.reactivestream.webflux;
+
+import com.hs.reactive.reactivestream.reactor.PipelineMetrics;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/**
+ * 导出 {@link PipelineMetrics#global()} 中各条流的统计
+ */
+@RestController
+public class PipelineMetricsController {
+
+    //onNextPerSecond 是和上一次访问这个接口之间的平均速率
+    @GetMapping("metrics/pipelines")
+    public Mono<ImmutableR<List<PipelineMetrics.Snapshot>>> pipelines() {
+        return Mono.fromSupplier(() -> ImmutableR.ok(PipelineMetrics.global().snapshot()));
+    }
+}
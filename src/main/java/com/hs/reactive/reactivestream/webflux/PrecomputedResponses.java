@@ -0,0 +1,78 @@
+package com.hs.reactive.reactivestream.webflux;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 预先计算好的静态响应
+ * 启动时把响应内容写进池化的堆外内存（只读、不会被释放），每个请求只是创建一个共享同一块内存的 duplicate，
+ * 不会每次都 getBytes() 再 wrap 成新的堆内 buffer，写到 socket 时也不需要从堆内拷贝到堆外
+ */
+public class PrecomputedResponses {
+
+    private final Map<String, Payload> payloads = new HashMap<>();
+
+    private Payload fallback;
+
+    /**
+     * 注册某个路径的响应，需要在服务启动前注册完
+     */
+    public PrecomputedResponses register(String path, MediaType contentType, String body) {
+        payloads.put(path, new Payload(toSharedBuffer(body), contentType));
+        return this;
+    }
+
+    /**
+     * 没有注册的路径返回的响应
+     */
+    public PrecomputedResponses fallback(MediaType contentType, String body) {
+        fallback = new Payload(toSharedBuffer(body), contentType);
+        return this;
+    }
+
+    private static ByteBuf toSharedBuffer(String body) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ByteBuf direct = PooledByteBufAllocator.DEFAULT.directBuffer(bytes.length).writeBytes(bytes);
+        //unreleasable：netty 写完之后的 release 不会真的释放这块内存
+        return Unpooled.unreleasableBuffer(direct).asReadOnly();
+    }
+
+    public Mono<Void> write(ServerHttpRequest request, ServerHttpResponse response) {
+        Payload payload = payloads.get(request.getPath().value());
+        if (payload == null) {
+            payload = fallback;
+        }
+        if (payload == null) {
+            response.setStatusCode(HttpStatus.NOT_FOUND);
+            return response.setComplete();
+        }
+        response.getHeaders().setContentType(payload.contentType);
+        response.getHeaders().setContentLength(payload.body.readableBytes());
+        DataBufferFactory bufferFactory = response.bufferFactory();
+        DataBuffer buffer;
+        if (bufferFactory instanceof NettyDataBufferFactory nettyFactory) {
+            //共享底层内存，只创建一个新的读写下标
+            buffer = nettyFactory.wrap(payload.body.retainedDuplicate());
+        } else {
+            buffer = bufferFactory.wrap(ByteBufUtil.getBytes(payload.body));
+        }
+        return response.writeWith(Mono.just(buffer));
+    }
+
+    record Payload(ByteBuf body, MediaType contentType) {
+    }
+}
@@ -0,0 +1,154 @@
+package com.hs.reactive.reactivestream.webflux;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.reactivestreams.Publisher;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.AbstractEncoder;
+import org.springframework.core.codec.EncodingException;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.MediaType;
+import org.springframework.util.MimeType;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link R} 和 {@link ImmutableR} 的 JSON 编码器
+ * 默认的 Jackson 编码器每次都要反射 R 的 code/msg/data 三个属性，而大部分响应都是 code=0,msg=success
+ * 这里把 {"code":0,"msg":"success","data": 这段前缀和结尾的 } 提前编码成字节缓存起来，
+ * 每次只用 Jackson 序列化 data，并且直接写进响应的 DataBuffer，中间不会生成 String
+ */
+public class REncoder extends AbstractEncoder<Object> {
+
+    private static final byte[] SUFFIX = "}".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] ARRAY_START = "[".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] ARRAY_SEPARATOR = ",".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] ARRAY_END = "]".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * 缓存的前缀最多这么多种，超过的不再缓存，避免 msg 是动态拼接的时候缓存无限增长
+     */
+    private static final int MAX_CACHED_PREFIXES = 256;
+
+    private static final int INITIAL_BUFFER_SIZE = 256;
+
+    private final ObjectMapper objectMapper;
+
+    private final ObjectWriter dataWriter;
+
+    private final byte[] okPrefix;
+
+    private final Map<PrefixKey, byte[]> prefixes = new ConcurrentHashMap<>();
+
+    public REncoder(ObjectMapper objectMapper) {
+        super(MediaType.APPLICATION_JSON);
+        this.objectMapper = objectMapper;
+        this.dataWriter = objectMapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        this.okPrefix = buildPrefix(0, "success");
+    }
+
+    @Override
+    public boolean canEncode(ResolvableType elementType, MimeType mimeType) {
+        Class<?> clazz = elementType.toClass();
+        return (R.class.isAssignableFrom(clazz) || ImmutableR.class.isAssignableFrom(clazz)) && super.canEncode(elementType, mimeType);
+    }
+
+    @Override
+    public Flux<DataBuffer> encode(Publisher<?> inputStream, DataBufferFactory bufferFactory, ResolvableType elementType,
+                                   MimeType mimeType, Map<String, Object> hints) {
+        if (inputStream instanceof Mono<?> mono) {
+            return mono.map(value -> encodeValue(value, bufferFactory, elementType, mimeType, hints)).flux();
+        }
+        //多个元素的时候和 Jackson 一样编码成 JSON 数组
+        return Flux.from(inputStream)
+                .index()
+                .map(indexed -> encode(indexed.getT2(), bufferFactory, indexed.getT1() == 0 ? ARRAY_START : ARRAY_SEPARATOR))
+                .switchIfEmpty(Mono.fromSupplier(() -> bufferFactory.wrap(ARRAY_START)))
+                .concatWith(Mono.fromSupplier(() -> bufferFactory.wrap(ARRAY_END)));
+    }
+
+    @Override
+    public DataBuffer encodeValue(Object value, DataBufferFactory bufferFactory, ResolvableType valueType,
+                                  MimeType mimeType, Map<String, Object> hints) {
+        return encode(value, bufferFactory, null);
+    }
+
+    /**
+     * @param leading 写在前缀之前的字节，编码数组时是 [ 或者 ,
+     */
+    private DataBuffer encode(Object value, DataBufferFactory bufferFactory, byte[] leading) {
+        Object data;
+        byte[] prefix;
+        if (value instanceof R<?> r) {
+            data = r.getData();
+            prefix = prefix(r.getCode(), r.getMsg());
+        } else if (value instanceof ImmutableR<?> r) {
+            data = r.data();
+            prefix = prefix(r.code(), r.msg());
+        } else {
+            throw new EncodingException("Unsupported value: " + value);
+        }
+        DataBuffer buffer = bufferFactory.allocateBuffer(INITIAL_BUFFER_SIZE);
+        boolean release = true;
+        try {
+            if (leading != null) {
+                buffer.write(leading);
+            }
+            buffer.write(prefix);
+            OutputStream outputStream = buffer.asOutputStream();
+            dataWriter.writeValue(outputStream, data);
+            buffer.write(SUFFIX);
+            release = false;
+            return buffer;
+        } catch (IOException ex) {
+            throw new EncodingException("JSON encoding error: " + ex.getMessage(), ex);
+        } finally {
+            if (release) {
+                DataBufferUtils.release(buffer);
+            }
+        }
+    }
+
+    private byte[] prefix(int code, String msg) {
+        if (code == 0 && "success".equals(msg)) {
+            return okPrefix;
+        }
+        PrefixKey key = new PrefixKey(code, msg);
+        byte[] cached = prefixes.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        byte[] prefix = buildPrefix(code, msg);
+        if (prefixes.size() < MAX_CACHED_PREFIXES) {
+            prefixes.putIfAbsent(key, prefix);
+        }
+        return prefix;
+    }
+
+    /**
+     * {"code":0,"msg":"success","data":
+     */
+    private byte[] buildPrefix(int code, String msg) {
+        try {
+            String prefix = "{\"code\":" + code + ",\"msg\":" + objectMapper.writeValueAsString(msg) + ",\"data\":";
+            return prefix.getBytes(StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            throw new EncodingException("JSON encoding error: " + ex.getMessage(), ex);
+        }
+    }
+
+    private record PrefixKey(int code, String msg) {
+    }
+}
@@ -0,0 +1,231 @@
+package com.hs.reactive.reactivestream.webflux;
+
+import org.reactivestreams.Publisher;
+import org.springframework.http.codec.ServerSentEvent;
+import reactor.core.Disposable;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SSE 广播中心
+ * 原来的 /event 每个客户端都会新建一个 Flux.range(1,20).delayElements(2s)，N 个客户端就有 N 个定时器和 N 条独立的序列
+ * 这里所有客户端共享同一个上游：
+ * 1、上游的每个元素分配一个递增的 id，写入重放环，然后通过 Sinks.many().multicast().directBestEffort() 广播
+ * 2、每个客户端有自己的有界缓冲区，客户端太慢缓冲区满了就丢掉最旧的事件并计数，不会阻塞广播，也不会影响其他客户端
+ * 3、所有客户端共享一个心跳定时器，心跳是 SSE 的注释行，防止空闲连接被代理断开
+ * 4、浏览器断线重连会带上 Last-Event-ID，从重放环中补发之后的事件（只保留最近 replayCapacity 个）；
+ * Last-Event-ID 比最新的 id 还大（服务端重启过，id 从 1 重新开始），或者比重放环中最旧的还旧（中间的事件补不上了），
+ * 先发一个 reset 事件，再从最新的位置或者重放环的开头接着发
+ *
+ * @param <T> 事件数据类型
+ */
+public class SseHub<T> implements Disposable {
+
+    private final Sinks.Many<Event<T>> sink = Sinks.many().multicast().directBestEffort();
+
+    private final AtomicReferenceArray<Event<T>> replay;
+
+    private final int mask;
+
+    private final int clientBuffer;
+
+    private final Flux<ServerSentEvent<T>> heartbeats;
+
+    /**
+     * 最后一个事件的 id，在写入重放环之后更新
+     */
+    private volatile long lastId;
+
+    private final AtomicInteger connected = new AtomicInteger();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder emitted = new LongAdder();
+
+    private volatile Disposable upstream;
+
+    private volatile boolean disposed;
+
+    /**
+     * @param replayCapacity    重放环的大小，向上取 2 的幂
+     * @param clientBuffer      每个客户端最多缓冲的事件数
+     * @param heartbeatInterval 心跳间隔
+     */
+    public SseHub(int replayCapacity, int clientBuffer, Duration heartbeatInterval) {
+        if (replayCapacity < 1 || clientBuffer < 1) {
+            throw new IllegalArgumentException("replayCapacity and clientBuffer must be positive");
+        }
+        int capacity = 1 << (32 - Integer.numberOfLeadingZeros(replayCapacity - 1));
+        this.replay = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.clientBuffer = clientBuffer;
+        this.heartbeats = Flux.interval(heartbeatInterval)
+                .map(i -> ServerSentEvent.<T>builder().comment("heartbeat").build())
+                .share();
+    }
+
+    /**
+     * 订阅上游，上游的每个元素都广播给所有客户端
+     */
+    public SseHub<T> attach(Publisher<T> source) {
+        Disposable previous = upstream;
+        upstream = Flux.from(source).subscribe(this::emit);
+        if (previous != null) {
+            previous.dispose();
+        }
+        return this;
+    }
+
+    /**
+     * 广播一个事件，可以被多个线程调用
+     * 加锁保证 id 的分配、写入重放环和发送的顺序一致，Sinks 也不会因为并发发送而返回 FAIL_NON_SERIALIZED
+     */
+    public synchronized void emit(T data) {
+        long id = lastId + 1;
+        Event<T> event = new Event<>(id, data);
+        replay.set((int) id & mask, event);
+        lastId = id;
+        emitted.increment();
+        //没有客户端的时候 directBestEffort 直接丢弃，事件仍然在重放环中
+        sink.tryEmitNext(event);
+    }
+
+    /**
+     * 新客户端连接
+     *
+     * @param lastEventId 浏览器重连时的 Last-Event-ID，第一次连接是 null
+     */
+    public Flux<ServerSentEvent<T>> connect(Long lastEventId) {
+        Flux<ServerSentEvent<T>> events = Flux.defer(() -> {
+            long last = lastId;
+            //重放环中最旧的事件之前的位置
+            long oldest = Math.max(0, last - mask - 1);
+            long start;
+            boolean reset = false;
+            if (lastEventId == null) {
+                start = last;
+            } else if (lastEventId > last) {
+                start = last;
+                reset = true;
+            } else if (lastEventId < oldest) {
+                start = oldest;
+                reset = true;
+            } else {
+                start = lastEventId;
+            }
+            Cursor cursor = new Cursor(start);
+            //先补发重放环中的事件，再接上实时事件
+            //补发期间产生的事件，在第一个实时事件到达时从重放环中补上，所以不会有缺口也不会重复
+            Flux<Event<T>> catchUp = Flux.defer(() -> replayAfter(cursor.position, lastId));
+            Flux<Event<T>> live = sink.asFlux()
+                    .onBackpressureBuffer(clientBuffer, event -> dropped.increment(), BufferOverflowStrategy.DROP_OLDEST)
+                    .concatMap(event -> {
+                        if (event.id() <= cursor.position) {
+                            return Flux.empty();
+                        }
+                        if (cursor.live) {
+                            return Flux.just(event);
+                        }
+                        cursor.live = true;
+                        return replayAfter(cursor.position, event.id() - 1).concatWith(Flux.just(event));
+                    }, 0);
+            Flux<ServerSentEvent<T>> stream = catchUp.concatWith(live)
+                    .doOnNext(event -> cursor.position = event.id())
+                    .map(SseHub::toServerSentEvent);
+            return reset ? Flux.just(SseHub.<T>resetEvent(start)).concatWith(stream) : stream;
+        });
+        //merge 的预取设为 1，否则 merge 内部还会为每个客户端再缓冲 32 个事件，clientBuffer 就不是上限了
+        //心跳是无限的，sink 结束（dispose）时跟着结束，否则连接一直不会关闭
+        Flux<ServerSentEvent<T>> beats = heartbeats.onBackpressureLatest()
+                .takeUntilOther(sink.asFlux().ignoreElements());
+        return Flux.merge(1, events, beats)
+                .doOnSubscribe(subscription -> connected.incrementAndGet())
+                .doFinally(signal -> connected.decrementAndGet());
+    }
+
+    /**
+     * 重放环中 id 在 (after, to] 之间的事件，已经被覆盖的跳过
+     */
+    private Flux<Event<T>> replayAfter(long after, long to) {
+        long from = Math.max(after + 1, to - mask);
+        if (from > to) {
+            return Flux.empty();
+        }
+        return Flux.range(0, (int) (to - from + 1))
+                .mapNotNull(offset -> {
+                    long id = from + offset;
+                    Event<T> event = replay.get((int) id & mask);
+                    return event != null && event.id() == id ? event : null;
+                });
+    }
+
+    private static <T> ServerSentEvent<T> toServerSentEvent(Event<T> event) {
+        return ServerSentEvent.builder(event.data())
+                .id(Long.toString(event.id()))
+                .build();
+    }
+
+    /**
+     * 客户端带来的 Last-Event-ID 已经接不上了，告诉浏览器重新加载状态；id 改成新的位置，之后再断线重连就带新的 id
+     */
+    private static <T> ServerSentEvent<T> resetEvent(long position) {
+        return ServerSentEvent.<T>builder()
+                .event("reset")
+                .id(Long.toString(position))
+                .build();
+    }
+
+    public Metrics metrics() {
+        return new Metrics(connected.get(), emitted.sum(), dropped.sum(), lastId);
+    }
+
+    @Override
+    public void dispose() {
+        disposed = true;
+        Disposable current = upstream;
+        if (current != null) {
+            current.dispose();
+        }
+        sink.tryEmitComplete();
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return disposed;
+    }
+
+    /**
+     * 广播的事件
+     */
+    record Event<T>(long id, T data) {
+    }
+
+    /**
+     * @param connectedClients 当前连接的客户端数
+     * @param emittedEvents    广播的事件数
+     * @param droppedEvents    因为客户端太慢被丢弃的事件数（所有客户端累计）
+     * @param lastEventId      最后一个事件的 id
+     */
+    public record Metrics(int connectedClients, long emittedEvents, long droppedEvents, long lastEventId) {
+    }
+
+    /**
+     * 每个客户端已经发出的位置，只在这个客户端的序列中访问，不需要同步
+     */
+    private static final class Cursor {
+
+        long position;
+
+        boolean live;
+
+        Cursor(long position) {
+            this.position = position;
+        }
+    }
+}
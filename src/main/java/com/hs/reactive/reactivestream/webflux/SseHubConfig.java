@@ -0,0 +1,24 @@
+package com.hs.reactive.reactivestream.webflux;
+
+import com.hs.reactive.reactivestream.reactor.PipelineMetrics;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+
+/**
+ * /event 的广播中心：所有客户端共享同一个每 2 秒递增一次的计数器
+ */
+@Configuration(proxyBeanMethods = false)
+public class SseHubConfig {
+
+    @Bean(destroyMethod = "dispose")
+    public SseHub<Long> eventHub() {
+        //重放最近 1024 个事件，每个客户端最多缓冲 32 个事件，15 秒一次心跳
+        return new SseHub<Long>(1024, 32, Duration.ofSeconds(15))
+                .attach(Flux.interval(Duration.ofSeconds(2)).map(i -> i + 1)
+                        //在 /metrics/pipelines 中可以看到这个上游的统计
+                        .transformDeferred(PipelineMetrics.global().flux("sse-source")));
+    }
+}
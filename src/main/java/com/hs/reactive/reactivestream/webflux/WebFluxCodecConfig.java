@@ -0,0 +1,19 @@
+package com.hs.reactive.reactivestream.webflux;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.boot.web.codec.CodecCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 注册 {@link REncoder}
+ * customCodecs 中的编码器排在默认的 Jackson 编码器前面，返回 R/ImmutableR 的接口会优先用 REncoder
+ */
+@Configuration(proxyBeanMethods = false)
+public class WebFluxCodecConfig {
+
+    @Bean
+    public CodecCustomizer rEncoderCustomizer(ObjectMapper objectMapper) {
+        return configurer -> configurer.customCodecs().registerWithDefaultConfig(new REncoder(objectMapper));
+    }
+}
@@ -1,11 +1,11 @@
 package com.hs.reactive.reactivestream.webflux;
 
-import org.springframework.core.io.buffer.DataBuffer;
-import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.http.MediaType;
 import org.springframework.http.server.reactive.HttpHandler;
 import org.springframework.http.server.reactive.ReactorHttpHandlerAdapter;
-import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
 import reactor.netty.http.server.HttpServer;
+import reactor.netty.resources.LoopResources;
 
 import java.io.IOException;
 
@@ -15,29 +15,53 @@ import java.io.IOException;
  */
 public class WebFluxServer {
 
-    public static void main(String[] args) throws IOException {
-        //处理器
-        HttpHandler httpHandler = ((request, response) -> {
-            System.out.println("收到请求"+request.getURI());
-            //通过 response 中的 factory 获取dataBuffer,并往Mono中写入数据、
-            DataBufferFactory dataBufferFactory = response.bufferFactory();
-            DataBuffer wrap = dataBufferFactory.wrap("this is my response".getBytes());
-            //往 response 中写数据
-            return response.writeWith(Mono.just(wrap));
-        });
-
-        //2.定义一个请求处理适配器,并将处理器传入
-        ReactorHttpHandlerAdapter adapter = new ReactorHttpHandlerAdapter(httpHandler);
+    /**
+     * 请求日志异步打印，不阻塞事件循环线程
+     */
+    static final AsyncRequestLog REQUEST_LOG = new AsyncRequestLog("收到请求", 8192);
+
+    /**
+     * 启动时就准备好的响应内容
+     */
+    static final PrecomputedResponses RESPONSES = new PrecomputedResponses()
+            .fallback(MediaType.TEXT_PLAIN, "this is my response");
+
+    /**
+     * 处理器
+     */
+    public static HttpHandler handler() {
+        return (request, response) -> {
+//            System.out.println("收到请求"+request.getURI());
+            REQUEST_LOG.log(request.getURI());
+            //原来的写法：每个请求都 getBytes() 一个新数组，再 wrap 成一个新的 dataBuffer
+//            DataBufferFactory dataBufferFactory = response.bufferFactory();
+//            DataBuffer wrap = dataBufferFactory.wrap("this is my response".getBytes());
+//            return response.writeWith(Mono.just(wrap));
+            //现在：往 response 中写共享的堆外 buffer
+            return RESPONSES.write(request, response);
+        };
+    }
 
-        //3.使用 netty 启动一个服务，监听地址和端口，并绑定处理器
-        HttpServer.create()
-                .host("localhost")
-                .port(8080)
+    /**
+     * 使用 netty 启动一个服务，监听地址和端口，并绑定处理器
+     */
+    public static DisposableServer start(String host, int port, HttpHandler httpHandler, LoopResources loopResources) {
+        //定义一个请求处理适配器,并将处理器传入
+        ReactorHttpHandlerAdapter adapter = new ReactorHttpHandlerAdapter(httpHandler);
+        return HttpServer.create()
+                .host(host)
+                .port(port)
+                .runOn(loopResources)
                 .handle(adapter)
                 .bindNow();
+    }
+
+    public static void main(String[] args) throws IOException {
+        DisposableServer server = start("localhost", 8080, handler(), LoopResources.create("web-flux-server"));
 
         //卡住主线程
         System.in.read();
+        server.disposeNow();
     }
 
 }
@@ -0,0 +1,124 @@
+package com.hs.reactive.reactivestream.flow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FlowDemo 的处理器链：两级 ProcessorTest（继承 SubmissionPublisher，onNext 中再 submit）与 FlowPipeline 融合后的对比
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProcessorChainBenchmark {
+
+    static final int ITEMS = 10_000;
+
+    @Benchmark
+    @OperationsPerInvocation(ITEMS)
+    public long submissionProcessorChain() throws InterruptedException {
+        SubmissionPublisher<String> publisher = new SubmissionPublisher<>();
+        SubmitProcessor first = new SubmitProcessor();
+        SubmitProcessor second = new SubmitProcessor();
+        PublisherBenchmark.CountingSubscriber subscriber = new PublisherBenchmark.CountingSubscriber();
+        publisher.subscribe(first);
+        first.subscribe(second);
+        second.subscribe(countLengths(subscriber));
+        return publish(publisher, subscriber);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ITEMS)
+    public long fusedPipeline() throws InterruptedException {
+        SubmissionPublisher<String> publisher = new SubmissionPublisher<>();
+        PublisherBenchmark.CountingSubscriber subscriber = new PublisherBenchmark.CountingSubscriber();
+        FlowPipeline.from(publisher)
+                .map("first", item -> item + "!")
+                .map("second", item -> item + "!")
+                .subscribe(countLengths(subscriber));
+        return publish(publisher, subscriber);
+    }
+
+    private static long publish(SubmissionPublisher<String> publisher, PublisherBenchmark.CountingSubscriber subscriber) throws InterruptedException {
+        for (int i = 0; i < ITEMS; i++) {
+            publisher.submit("item");
+        }
+        publisher.close();
+        subscriber.done.await();
+        return subscriber.count;
+    }
+
+    private static Flow.Subscriber<String> countLengths(PublisherBenchmark.CountingSubscriber delegate) {
+        return new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                delegate.onSubscribe(subscription);
+            }
+
+            @Override
+            public void onNext(String item) {
+                delegate.onNext(item.length());
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                delegate.onError(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                delegate.onComplete();
+            }
+        };
+    }
+
+    /**
+     * 和 FlowDemo.ProcessorTest 一样的写法，去掉了打印
+     */
+    static final class SubmitProcessor extends SubmissionPublisher<String> implements Flow.Processor<String, String> {
+        private Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(String item) {
+            submit(item + "!");
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            closeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            close();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ProcessorChainBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,122 @@
+package com.hs.reactive.reactivestream.flow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * SubmissionPublisher 和 MpscRingPublisher 的吞吐量对比
+ * producers 个线程同时 submit，一个订阅者消费，每次调用发布 ITEMS 个元素
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PublisherBenchmark {
+
+    static final int ITEMS = 100_000;
+
+    @Param({"1", "4"})
+    int producers;
+
+    ExecutorService producerPool;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        producerPool = Executors.newFixedThreadPool(producers);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        producerPool.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ITEMS)
+    public long submissionPublisher() throws Exception {
+        SubmissionPublisher<Integer> publisher = new SubmissionPublisher<>();
+        return run(publisher, publisher::submit, publisher::close);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ITEMS)
+    public long mpscRingPublisher() throws Exception {
+        MpscRingPublisher<Integer> publisher = new MpscRingPublisher<>();
+        return run(publisher, publisher::submit, publisher::close);
+    }
+
+    private long run(Flow.Publisher<Integer> publisher, Consumer<Integer> submit, Runnable close) throws Exception {
+        CountingSubscriber subscriber = new CountingSubscriber();
+        publisher.subscribe(subscriber);
+        int perProducer = ITEMS / producers;
+        Future<?>[] futures = new Future<?>[producers];
+        for (int p = 0; p < producers; p++) {
+            futures[p] = producerPool.submit(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    submit.accept(i);
+                }
+            });
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        close.run();
+        subscriber.done.await();
+        return subscriber.count;
+    }
+
+    static final class CountingSubscriber implements Flow.Subscriber<Integer> {
+        final CountDownLatch done = new CountDownLatch(1);
+
+        long count;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(Integer item) {
+            count++;
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(PublisherBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,92 @@
+package com.hs.reactive.reactivestream.r2dbc;
+
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按列名取值（R2DbcDemo 的写法）和 IndexedRowMapper 按下标取值的对比，以及流式导出
+ * 每次调用扫描 ROWS 行，gc profiler 的 gc.alloc.rate.norm 可以看到每次扫描分配的字节数
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RowMapperBenchmark {
+
+    static final int ROWS = 10_000;
+
+    ConnectionFactory connectionFactory;
+
+    UserRepository userRepository;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        connectionFactory = ConnectionFactories.get("r2dbc:h2:mem:///rows;DB_CLOSE_DELAY=-1");
+        Flux.usingWhen(connectionFactory.create(),
+                        connection -> Flux.from(connection.createStatement("create table if not exists system_users(id bigint primary key, nickname varchar(64))").execute())
+                                .flatMap(result -> result.getRowsUpdated())
+                                .thenMany(Flux.from(connection.createStatement("merge into system_users select x, 'user' || x from system_range(1, " + ROWS + ")").execute()))
+                                .flatMap(result -> result.getRowsUpdated()),
+                        Connection::close)
+                .blockLast();
+        userRepository = new UserRepository(UserRepository.createPool(connectionFactory, 1, 2, Duration.ofMinutes(30), Duration.ofSeconds(3)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        userRepository.dispose();
+    }
+
+    @Benchmark
+    public Long nameLookup() {
+        return Flux.usingWhen(connectionFactory.create(),
+                        connection -> Flux.from(connection.createStatement(UserRepository.SELECT_ALL).execute())
+                                .concatMap(result -> result.map(readable -> new User(readable.get("id", Long.class), readable.get("nickname", String.class)))),
+                        Connection::close)
+                .count()
+                .block();
+    }
+
+    @Benchmark
+    public Long indexedMapper() {
+        return Flux.usingWhen(connectionFactory.create(),
+                        connection -> Flux.from(connection.createStatement(UserRepository.SELECT_ALL).execute())
+                                .concatMap(UserRepository.USER_MAPPER::map),
+                        Connection::close)
+                .count()
+                .block();
+    }
+
+    @Benchmark
+    public Long streamPages() {
+        return userRepository.streamPages(500)
+                .count()
+                .block();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(RowMapperBenchmark.class.getSimpleName()).build()).run();
+    }
+}
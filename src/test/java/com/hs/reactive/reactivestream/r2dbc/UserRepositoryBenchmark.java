@@ -0,0 +1,119 @@
+package com.hs.reactive.reactivestream.r2dbc;
+
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.ConnectionFactoryMetadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 用 H2 内存数据库代替 MySQL，对比 R2DbcDemo 原来的 每次查询新建连接 和 UserRepository 的连接池
+ * 结束时打印实际建立的物理连接数，可以看到连接池中的连接被复用了
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserRepositoryBenchmark {
+
+    static final List<Long> IDS = List.of(1L, 117L);
+
+    CountingConnectionFactory connectionFactory;
+
+    UserRepository userRepository;
+
+    final AtomicLong queries = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        connectionFactory = new CountingConnectionFactory(ConnectionFactories.get("r2dbc:h2:mem:///users;DB_CLOSE_DELAY=-1"));
+        Flux.usingWhen(connectionFactory.create(),
+                        connection -> Flux.from(connection.createStatement("create table if not exists system_users(id bigint primary key, nickname varchar(64))").execute())
+                                .flatMap(result -> result.getRowsUpdated())
+                                .thenMany(Flux.range(1, 1000).concatMap(i -> Flux.from(connection.createStatement("merge into system_users values($1, $2)")
+                                        .bind(0, (long) i).bind(1, "user" + i).execute()).flatMap(result -> result.getRowsUpdated()))),
+                        Connection::close)
+                .blockLast();
+        userRepository = new UserRepository(UserRepository.createPool(connectionFactory, 2, 8, Duration.ofMinutes(30), Duration.ofSeconds(3)));
+        userRepository.warmup().block();
+        connectionFactory.created.set(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println();
+        System.out.println("queries=" + queries.get() + ", physical connections opened=" + connectionFactory.created.get()
+                + ", pool=" + userRepository.poolMetrics().map(m -> "allocated " + m.allocatedSize() + ", idle " + m.idleSize()).orElse("n/a"));
+        userRepository.dispose();
+    }
+
+    /**
+     * R2DbcDemo 原来的写法（补上了 close，否则连接会泄漏到内存耗尽）
+     */
+    @Benchmark
+    public User connectionPerQuery() {
+        queries.incrementAndGet();
+        return Flux.usingWhen(connectionFactory.create(),
+                        connection -> Flux.from(connection.createStatement("select * from system_users where id in(1,117)").execute())
+                                .flatMap(result -> result.map(readable -> new User(readable.get("id", Long.class), readable.get("nickname", String.class)))),
+                        Connection::close)
+                .blockLast();
+    }
+
+    @Benchmark
+    public User pooledFindByIds() {
+        queries.incrementAndGet();
+        return userRepository.findByIds(IDS).blockLast();
+    }
+
+    /**
+     * 统计实际建立了多少个物理连接
+     */
+    static final class CountingConnectionFactory implements ConnectionFactory {
+        final ConnectionFactory delegate;
+
+        final AtomicLong created = new AtomicLong();
+
+        CountingConnectionFactory(ConnectionFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Publisher<? extends Connection> create() {
+            return Mono.from(delegate.create()).doOnNext(connection -> created.incrementAndGet());
+        }
+
+        @Override
+        public ConnectionFactoryMetadata getMetadata() {
+            return delegate.getMetadata();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(UserRepositoryBenchmark.class.getSimpleName()).build()).run();
+    }
+}
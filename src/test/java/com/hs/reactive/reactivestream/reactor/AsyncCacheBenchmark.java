@@ -0,0 +1,92 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1000 个并发请求查询 key，key 按齐夫分布（少数热点 key 占大部分请求），一共 10000 个 key，缓存 1000 个
+ * 每次加载用 Blackhole.consumeCPU 模拟一次查询的开销；uncached 每个请求都加载一次
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AsyncCacheBenchmark {
+
+    static final int KEYS = 10_000;
+
+    static final int REQUESTS = 1000;
+
+    int[] keys = new int[REQUESTS * 16];
+
+    int offset;
+
+    AsyncCache<Integer, Integer> cache;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        //齐夫分布，s = 1
+        double[] cumulative = new double[KEYS];
+        double sum = 0;
+        for (int i = 0; i < KEYS; i++) {
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < keys.length; i++) {
+            double r = random.nextDouble() * sum;
+            int index = Arrays.binarySearch(cumulative, r);
+            keys[i] = index >= 0 ? index : -index - 1;
+        }
+        cache = new AsyncCache<>(1000, Duration.ofMinutes(5), Duration.ofMinutes(4), AsyncCacheBenchmark::query);
+    }
+
+    static Mono<Integer> query(int key) {
+        return Mono.fromCallable(() -> {
+            Blackhole.consumeCPU(2000);
+            return key * 31;
+        });
+    }
+
+    Flux<Integer> requests() {
+        int start = offset;
+        offset = (offset + REQUESTS) % keys.length;
+        return Flux.range(start, REQUESTS).map(i -> keys[i]);
+    }
+
+    @Benchmark
+    public Long uncached() {
+        return requests().flatMap(AsyncCacheBenchmark::query, REQUESTS).count().block();
+    }
+
+    @Benchmark
+    public Long cached() {
+        return requests().flatMap(cache::get, REQUESTS).count().block();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(AsyncCacheBenchmark.class.getSimpleName()).build()).run();
+    }
+}
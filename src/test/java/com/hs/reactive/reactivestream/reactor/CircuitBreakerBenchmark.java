@@ -0,0 +1,72 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 熔断器和舱壁在成功路径上的开销：同一个 Mono 调用，不加保护、加熔断器、加舱壁、两个都加
+ * 4 个线程共用一个熔断器和舱壁，看共享的原子变量在竞争下的开销
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class CircuitBreakerBenchmark {
+
+    final CircuitBreaker breaker = new CircuitBreaker("benchmark", 0.5, Duration.ofSeconds(1));
+
+    final Bulkhead bulkhead = new Bulkhead("benchmark", 64);
+
+    final Mono<Integer> call = Mono.fromSupplier(() -> 1);
+
+    @Benchmark
+    public void baseline(Blackhole bh) {
+        call.subscribe(bh::consume);
+    }
+
+    /**
+     * transformDeferred 本身的开销，每次订阅都要调用一次函数、包一层 defer
+     */
+    @Benchmark
+    public void transformDeferred(Blackhole bh) {
+        call.transformDeferred(mono -> mono).subscribe(bh::consume);
+    }
+
+    @Benchmark
+    public void circuitBreaker(Blackhole bh) {
+        call.transformDeferred(breaker::mono).subscribe(bh::consume);
+    }
+
+    @Benchmark
+    public void bulkhead(Blackhole bh) {
+        call.transformDeferred(bulkhead::mono).subscribe(bh::consume);
+    }
+
+    @Benchmark
+    public void circuitBreakerAndBulkhead(Blackhole bh) {
+        call.transformDeferred(bulkhead::mono).transformDeferred(breaker::mono).subscribe(bh::consume);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CircuitBreakerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
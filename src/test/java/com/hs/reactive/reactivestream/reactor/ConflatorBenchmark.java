@@ -0,0 +1,101 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 下游很慢：上游先推 size 个更新（64 个 key），下游之后才开始要
+ * onBackpressureBuffer 把所有更新都排队，下游要处理 size 个；conflator 只保留每个 key 的最新值，下游只处理 64 个
+ * 更新对象提前建好，-prof gc 看到的分配只来自操作符本身
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConflatorBenchmark {
+
+    static final int KEYS = 64;
+
+    @Param({"100000"})
+    int size;
+
+    Tuple2<Integer, Long>[] quotes;
+
+    Conflator<Tuple2<Integer, Long>, Integer> conflator = new Conflator<>(Tuple2::getT1, KEYS);
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        quotes = new Tuple2[1024];
+        for (int i = 0; i < quotes.length; i++) {
+            quotes[i] = Tuples.of(i % KEYS, (long) i);
+        }
+    }
+
+    Flux<Tuple2<Integer, Long>> updates() {
+        return Flux.range(0, size).map(i -> quotes[i & 1023]);
+    }
+
+    /**
+     * 订阅时不请求，上游推完之后一次要完
+     */
+    static long slowConsumer(Flux<Tuple2<Integer, Long>> flux) {
+        long[] sum = new long[1];
+        BaseSubscriber<Tuple2<Integer, Long>> subscriber = new BaseSubscriber<>() {
+            @Override
+            protected void hookOnSubscribe(Subscription subscription) {
+            }
+
+            @Override
+            protected void hookOnNext(Tuple2<Integer, Long> value) {
+                sum[0] += value.getT2();
+            }
+        };
+        flux.subscribe(subscriber);
+        subscriber.requestUnbounded();
+        return sum[0];
+    }
+
+    /**
+     * 下游一开始就要完，没有背压，看上游本身的开销（range 的装箱）
+     */
+    @Benchmark
+    public long baseline() {
+        return updates().map(Tuple2::getT2).reduce(0L, Long::sum).block();
+    }
+
+    @Benchmark
+    public long buffer() {
+        return slowConsumer(updates().onBackpressureBuffer());
+    }
+
+    @Benchmark
+    public long conflate() {
+        return slowConsumer(updates().transform(conflator));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ConflatorBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,78 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import reactor.core.publisher.Mono;
+import reactor.util.context.Context;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个请求带 10 个追踪、租户相关的 key，每个 key 一次 contextWrite，最后在流中读出所有的值
+ * 用 -prof gc 看每次请求的分配（gc.alloc.rate.norm），默认的 Context 超过 5 个 key 后每次写入都复制一个 LinkedHashMap
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContextBenchmark {
+
+    static final int KEYS = 10;
+
+    static final String[] NAMES = new String[KEYS];
+
+    static final ContextKey<?>[] CONTEXT_KEYS = new ContextKey<?>[KEYS];
+
+    static {
+        for (int i = 0; i < KEYS; i++) {
+            NAMES[i] = "bench-key-" + i;
+            CONTEXT_KEYS[i] = ContextKey.of("bench-flat-key-" + i);
+        }
+    }
+
+    @Benchmark
+    public Integer defaultContext() {
+        Mono<Integer> mono = Mono.deferContextual(ctx -> {
+            int sum = 0;
+            for (String name : NAMES) {
+                sum += ctx.<Integer>get(name);
+            }
+            return Mono.just(sum);
+        });
+        for (int i = 0; i < KEYS; i++) {
+            mono = mono.contextWrite(Context.of(NAMES[i], i));
+        }
+        return mono.block();
+    }
+
+    @Benchmark
+    public Integer flatContext() {
+        Mono<Integer> mono = Mono.deferContextual(ctx -> {
+            int sum = 0;
+            for (ContextKey<?> key : CONTEXT_KEYS) {
+                sum += (Integer) ctx.get(key);
+            }
+            return Mono.just(sum);
+        });
+        for (int i = 0; i < KEYS; i++) {
+            mono = mono.contextWrite(FlatContext.write(CONTEXT_KEYS[i], i));
+        }
+        return mono.block();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ContextBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,81 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import reactor.core.Disposable;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.concurrent.Queues;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 4 个生产者线程同时发送事件：有界 Sinks.many().unicast() 的 tryEmitNext 对比 EventIngestor 的条带队列
+ * 下游在另一个线程上消费，没放进去的事件（Sinks 的 FAIL_NON_SERIALIZED/FAIL_OVERFLOW，offer 返回 false）也算一次操作，
+ * 多线程竞争时 tryEmitNext 大部分都是立即返回 FAIL_NON_SERIALIZED，分数高但是事件大多没有发出去
+ * 没有测 Flux.create：多个线程同时调用它的 FluxSink.next 时，没抢到的线程把事件放进无界队列，
+ * 由抢到的线程替所有人发送，不管用哪种溢出策略队列都会无限增长，跑不完一次迭代
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class EventIngestorBenchmark {
+
+    Sinks.Many<Object> sink;
+
+    Disposable sinkSubscription;
+
+    EventIngestor<Object> ingestor;
+
+    Disposable ingestorSubscription;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        sink = Sinks.many().unicast().onBackpressureBuffer(Queues.get(8192).get());
+        sinkSubscription = sink.asFlux()
+                .publishOn(Schedulers.single())
+                .subscribe();
+        ingestor = new EventIngestor<>(4, 8192, FluxSink.OverflowStrategy.DROP);
+        ingestorSubscription = ingestor.flux().subscribe();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        sinkSubscription.dispose();
+        ingestorSubscription.dispose();
+        ingestor.dispose();
+    }
+
+    @Benchmark
+    public Sinks.EmitResult sinkTryEmitNext() {
+        return sink.tryEmitNext(Boolean.TRUE);
+    }
+
+    @Benchmark
+    public boolean ingestorOffer() {
+        return ingestor.offer(Boolean.TRUE);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(EventIngestorBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,93 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuple3;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FluxApiTest 中的操作符：merge/concat、zip/zipWith、handle、transform/transformDeferred
+ * 去掉了 delayElements 和打印，只测操作符本身的开销
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FluxApiBenchmark {
+
+    @Param({"1000"})
+    int size;
+
+    @Benchmark
+    public Integer concat() {
+        return Flux.concat(Flux.range(1, size), Flux.range(1, size))
+                .blockLast();
+    }
+
+    @Benchmark
+    public Integer merge() {
+        return Flux.merge(Flux.range(1, size), Flux.range(1, size))
+                .blockLast();
+    }
+
+    @Benchmark
+    public Tuple3<Integer, Integer, Integer> zip() {
+        return Flux.zip(Flux.range(1, size), Flux.range(1, size), Flux.range(1, size))
+                .blockLast();
+    }
+
+    @Benchmark
+    public Tuple2<Integer, Integer> zipWith() {
+        return Flux.range(1, size)
+                .zipWith(Flux.range(1, size))
+                .blockLast();
+    }
+
+    @Benchmark
+    public Integer handle() {
+        return Flux.range(1, size)
+                .<Integer>handle((value, sink) -> sink.next(value + value))
+                .blockLast();
+    }
+
+    /**
+     * 和 FluxApiTest 一样，同一条流订阅两次；计数器每次调用新建一个，不在调用之间共享
+     * transform 在组装时调用一次函数，两次订阅都走 map；transformDeferred 每次订阅都调用一次函数，第二次订阅不走 map
+     */
+    @Benchmark
+    public Integer transform() {
+        AtomicInteger counter = new AtomicInteger();
+        Flux<Integer> flux = Flux.range(1, size)
+                .transform(v -> counter.incrementAndGet() == 1 ? v.map(i -> i + 1) : v);
+        return flux.blockLast() + flux.blockLast();
+    }
+
+    @Benchmark
+    public Integer transformDeferred() {
+        AtomicInteger counter = new AtomicInteger();
+        Flux<Integer> flux = Flux.range(1, size)
+                .transformDeferred(v -> counter.incrementAndGet() == 1 ? v.map(i -> i + 1) : v);
+        return flux.blockLast() + flux.blockLast();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(FluxApiBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,76 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FluxDemo1 中 bufferTest 和 limitTest 的对比：buffer(2) 与 limitRate(20)
+ * 以及 microBatchTest：同样每 100 个一批，buffer(100) 每批 new 一个 ArrayList，MicroBatcher 复用池中的批次
+ * 每次调用跑完一条 size 个元素的流
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FluxDemo1Benchmark {
+
+    @Param({"1000"})
+    int size;
+
+    final MicroBatcher<Integer> batcher = new MicroBatcher<>(100, Long.MAX_VALUE, i -> 1, Duration.ofSeconds(1));
+
+    @Benchmark
+    public List<Integer> buffer2() {
+        return Flux.range(1, size)
+                .buffer(2)
+                .blockLast();
+    }
+
+    @Benchmark
+    public List<Integer> buffer100() {
+        return Flux.range(1, size)
+                .buffer(100)
+                .blockLast();
+    }
+
+    @Benchmark
+    public Integer microBatch100() {
+        return Flux.range(1, size)
+                .transform(batcher)
+                .map(batch -> {
+                    int n = batch.size();
+                    batch.release();
+                    return n;
+                })
+                .blockLast();
+    }
+
+    @Benchmark
+    public Integer limitRate20() {
+        return Flux.range(1, size)
+                .limitRate(20)
+                .blockLast();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(FluxDemo1Benchmark.class.getSimpleName()).build()).run();
+    }
+}
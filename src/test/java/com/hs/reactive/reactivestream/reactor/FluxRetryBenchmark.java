@@ -0,0 +1,75 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FluxRetryDeomo 中的 cache(3) 和 buffer(10).parallel(10).runOn
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FluxRetryBenchmark {
+
+    @Param({"1000"})
+    int size;
+
+    Scheduler parallel;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        parallel = Schedulers.newParallel("my-parallel");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        parallel.dispose();
+    }
+
+    /**
+     * 一个订阅者触发缓存，第二个订阅者从缓存中重放最后 3 个元素
+     */
+    @Benchmark
+    public Integer cache3() {
+        Flux<Integer> cache = Flux.range(1, size).cache(3);
+        cache.blockLast();
+        return cache.blockLast();
+    }
+
+    @Benchmark
+    public List<Integer> parallelRunOn() {
+        return Flux.range(1, size)
+                .buffer(10)
+                .parallel(10)
+                .runOn(parallel)
+                .sequential()
+                .blockLast();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(FluxRetryBenchmark.class.getSimpleName()).build()).run();
+    }
+}
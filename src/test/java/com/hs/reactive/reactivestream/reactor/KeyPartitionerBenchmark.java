@@ -0,0 +1,60 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按 key 有序处理：groupBy + flatMap(concatMap) 和 KeyPartitioner 的对比，events 个事件平均分给 keys 个 key
+ * processor 是同步的，比的是操作符本身的开销；groupBy 的 flatMap 并发数要不小于 key 的个数，否则会卡住
+ * 加上 -prof gc 可以看到 groupBy 每个 key 的分配
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeyPartitionerBenchmark {
+
+    @Param({"100000"})
+    int events;
+
+    @Param({"100", "100000"})
+    int keys;
+
+    @Benchmark
+    public Long groupBy() {
+        return Flux.range(0, events)
+                .groupBy(i -> i % keys)
+                .flatMap(g -> g.concatMap(Mono::just), keys)
+                .count()
+                .block();
+    }
+
+    @Benchmark
+    public Long keyPartitioner() {
+        return Flux.range(0, events)
+                .transform(new KeyPartitioner<Integer, Integer>(16, i -> i % keys, Mono::just))
+                .count()
+                .block();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(KeyPartitionerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,85 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import reactor.core.publisher.Flux;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 埋点统计的开销：range -> map -> filter 跑完 size 个元素
+ * instrumented 在流的末尾加一个统计，globalHook 给每个操作符都加一个；多线程同时跑，计数器是共享的
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class PipelineMetricsBenchmark {
+
+    @Param({"1000"})
+    int size;
+
+    PipelineMetrics metrics = new PipelineMetrics();
+
+    /**
+     * 全局钩子只在 globalHook 这个测试的 fork 中打开
+     */
+    @State(Scope.Benchmark)
+    public static class GlobalHook {
+
+        PipelineMetrics metrics = new PipelineMetrics();
+
+        @Setup(Level.Trial)
+        public void setup() {
+            metrics.installGlobalHook();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            metrics.removeGlobalHook();
+        }
+    }
+
+    Flux<Integer> pipeline() {
+        return Flux.range(0, size)
+                .map(i -> i * 31)
+                .filter(i -> (i & 1) == 0);
+    }
+
+    @Benchmark
+    public Long baseline() {
+        return pipeline().count().block();
+    }
+
+    @Benchmark
+    public Long instrumented() {
+        return pipeline().transformDeferred(metrics.flux("pipeline")).count().block();
+    }
+
+    @Benchmark
+    public Long globalHook(GlobalHook hook) {
+        return pipeline().count().block();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(PipelineMetricsBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,84 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 重放深度很大时，晚到的订阅者从 cache(n)、Sinks.many().replay().limit(n) 和 OffHeapReplaySink 中重放全部历史
+ * 配合 -prof gc 看分配速率；堆占用的差别在 trial 级别的 setup 之后就已经确定：前两个在堆上保留 depth 个对象，OffHeapReplaySink 不保留
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx1g", "-XX:MaxDirectMemorySize=256m"})
+@State(Scope.Benchmark)
+public class ReplayCacheBenchmark {
+
+    @Param({"1000", "200000"})
+    int depth;
+
+    Flux<Long> cache;
+
+    Sinks.Many<Long> replay;
+
+    OffHeapReplaySink<Long> offHeap;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        cache = Flux.range(0, depth).map(Long::valueOf).cache(depth);
+        cache.blockLast();
+
+        replay = Sinks.many().replay().limit(depth);
+        //记录头 12 字节 + long 8 字节
+        offHeap = OffHeapReplaySink.direct(ElementSerializer.ofLong(), depth * 20, depth, null);
+        for (long i = 0; i < depth; i++) {
+            replay.tryEmitNext(i);
+            offHeap.tryEmitNext(i);
+        }
+    }
+
+    @Benchmark
+    public Long cacheN() {
+        return cache.take(depth).blockLast();
+    }
+
+    @Benchmark
+    public Long replayLimit() {
+        return replay.asFlux().take(depth).blockLast();
+    }
+
+    @Benchmark
+    public Long offHeapReplay() {
+        return offHeap.asFlux().take(depth).blockLast();
+    }
+
+    /**
+     * 订阅者每次只请求 256 个，看背压下的重放速度
+     */
+    @Benchmark
+    public Long offHeapReplayLimitRate() {
+        return offHeap.asFlux().limitRate(256).take(depth).blockLast();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ReplayCacheBenchmark.class.getSimpleName()).build()).run();
+    }
+}
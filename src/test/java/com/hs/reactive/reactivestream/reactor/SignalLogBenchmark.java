@@ -0,0 +1,82 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Signal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 信号日志的开销：size 个元素的流，每个信号记录一条
+ * 多个线程同时写同一个环；后台线程跟不上时丢弃的记录数在结束时打印
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class SignalLogBenchmark {
+
+    @Param({"1000"})
+    int size;
+
+    @Param({"65536"})
+    int ringCapacity;
+
+    Path file;
+
+    SignalLog log;
+
+    Consumer<Signal<Integer>> tracer;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = Files.createTempFile("signal-log-benchmark", ".bin");
+        log = SignalLog.open(file, ringCapacity, 64 << 20);
+        tracer = log.tracer("benchmark");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        log.dispose();
+        System.out.println("written " + log.writtenCount() + ", dropped " + log.droppedCount());
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".names"));
+    }
+
+    @Benchmark
+    public Long baseline() {
+        return Flux.range(0, size).count().block();
+    }
+
+    @Benchmark
+    public Long signalLog() {
+        return Flux.range(0, size).doOnEach(tracer).count().block();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SignalLogBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,81 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 阻塞调用的吞吐量：calls 个同时进行的阻塞调用，每个阻塞 blockMillis，分别放在 boundedElastic 和虚拟线程上
+ * boundedElastic 最多 10 * CPU 核数个线程，调用数超过线程数之后要排队；虚拟线程没有这个限制
+ * 要用 JDK 21 运行才是真正的虚拟线程，否则 virtualThread 也是 boundedElastic：
+ * JAVA_HOME=/path/to/jdk21 mvn -Pbenchmarks,jdk21 test-compile exec:exec -Djmh.includes=VirtualThreadBenchmark
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VirtualThreadBenchmark {
+
+    @Param({"1000"})
+    int calls;
+
+    @Param({"10"})
+    long blockMillis;
+
+    Scheduler virtual;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        virtual = VirtualThreadScheduler.create("benchmark");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        virtual.dispose();
+    }
+
+    Long run(Scheduler scheduler) {
+        return Flux.range(0, calls)
+                .flatMap(i -> Mono.fromCallable(() -> {
+                    Thread.sleep(blockMillis);
+                    return i;
+                }).subscribeOn(scheduler), calls)
+                .count()
+                .block();
+    }
+
+    @Benchmark
+    public Long boundedElastic() {
+        return run(Schedulers.boundedElastic());
+    }
+
+    @Benchmark
+    public Long virtualThread() {
+        return run(virtual);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(VirtualThreadBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,94 @@
+package com.hs.reactive.reactivestream.reactor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 任务耗时不均匀时 runOn 和工作窃取的对比：400 个任务，每 slowEvery 个中有一个慢任务
+ * 慢任务的下标是 slowEvery 的倍数，slowEvery 是 rail 数的倍数时，runOn 轮流分配会把所有慢任务都分到同一个 rail 上
+ * 任务用 parkNanos 模拟阻塞调用，不占 CPU，核数少的机器上也能看出差别
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WorkStealingBenchmark {
+
+    static final int RAILS = 4;
+
+    @Param({"400"})
+    int tasks;
+
+    @Param({"20"})
+    int slowEvery;
+
+    @Param({"200"})
+    long fastMicros;
+
+    @Param({"5000"})
+    long slowMicros;
+
+    Scheduler scheduler;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        scheduler = Schedulers.newParallel("benchmark", RAILS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        scheduler.dispose();
+    }
+
+    Integer work(Integer i) {
+        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(i % slowEvery == 0 ? slowMicros : fastMicros));
+        return i;
+    }
+
+    @Benchmark
+    public Long runOn() {
+        return Flux.range(0, tasks)
+                .parallel(RAILS)
+                .runOn(scheduler)
+                .map(this::work)
+                .sequential()
+                .count()
+                .block();
+    }
+
+    @Benchmark
+    public Long workStealing() {
+        return Flux.range(0, tasks)
+                .as(f -> WorkStealingParallelFlux.from(f, RAILS, scheduler, 4))
+                .map(this::work)
+                .sequential()
+                .count()
+                .block();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(WorkStealingBenchmark.class.getSimpleName()).build()).run();
+    }
+}
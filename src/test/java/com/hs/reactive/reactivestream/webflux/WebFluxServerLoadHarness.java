@@ -0,0 +1,95 @@
+package com.hs.reactive.reactivestream.webflux;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.server.reactive.HttpHandler;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+import reactor.netty.resources.LoopResources;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * WebFluxServer 的本地压测
+ * 服务端和客户端在同一个进程中，服务端使用单独的事件循环线程（load-server 开头），
+ * 只统计这些线程分配的字节数，所以 每个请求的分配字节数 不包含客户端的开销
+ * 对比 原来每个请求 getBytes()+wrap 的写法 和 共享堆外 buffer 的写法
+ */
+public class WebFluxServerLoadHarness {
+
+    static final int CONCURRENCY = 64;
+
+    static final Duration WARMUP = Duration.ofSeconds(3);
+
+    static final Duration DURATION = Duration.ofSeconds(10);
+
+    /**
+     * 原来的写法，去掉了同步打印
+     */
+    static HttpHandler copyingHandler() {
+        return (request, response) -> {
+            DataBuffer wrap = response.bufferFactory().wrap("this is my response".getBytes());
+            return response.writeWith(Mono.just(wrap));
+        };
+    }
+
+    public static void main(String[] args) {
+        run("copying", copyingHandler());
+        run("precomputed", WebFluxServer.handler());
+    }
+
+    static void run(String name, HttpHandler handler) {
+        LoopResources serverLoops = LoopResources.create("load-server", 2, true);
+        DisposableServer server = WebFluxServer.start("localhost", 0, handler, serverLoops);
+        ConnectionProvider provider = ConnectionProvider.create("load-client", CONCURRENCY);
+        HttpClient client = HttpClient.create(provider).baseUrl("http://localhost:" + server.port());
+        try {
+            load(client, WARMUP);
+            long allocatedBefore = serverAllocatedBytes();
+            long start = System.nanoTime();
+            long requests = load(client, DURATION);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long allocated = serverAllocatedBytes() - allocatedBefore;
+            System.out.printf("%-12s %,10.0f requests/s  %,8d bytes allocated per request (server threads)%n",
+                    name, requests / seconds, allocated / Math.max(1, requests));
+        } finally {
+            server.disposeNow();
+            provider.disposeLater().block();
+            serverLoops.disposeLater().block();
+        }
+    }
+
+    /**
+     * CONCURRENCY 个请求循环发送，直到时间用完
+     */
+    static long load(HttpClient client, Duration duration) {
+        long deadline = System.nanoTime() + duration.toNanos();
+        AtomicLong completed = new AtomicLong();
+        Flux.range(0, CONCURRENCY)
+                .flatMap(i -> client.get().uri("/")
+                        .responseSingle((response, body) -> body.then(Mono.just(response.status().code())))
+                        .doOnNext(status -> completed.incrementAndGet())
+                        .repeat(() -> System.nanoTime() < deadline), CONCURRENCY)
+                .blockLast();
+        return completed.get();
+    }
+
+    static long serverAllocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] ids = Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().startsWith("load-server"))
+                .mapToLong(Thread::getId)
+                .toArray();
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(ids)) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+}